@@ -0,0 +1,151 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.bench;
+
+import java.io.File;
+import java.io.IOException;
+import org.urhl7.spark.SparkCompression;
+import org.urhl7.spark.SparkFileWriter;
+import org.urhl7.spark.SparkFlushPolicy;
+import org.urhl7.utils.HL7Generator;
+import org.urhl7.utils.HL7GeneratorType;
+
+/**
+ * The message corpora of the benchmarks, made by HL7Generator. The same kind and seed always give the same
+ * messages, so results can be compared between runs and between versions.
+ * @author dmorgan
+ */
+public final class Corpus {
+    /**
+     * The kinds of message in the corpora.
+     */
+    public enum Kind {
+        /**
+         * A typical ADT^A01 of a few dozen segments.
+         */
+        ADT,
+        /**
+         * A large ORU^R01 with about 500 OBX segments.
+         */
+        ORU,
+        /**
+         * A pathological ADT^A01 whose repeating fields repeat up to 4000 times.
+         */
+        REPEAT
+    }
+
+    private Corpus() {}
+
+    /**
+     * Returns a generator of a kind of message.
+     * @param kind the kind of message
+     * @param seed the seed of the generator
+     * @return the generator
+     */
+    public static HL7Generator generator(Kind kind, long seed) {
+        HL7Generator generator = new HL7Generator(seed);
+        if (kind == Kind.ORU) {
+            generator.setType(HL7GeneratorType.ORU_R01);
+            generator.setObservations(500);
+        } else if (kind == Kind.REPEAT) {
+            generator.setRepetitions(4000);
+        }
+        return generator;
+    }
+
+    /**
+     * Returns one message of a kind.
+     * @param kind the kind of message
+     * @param seed the seed of the values in it
+     * @return the message, with segments ended by \r
+     */
+    public static String message(Kind kind, long seed) {
+        return generator(kind, seed).next().marshal();
+    }
+
+    /**
+     * Returns several messages of a kind.
+     * @param kind the kind of message
+     * @param count the number of messages
+     * @param seed the seed of the generator
+     * @return the messages
+     */
+    public static String[] messages(Kind kind, int count, long seed) {
+        HL7Generator generator = generator(kind, seed);
+        String[] messages = new String[count];
+        for(int i=0; i<count; i++) {
+            messages[i] = generator.next().marshal();
+        }
+        return messages;
+    }
+
+    /**
+     * Writes a batch file of a mix of ADT^A01 and ORU^R01 messages, with the default delimiter.
+     * @param count the number of messages
+     * @param seed the seed of the generator
+     * @param gzip true to gzip the file
+     * @return the file, deleted when the JVM exits
+     * @throws IOException if the file cannot be written
+     */
+    public static File batchFile(int count, long seed, boolean gzip) throws IOException {
+        File f = File.createTempFile("corpus", gzip ? ".hl7.gz" : ".hl7");
+        f.deleteOnExit();
+        SparkFileWriter writer = writer(f, gzip);
+        try {
+            new HL7Generator(seed, HL7GeneratorType.MIXED).write(writer, count);
+        } finally {
+            writer.close();
+        }
+        return f;
+    }
+
+    /**
+     * Writes a batch file of a mix of ADT^A01 and ORU^R01 messages, with the default delimiter, of at least
+     * <i>size</i> characters before any compression.
+     * @param size the number of characters
+     * @param seed the seed of the generator
+     * @param gzip true to gzip the file
+     * @return the file, deleted when the JVM exits
+     * @throws IOException if the file cannot be written
+     */
+    public static File batchFileSize(long size, long seed, boolean gzip) throws IOException {
+        File f = File.createTempFile("corpus", gzip ? ".hl7.gz" : ".hl7");
+        f.deleteOnExit();
+        SparkFileWriter writer = writer(f, gzip);
+        try {
+            new HL7Generator(seed, HL7GeneratorType.MIXED).writeSize(writer, size);
+        } finally {
+            writer.close();
+        }
+        return f;
+    }
+
+    private static SparkFileWriter writer(File f, boolean gzip) {
+        SparkFileWriter writer = new SparkFileWriter(f, false);
+        writer.setCompression(gzip ? SparkCompression.GZIP : SparkCompression.NONE);
+        writer.setFlushPolicy(SparkFlushPolicy.ON_CLOSE);
+        return writer;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.urhl7.utils.HL7Escape;
+
+/**
+ * Escapes and unescapes text with and without anything to escape in it.
+ * @author dmorgan
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class EscapeBenchmark {
+    private static final char[] DELIMS = {'|', '^', '~', '\\', '&'};
+
+    @Param({"plain", "special"})
+    private String text;
+
+    private String unescaped;
+    private String escaped;
+
+    @Setup
+    public void setup() {
+        if ("plain".equals(text)) {
+            unescaped = "Patient reports mild discomfort after the procedure, follow up in two weeks";
+        } else {
+            unescaped = "Patient reports pain|discomfort^after the procedure & follow up~in two weeks \\ call back";
+        }
+        escaped = HL7Escape.escape(DELIMS, unescaped);
+    }
+
+    @Benchmark
+    public String escape() {
+        return HL7Escape.escape(DELIMS, unescaped);
+    }
+
+    @Benchmark
+    public String unescape() {
+        return HL7Escape.unescape(DELIMS, escaped);
+    }
+}
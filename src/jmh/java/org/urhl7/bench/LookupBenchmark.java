@@ -0,0 +1,78 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.urhl7.hl7.*;
+
+/**
+ * Looks up values in an already parsed message, by descriptor and by precompiled path.
+ * @author dmorgan
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class LookupBenchmark {
+    @Param({"ADT", "ORU"})
+    private Corpus.Kind corpus;
+
+    private HL7Structure structure;
+    private HL7Path path;
+    private String last;
+
+    @Setup
+    public void setup() {
+        structure = HL7.structure(Corpus.message(corpus, 1));
+        path = HL7Path.compile("PID-3");
+        last = "OBX[" + (structure.getSegments("OBX").size() - 1) + "]-5";
+    }
+
+    @Benchmark
+    public String implied() {
+        return structure.get("PID-3").getData();
+    }
+
+    @Benchmark
+    public String qualified() {
+        return structure.get("PID[0]-3[0].1").getData();
+    }
+
+    @Benchmark
+    public String compiled() {
+        return path.get(structure).getData();
+    }
+
+    @Benchmark
+    public String lastSegment() {
+        return structure.get(last).getData();
+    }
+
+    @Benchmark
+    public List<DataField> all() {
+        return structure.getAll("OBX-5");
+    }
+}
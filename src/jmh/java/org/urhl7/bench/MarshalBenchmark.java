@@ -0,0 +1,88 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.urhl7.hl7.HL7;
+import org.urhl7.hl7.HL7Structure;
+
+/**
+ * Turns a parsed message back into text, and copies it.
+ * @author dmorgan
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class MarshalBenchmark {
+    @Param({"ADT", "ORU"})
+    private Corpus.Kind corpus;
+
+    private String message;
+    private HL7Structure structure;
+    private HL7Structure fresh;
+    private boolean flip;
+
+    @Setup
+    public void setup() {
+        message = Corpus.message(corpus, 1);
+        structure = HL7.structure(message);
+    }
+
+    @Setup(Level.Invocation)
+    public void parseFresh() {
+        fresh = HL7.structure(message);
+    }
+
+    @Benchmark
+    public String cached() {
+        return structure.marshal();
+    }
+
+    @Benchmark
+    public String changed() {
+        flip = !flip;
+        structure.get("PID-5.1").setData(flip ? "SMITH" : "JONES");
+        return structure.marshal();
+    }
+
+    @Benchmark
+    public StringBuilder fresh() throws IOException {
+        StringBuilder sb = new StringBuilder(message.length());
+        fresh.marshalTo(sb);
+        return sb;
+    }
+
+    @Benchmark
+    public HL7Structure copy() {
+        return structure.copy();
+    }
+
+    @Benchmark
+    public HL7Structure copyStructure() {
+        return structure.copy(false);
+    }
+}
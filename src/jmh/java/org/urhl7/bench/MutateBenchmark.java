@@ -0,0 +1,73 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.urhl7.hl7.*;
+
+/**
+ * Changes a parsed message and reads it back, which exercises the invalidation of the lookup caches.
+ * @author dmorgan
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class MutateBenchmark {
+    @Param({"ADT", "ORU"})
+    private Corpus.Kind corpus;
+
+    private HL7Structure structure;
+    private boolean flip;
+
+    @Setup
+    public void setup() {
+        structure = HL7.structure(Corpus.message(corpus, 1));
+    }
+
+    @Benchmark
+    public String setThenGet() {
+        flip = !flip;
+        structure.get("PID-5.1").setData(flip ? "SMITH" : "JONES");
+        return structure.get("PID-5.1").getData();
+    }
+
+    @Benchmark
+    public List<DataField> setThenGetAll() {
+        flip = !flip;
+        structure.get("OBX-5").setData(flip ? "1" : "2");
+        return structure.getAll("OBX-5");
+    }
+
+    @Benchmark
+    public String addThenRemove() {
+        HL7Segment seg = HL7.segment("ZZZ", 3);
+        structure.addSegment(seg);
+        String data = structure.get("ZZZ-1").getData();
+        structure.removeSegment(seg);
+        return data;
+    }
+}
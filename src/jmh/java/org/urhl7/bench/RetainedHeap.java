@@ -0,0 +1,80 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import org.urhl7.hl7.HL7;
+import org.urhl7.hl7.HL7ParseMode;
+import org.urhl7.hl7.HL7Structure;
+
+/**
+ * Measures the heap retained by parsed messages in each parse mode, before and after they are marshalled. This is
+ * not a JMH benchmark, run it with -Djmh.main=org.urhl7.bench.RetainedHeap and no jmh.args.
+ * @author dmorgan
+ */
+public class RetainedHeap {
+    //about this many chars of messages are parsed in each mode, so big messages don't run out of heap
+    private static final int CHARS = 1000000;
+
+    public static void main(String[] args) {
+        for(Corpus.Kind kind : Corpus.Kind.values()) {
+            int count = Math.max(10, CHARS / Corpus.message(kind, 0).length());
+            String[] messages = Corpus.messages(kind, count, 1);
+            long size = 0;
+            for(String message : messages) {
+                size += message.length();
+            }
+            System.out.println(kind + ": " + count + " messages, " + (size / count) + " chars per message");
+            for(HL7ParseMode mode : HL7ParseMode.values()) {
+                HL7Structure[] parsed = new HL7Structure[count];
+                long before = usedHeap();
+                for(int i=0; i<count; i++) {
+                    parsed[i] = HL7.structure(messages[i], mode);
+                }
+                long after = usedHeap();
+                //marshalling may cache the text of the message and its parts
+                long length = 0;
+                for(int i=0; i<count; i++) {
+                    length += parsed[i].marshal().length();
+                }
+                long marshalled = usedHeap();
+                System.out.println("  " + mode + ": " + ((after - before) / count) + " bytes per message, "
+                        + ((marshalled - before) / count) + " after marshal()");
+                if (length == 0) {
+                    throw new IllegalStateException();
+                }
+            }
+        }
+    }
+
+    private static long usedHeap() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for(int i=0; i<3; i++) {
+            System.gc();
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.urhl7.hl7.HL7;
+import org.urhl7.hl7.HL7Structure;
+import org.urhl7.spark.*;
+
+/**
+ * Reads a plain batch file of a given size through a memory map, through a channel and with the default read mode,
+ * with and without a selector, and writes one with each of the compressions. The largest sizes take a while to
+ * generate, pick one with -p size=... for a quick run.
+ * @author dmorgan
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class SparkArchiveBenchmark {
+    private int received;
+
+    /**
+     * The file to read, of about size megabytes of mixed ADT^A01 and ORU^R01 messages.
+     */
+    @State(Scope.Benchmark)
+    public static class Input {
+        @Param({"16", "1024", "4096"})
+        private long size;
+
+        private File file;
+
+        @Setup
+        public void setup() throws IOException {
+            file = Corpus.batchFileSize(size * 1024 * 1024, 1, false);
+        }
+
+        @TearDown
+        public void tearDown() {
+            file.delete();
+        }
+    }
+
+    /**
+     * The messages to write, and the compression to write them with.
+     */
+    @State(Scope.Benchmark)
+    public static class Output {
+        @Param({"NONE", "GZIP", "PARALLEL_GZIP"})
+        private SparkCompression compression;
+
+        private File file;
+        private HL7Structure[] messages;
+
+        @Setup
+        public void setup() throws IOException {
+            file = File.createTempFile("archive", ".hl7");
+            String[] raw = Corpus.messages(Corpus.Kind.ADT, 2000, 1);
+            messages = new HL7Structure[raw.length];
+            for(int i=0; i<raw.length; i++) {
+                messages[i] = HL7.structure(raw[i]);
+            }
+        }
+
+        @TearDown
+        public void tearDown() {
+            file.delete();
+        }
+    }
+
+    //keeps only the ADT^A01s, a small share of the file, so most messages are skipped without being parsed
+    private static final HL7MessageSelector ADMISSIONS = HL7MessageFilter.anyOf("MSH-9.1", "ADT");
+
+    @Benchmark
+    public int standard(Input input) throws IOException {
+        received = 0;
+        new SparkFileReader(input.file, counter()).parseBatch();
+        return received;
+    }
+
+    @Benchmark
+    public int standardSelected(Input input) throws IOException {
+        received = 0;
+        SparkFileReader reader = new SparkFileReader(input.file, counter());
+        reader.setSelector(ADMISSIONS);
+        reader.parseBatch();
+        return received;
+    }
+
+    @Benchmark
+    public int mapped(Input input) throws IOException {
+        received = 0;
+        new SparkMappedFileReader(input.file, counter()).parseBatch();
+        return received;
+    }
+
+    @Benchmark
+    public int mappedSelected(Input input) throws IOException {
+        received = 0;
+        SparkMappedFileReader reader = new SparkMappedFileReader(input.file, counter());
+        reader.setSelector(ADMISSIONS);
+        reader.parseBatch();
+        return received;
+    }
+
+    @Benchmark
+    public int channel(Input input) throws IOException {
+        received = 0;
+        SparkFileReader reader = new SparkFileReader(input.file, counter());
+        reader.setReadMode(SparkReadMode.CHANNEL);
+        reader.parseBatch();
+        return received;
+    }
+
+    @Benchmark
+    public int channelSelected(Input input) throws IOException {
+        received = 0;
+        SparkFileReader reader = new SparkFileReader(input.file, counter());
+        reader.setReadMode(SparkReadMode.CHANNEL);
+        reader.setSelector(ADMISSIONS);
+        reader.parseBatch();
+        return received;
+    }
+
+    @Benchmark
+    public long write(Output output) throws IOException {
+        //overwrites the file, so every invocation writes the same file from empty
+        SparkFileWriter writer = new SparkFileWriter(output.file, false);
+        writer.setCompression(output.compression);
+        writer.setFlushPolicy(SparkFlushPolicy.ON_CLOSE);
+        try {
+            for(HL7Structure message : output.messages) {
+                writer.write(message);
+            }
+        } finally {
+            writer.close();
+        }
+        return output.file.length();
+    }
+
+    private HL7MessageListener counter() {
+        return new HL7MessageListener() {
+            public boolean messageReceived(HL7Structure message) {
+                received++;
+                return true;
+            }
+        };
+    }
+}
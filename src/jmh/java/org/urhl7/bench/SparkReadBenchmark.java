@@ -0,0 +1,80 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.urhl7.hl7.HL7Structure;
+import org.urhl7.spark.HL7MessageListener;
+import org.urhl7.spark.SparkFileReader;
+import org.urhl7.spark.SparkReadMode;
+
+/**
+ * Reads a batch file of 2000 messages with each of the read modes, plain and gzipped.
+ * @author dmorgan
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class SparkReadBenchmark {
+    @Param({"STANDARD", "CHANNEL", "PIPELINED"})
+    private SparkReadMode readMode;
+
+    @Param({"false", "true"})
+    private boolean gzip;
+
+    @Param({"false", "true"})
+    private boolean reuse;
+
+    private File file;
+    private int received;
+
+    @Setup
+    public void setup() throws IOException {
+        file = Corpus.batchFile(2000, 1, gzip);
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public int parseBatch() throws IOException {
+        received = 0;
+        SparkFileReader reader = new SparkFileReader(file, new HL7MessageListener() {
+            public boolean messageReceived(HL7Structure message) {
+                received++;
+                return true;
+            }
+        });
+        reader.setReadMode(readMode);
+        reader.setReuseStructures(reuse);
+        reader.parseBatch();
+        return received;
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.urhl7.hl7.HL7;
+import org.urhl7.hl7.HL7ParseMode;
+import org.urhl7.hl7.HL7Scanner;
+
+/**
+ * Reads one value from a raw message: by parsing it, by a lazy parse, by a HL7MessageView and by the HL7Scanner.
+ * @author dmorgan
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class ViewBenchmark {
+    @Param({"ADT", "ORU"})
+    private Corpus.Kind corpus;
+
+    private String message;
+
+    @Setup
+    public void setup() {
+        message = Corpus.message(corpus, 1);
+    }
+
+    @Benchmark
+    public String structure() {
+        return HL7.structure(message).get("PID-3").getData();
+    }
+
+    @Benchmark
+    public String lazy() {
+        return HL7.structure(message, HL7ParseMode.LAZY).get("PID-3").getData();
+    }
+
+    @Benchmark
+    public String view() {
+        return HL7.view(message).get("PID-3").getData();
+    }
+
+    @Benchmark
+    public String scan() {
+        return HL7Scanner.scan(message, "PID-3");
+    }
+}
@@ -24,6 +24,9 @@
 
 package org.urhl7.hl7;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 
 /**
  * GenericStructure is an interface that defines marshal() and unmarshal(String) methods. Essentially forcing
@@ -37,6 +40,28 @@ public interface GenericStructure {
      * @return a String representation of this data.
      */    
     public String marshal();
+
+    /**
+     * Marshals all underlying data in this structure straight into an Appendable (such as a StringBuilder or a
+     * Writer), without building intermediate Strings. Appends exactly what marshal() returns.
+     * @param out the Appendable to write to
+     * @throws IOException if out throws
+     */
+    public default void marshalTo(Appendable out) throws IOException {
+        out.append(marshal());
+    }
+
+    /**
+     * Marshals all underlying data in this structure straight into a ByteBuffer, encoded with a charset. Characters
+     * the charset cannot encode are replaced, as String.getBytes() does.
+     * @param out the buffer to write to
+     * @param charset the charset to encode with
+     * @throws java.nio.BufferOverflowException if out does not have room for the whole structure, in which case
+     * its position is unspecified
+     */
+    public default void marshalTo(ByteBuffer out, Charset charset) {
+        HL7Marshal.encode(this, out, charset);
+    }
     
     /**
      * Unmarshals a String representation into this structure
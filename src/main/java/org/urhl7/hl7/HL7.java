@@ -94,11 +94,8 @@ public class HL7 {
         //int positionOfSegmentSplit = 3;
         //char sSplitChar = hl7data.charAt(positionOfSegmentSplit);
         //String chars = hl7data.substring(positionOfSegmentSplit, hl7data.indexOf(sSplitChar, positionOfSegmentSplit+1));
-        String chars = hl7data.substring(3, 8);
-        char[] charDelimiters = chars.toCharArray();
-
-        //build a structure
-        HL7Structure structure = new HL7Structure(charDelimiters);
+        //build a structure, sharing the delimiter set with every other message that declares it
+        HL7Structure structure = new HL7Structure(HL7Delimiters.of(hl7data, 3, 8));
 
         //load data into HL7 structure
         structure.unmarshal(hl7data);
@@ -106,6 +103,30 @@ public class HL7 {
         return structure;
     }
 
+    /**
+     * Static factory method to return a instantiated HL7Structure object, built by the requested parsing engine.
+     * The object will auto sense what the encoded delimiters are and parse based off that
+     * @param hl7data the String of data
+     * @param mode the parsing engine to use
+     * @return a newly created HL7Structure object
+     */
+    public static HL7Structure structure(String hl7data, HL7ParseMode mode) {
+        HL7Structure structure = new HL7Structure(HL7Delimiters.of(hl7data, 3, 8));
+        structure.unmarshal(hl7data, mode);
+
+        return structure;
+    }
+
+    /**
+     * Static factory method to return a read-only HL7MessageView of a message, for reading values without building
+     * a HL7Structure. The view will auto sense what the encoded delimiters are.
+     * @param hl7data the raw message
+     * @return a newly created HL7MessageView object
+     */
+    public static HL7MessageView view(CharSequence hl7data) {
+        return new HL7MessageView(hl7data);
+    }
+
     /**
      * Creates a new stand-alone abstract HL7 segment, based off the segment name.
      * @param segmentName the name of the segment
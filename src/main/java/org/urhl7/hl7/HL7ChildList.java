@@ -0,0 +1,113 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.hl7;
+
+import java.util.AbstractList;
+import java.util.List;
+
+/**
+ * The list a node hands out for its children. Reads go straight to the list the node keeps, and every change is
+ * passed to the node, so cached marshalled forms and the lookup index never miss a change made through the list.
+ * @author dmorgan
+ */
+abstract class HL7ChildList<E> extends AbstractList<E> {
+    private final List<E> list;
+
+    /**
+     * Creates a view of the children of a node.
+     * @param list the list the node keeps its children in
+     */
+    HL7ChildList(List<E> list) {
+        this.list = list;
+    }
+
+    /**
+     * Attaches a child put into the list to the node.
+     * @param child the new child
+     */
+    abstract void adopt(E child);
+
+    /**
+     * Detaches a child taken out of the list from the node. Does nothing unless the node overrides it.
+     * @param child the removed child
+     */
+    void release(E child) {
+    }
+
+    /**
+     * Tells the node its children changed.
+     */
+    abstract void changed();
+
+    @Override
+    public E get(int index) {
+        return list.get(index);
+    }
+
+    @Override
+    public int size() {
+        return list.size();
+    }
+
+    @Override
+    public E set(int index, E child) {
+        adopt(child);
+        E old = list.set(index, child);
+        if (old != child) {
+            release(old);
+        }
+        changed();
+        return old;
+    }
+
+    @Override
+    public void add(int index, E child) {
+        adopt(child);
+        list.add(index, child);
+        modCount++;
+        changed();
+    }
+
+    @Override
+    public E remove(int index) {
+        E old = list.remove(index);
+        modCount++;
+        release(old);
+        changed();
+        return old;
+    }
+
+    @Override
+    public void clear() {
+        if (!list.isEmpty()) {
+            for(int i=0; i<list.size(); i++) {
+                release(list.get(i));
+            }
+            list.clear();
+            modCount++;
+            changed();
+        }
+    }
+}
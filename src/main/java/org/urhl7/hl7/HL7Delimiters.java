@@ -0,0 +1,216 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.hl7;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An immutable set of HL7 delimiters: the field separator, followed by the encoding characters (component separator,
+ * repetition separator, escape character and subcomponent separator), as declared at the start of the MSH segment.
+ * Every node of a structure shares one instance. Instances are interned, so the standard |^~\& set, and any other
+ * set seen before, is never allocated again.
+ * @author dmorgan
+ */
+public final class HL7Delimiters {
+    /**
+     * The standard delimiters, |^~\&
+     */
+    public static final HL7Delimiters STANDARD = new HL7Delimiters(new char[] {'|', '^', '~', '\\', '&'});
+
+    //the sets of delimiters seen so far, bounded so odd messages cannot fill memory
+    private static final int INTERNED_MAX = 256;
+    private static final ConcurrentHashMap<String, HL7Delimiters> INTERNED = new ConcurrentHashMap<String, HL7Delimiters>();
+
+    private final char[] chars;
+    private final String string;
+    private final String encodingCharacters;
+
+    private HL7Delimiters(char[] chars) {
+        this.chars = chars;
+        this.string = new String(chars);
+        this.encodingCharacters = string.substring(1);
+    }
+
+    /**
+     * Returns the shared instance for the delimiters in an array, such as {'|', '^', '~', '\\', '&'}.
+     * The array is copied, so it may be changed afterwards.
+     * @param delims the delimiters, starting with the field separator
+     * @return the shared instance for those delimiters
+     */
+    public static HL7Delimiters of(char[] delims) {
+        if (STANDARD.matches(delims)) {
+            return STANDARD;
+        }
+        return of(new String(delims));
+    }
+
+    /**
+     * Returns the shared instance for the delimiters in a String, such as "|^~\\&".
+     * @param delims the delimiters, starting with the field separator
+     * @return the shared instance for those delimiters
+     */
+    public static HL7Delimiters of(String delims) {
+        return of(delims, 0, delims.length());
+    }
+
+    /**
+     * Returns the shared instance for the delimiters in part of a CharSequence, such as the five characters after "MSH".
+     * @param source the characters holding the delimiters
+     * @param start index of the field separator
+     * @param end index after the last encoding character
+     * @return the shared instance for those delimiters
+     */
+    static HL7Delimiters of(CharSequence source, int start, int end) {
+        if (STANDARD.matches(source, start, end)) {
+            return STANDARD;
+        }
+        String key = source.subSequence(start, end).toString();
+        HL7Delimiters delimiters = INTERNED.get(key);
+        if (delimiters == null) {
+            delimiters = new HL7Delimiters(key.toCharArray());
+            if (INTERNED.size() < INTERNED_MAX) {
+                HL7Delimiters existing = INTERNED.putIfAbsent(key, delimiters);
+                if (existing != null) {
+                    delimiters = existing;
+                }
+            }
+        }
+        return delimiters;
+    }
+
+    private boolean matches(CharSequence source, int start, int end) {
+        if (end - start != chars.length) {
+            return false;
+        }
+        for(int i=0; i<chars.length; i++) {
+            if (source.charAt(start + i) != chars[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the field separator, usually |
+     * @return the field separator
+     */
+    public char getFieldSeparator() {
+        return chars[0];
+    }
+
+    /**
+     * Returns the component separator, usually ^
+     * @return the component separator
+     */
+    public char getComponentSeparator() {
+        return chars[1];
+    }
+
+    /**
+     * Returns the repetition separator, usually ~
+     * @return the repetition separator
+     */
+    public char getRepetitionSeparator() {
+        return chars[2];
+    }
+
+    /**
+     * Returns the escape character, usually \
+     * @return the escape character
+     */
+    public char getEscapeCharacter() {
+        return chars[3];
+    }
+
+    /**
+     * Returns the subcomponent separator, usually &amp;
+     * @return the subcomponent separator
+     */
+    public char getSubcomponentSeparator() {
+        return chars[4];
+    }
+
+    /**
+     * Returns the encoding characters, the value of MSH-2: every delimiter but the field separator.
+     * @return the encoding characters
+     */
+    public String getEncodingCharacters() {
+        return encodingCharacters;
+    }
+
+    /**
+     * Returns true if data is exactly the encoding characters.
+     * @param data the data to check
+     * @return true if data is the encoding characters
+     */
+    public boolean isEncodingCharacters(String data) {
+        return encodingCharacters.equals(data);
+    }
+
+    /**
+     * Returns a copy of the delimiters as an array, starting with the field separator.
+     * @return the delimiters
+     */
+    public char[] toCharArray() {
+        return chars.clone();
+    }
+
+    /**
+     * Returns the delimiters as an array shared by every user of this instance. It must not be changed.
+     * @return the shared array
+     */
+    char[] array() {
+        return chars;
+    }
+
+    /**
+     * Returns true if these delimiters are the same characters as the array.
+     * @param delims the delimiters, starting with the field separator
+     * @return true if they are the same
+     */
+    private boolean matches(char[] delims) {
+        return Arrays.equals(chars, delims);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return this == o || (o instanceof HL7Delimiters && Arrays.equals(chars, ((HL7Delimiters)o).chars));
+    }
+
+    @Override
+    public int hashCode() {
+        return string.hashCode();
+    }
+
+    /**
+     * Returns the delimiters as a String, such as "|^~\\&".
+     * @return the delimiters
+     */
+    @Override
+    public String toString() {
+        return string;
+    }
+}
@@ -24,6 +24,7 @@
 
 package org.urhl7.hl7;
 
+import java.io.IOException;
 import org.urhl7.utils.*;
 import java.util.ArrayList;
 import java.util.List;
@@ -37,17 +38,23 @@ public class HL7Field implements DataField, DelimitedStructure {
 
     private ArrayList<HL7FieldComponent> components = new ArrayList<HL7FieldComponent>();
     private String data;
-    private char[] delims;
+    //in the COMPACT parse mode, the data is a range of the original message until it is first needed as a String
+    private String source;
+    private int sourceStart;
+    private int sourceEnd;
+    private HL7Delimiters delims;
     private HL7RepeatingField parent;
     private boolean baseField = false;
     private boolean isMSHDelimiterField = false;
+    //the marshalled form, kept until this field or anything below it changes
+    private String marshalled = null;
 
     /**
      * Creates a HL7Field object that understands the specified delimiters.
      * @param delims delimiter set to use
      */
     public HL7Field(char[] delims) {
-        this.delims = delims;
+        this.delims = HL7Delimiters.of(delims);
     }
 
     /**
@@ -55,7 +62,7 @@ public class HL7Field implements DataField, DelimitedStructure {
      * @param parent reference to parent
      */
     public HL7Field(HL7RepeatingField parent) {
-        this.delims = parent.getDelims();
+        this.delims = parent.getDelimiters();
         setParent(parent);
     }
 
@@ -82,17 +89,39 @@ public class HL7Field implements DataField, DelimitedStructure {
      */
     public String marshal() {
         if (isBaseField()) {
-            return data;
+            return data();
+        } else if (source != null) {
+            //a range of the message in the COMPACT parse mode, which is marshalled again rather than cached
+            return HL7Marshal.toString(this, sourceEnd - sourceStart);
         } else {
-            ArrayList<String> tmpfields = new ArrayList<String>();
-
-            for(HL7FieldComponent inField : components) {
-                String field = inField.marshal();
-                tmpfields.add(field);
+            if (marshalled == null) {
+                marshalled = HL7Marshal.toString(this, 16);
             }
+            return marshalled;
+        }
+    }
 
-            String[] sFields = tmpfields.toArray(new String[tmpfields.size()]);
-            return StringHelper.implode(sFields, delims[1]+"");
+    /**
+     * Marshals this field straight into an Appendable.
+     * @param out the Appendable to write to
+     * @throws IOException if out throws
+     */
+    public void marshalTo(Appendable out) throws IOException {
+        if (isBaseField()) {
+            if (source != null) {
+                out.append(source, sourceStart, sourceEnd);
+            } else {
+                out.append(data);
+            }
+        } else if (marshalled != null) {
+            out.append(marshalled);
+        } else {
+            for(int i=0; i<components.size(); i++) {
+                if (i > 0) {
+                    out.append(delims.getComponentSeparator());
+                }
+                components.get(i).marshalTo(out);
+            }
         }
     }
 
@@ -101,14 +130,11 @@ public class HL7Field implements DataField, DelimitedStructure {
      * @param data a String representation of data
      */
     public void unmarshal(String data){
-        char[] smallerDelims = new char[delims.length-1];
-        for(int i=1; i<delims.length; i++) {
-            smallerDelims[i-1] = delims[i];
-        }
-        if (!data.equals(new String(smallerDelims))) {
+        source = null;
+        if (!delims.isEncodingCharacters(data)) {
             //continue parsing?
-            String[] brokenup = StringHelper.explode(data, delims[1]+"");
-            if (brokenup.length > 1 || data.contains(delims[4]+"")) {
+            String[] brokenup = StringHelper.explode(data, delims.getComponentSeparator()+"");
+            if (brokenup.length > 1 || data.contains(delims.getSubcomponentSeparator()+"")) {
                 this.data = data; //maybe not wanted
                 components = new ArrayList<HL7FieldComponent>();
                 for(String part : brokenup) {
@@ -130,11 +156,67 @@ public class HL7Field implements DataField, DelimitedStructure {
         setDirty();
     }
 
+    /**
+     * Populates this field with data built by HL7Parser.
+     * @param rawData the unparsed (escaped) data of this field
+     * @param parsedComponents the components of this field, or null if this is a base field
+     * @param mshDelimiterField true if this field holds the encoding characters of the MSH segment
+     */
+    void load(String rawData, ArrayList<HL7FieldComponent> parsedComponents, boolean mshDelimiterField) {
+        this.data = rawData;
+        source = null;
+        if (parsedComponents != null) {
+            components = parsedComponents;
+            baseField = false;
+        } else {
+            baseField = true;
+        }
+        isMSHDelimiterField = mshDelimiterField;
+
+        setDirty();
+    }
+
+    /**
+     * Populates this field with a range of the message, for the COMPACT parse mode. The data of the field is only
+     * made into a String when it is needed.
+     * @param source the message
+     * @param start index of the first char of this field
+     * @param end index after the last char of this field
+     * @param parsedComponents the components of this field, or null if this is a base field
+     */
+    void load(String source, int start, int end, ArrayList<HL7FieldComponent> parsedComponents) {
+        this.data = null;
+        this.source = source;
+        this.sourceStart = start;
+        this.sourceEnd = end;
+        if (parsedComponents != null) {
+            components = parsedComponents;
+            baseField = false;
+        } else {
+            baseField = true;
+        }
+        isMSHDelimiterField = false;
+
+        setDirty();
+    }
+
     /**
      * Changes the internal delimiters for this field
      * @param chars the delimiters
      */
     public void changeDelims(char[] chars) {
+        changeDelims(HL7Delimiters.of(chars));
+    }
+
+    /**
+     * Changes the internal delimiters for this field
+     * @param chars the delimiters
+     */
+    public void changeDelims(HL7Delimiters chars) {
+        if (delims.equals(chars)) {
+            return;
+        }
+        invalidate();
         if (isBaseField()) {
 
             //BUG - MSH-Delimiter FIELD IS CONSIDERED A SIMPLE HL7Field ONLY WHEN ALL CHARS CHANGE (?)
@@ -167,6 +249,14 @@ public class HL7Field implements DataField, DelimitedStructure {
      * @return delimiter array
      */
     public char[] getDelims() {
+        return delims.toCharArray();
+    }
+
+    /**
+     * Returns the shared, immutable delimiter set for this data object.
+     * @return the delimiters
+     */
+    public HL7Delimiters getDelimiters() {
         return delims;
     }
 
@@ -183,8 +273,10 @@ public class HL7Field implements DataField, DelimitedStructure {
      * @param data a String representation of the data
      */
     public void setData(String data) {
-        this.data = HL7Escape.escape(delims, data);
+        source = null;
+        this.data = HL7Escape.escape(delims.array(), data);
         baseField = true;
+        invalidate();
         if (components != null) {
             components.clear();
             setDirty();
@@ -196,16 +288,35 @@ public class HL7Field implements DataField, DelimitedStructure {
      * @return String representation of the data
      */
     public String getData() {
-        return HL7Escape.unescape(delims, data);
+        if (source != null) {
+            return HL7Escape.unescape(delims.array(), source, sourceStart, sourceEnd);
+        }
+        return HL7Escape.unescape(delims.array(), data);
     }
 
 
     /**
-     * Return the underlying list structure of all field components associated with this field.
+     * Return the underlying list structure of all field components associated with this field. Changes made
+     * through the list are the same as the matching addFieldComponent and removeFieldComponent calls.
      * @return List of HL7FieldComponents
      */
     public List<HL7FieldComponent> getFieldComponents() {
-        return components;
+        if (components == null) {
+            return null;
+        }
+        return new HL7ChildList<HL7FieldComponent>(components) {
+            void adopt(HL7FieldComponent fieldcomp) {
+                fieldcomp.setParent(HL7Field.this);
+            }
+
+            void changed() {
+                setDirty();
+                if (!baseField) {
+                    data = marshal();
+                    source = null;
+                }
+            }
+        };
     }
 
     /**
@@ -237,9 +348,9 @@ public class HL7Field implements DataField, DelimitedStructure {
         baseField = false;
         fieldcomp.setParent(this);
         boolean suc = components.add(fieldcomp);
-        this.data = marshal();
-
         setDirty();
+        this.data = marshal();
+        source = null;
 
         return suc;
     }
@@ -254,9 +365,9 @@ public class HL7Field implements DataField, DelimitedStructure {
         baseField = false;
         fieldcomp.setParent(this);
         components.add(index, fieldcomp);
-        this.data = marshal();
-
         setDirty();
+        this.data = marshal();
+        source = null;
     }
 
     /**
@@ -268,9 +379,9 @@ public class HL7Field implements DataField, DelimitedStructure {
         HL7FieldComponent f = components.remove(pos);
         f.setParent(null);
         if (components.size() == 0) { baseField = true; }
-        this.data = marshal();
-
         setDirty();
+        this.data = marshal();
+        source = null;
 
         return f;
     }
@@ -284,9 +395,9 @@ public class HL7Field implements DataField, DelimitedStructure {
         boolean s = components.remove(fieldcomp);
         fieldcomp.setParent(null);
         if (components.size() == 0) { baseField = true; }
-        this.data = marshal();
-
         setDirty();
+        this.data = marshal();
+        source = null;
 
         return s;
     }
@@ -301,16 +412,68 @@ public class HL7Field implements DataField, DelimitedStructure {
         fieldcomp.setParent(this);
         HL7FieldComponent old = components.set(pos, fieldcomp);
         old.setParent(null);
-        this.data = marshal();
-
         setDirty();
+        this.data = marshal();
+        source = null;
 
         return old;
     }
 
+    /**
+     * Returns the list the components of this field are kept in, for HL7Parser to fill when this field came
+     * from HL7NodePool.
+     * @return the list of components
+     */
+    ArrayList<HL7FieldComponent> componentList() {
+        return components;
+    }
+
+    /**
+     * Clears this field as it goes into HL7NodePool, so it holds on to nothing from its old message.
+     */
+    void clear() {
+        components.clear();
+        parent = null;
+        data = null;
+        source = null;
+        baseField = false;
+        isMSHDelimiterField = false;
+        marshalled = null;
+    }
+
+    /**
+     * Attaches this field, taken from HL7NodePool, to a new parent.
+     * @param parent the repeating field it is parsed into
+     */
+    void reuse(HL7RepeatingField parent) {
+        this.delims = parent.getDelimiters();
+        this.parent = parent;
+    }
+
+    /**
+     * Drops the cached marshalled form of this field and every ancestor.
+     */
+    void invalidate() {
+        marshalled = null;
+        if (parent != null) {
+            parent.invalidate();
+        }
+    }
+
+    //the raw data. In the COMPACT parse mode it is copied out of the message each time it is needed rather than
+    //kept, so marshalling a compact structure does not leave a String behind for every value
+    private String data() {
+        String raw = data;
+        if (raw == null && source != null) {
+            return source.substring(sourceStart, sourceEnd);
+        }
+        return raw;
+    }
+
     private void setDirty() {
-        if (parent != null && parent.getParent() != null && parent.getParent().getParent() != null) {
-            parent.getParent().getParent().needsRecache = true;
+        invalidate();
+        if (parent != null && parent.getParent() != null) {
+            parent.getParent().setDirty();
         }
     }
 }
@@ -24,6 +24,7 @@
 
 package org.urhl7.hl7;
 
+import java.io.IOException;
 import org.urhl7.utils.*;
 import java.util.ArrayList;
 import java.util.List;
@@ -34,17 +35,23 @@ import java.util.List;
  */
 public class HL7FieldComponent implements DataField, DelimitedStructure {
     private String data;
-    private char[] delims;
+    //in the COMPACT parse mode, the data is a range of the original message until it is first needed as a String
+    private String source;
+    private int sourceStart;
+    private int sourceEnd;
+    private HL7Delimiters delims;
     private HL7Field parent;
     private ArrayList<HL7FieldSubcomponent> subcomponents = new ArrayList<HL7FieldSubcomponent>();
     private boolean baseField = false;
+    //the marshalled form, kept until this component or anything below it changes
+    private String marshalled = null;
 
     /**
      * Creates a HL7FieldComponent object that understands the specified delimiters.
      * @param delims
      */
     public HL7FieldComponent(char[] delims) {
-        this.delims = delims;
+        this.delims = HL7Delimiters.of(delims);
     }
 
     /**
@@ -52,7 +59,7 @@ public class HL7FieldComponent implements DataField, DelimitedStructure {
      * @param parent
      */
     public HL7FieldComponent(HL7Field parent) {
-        this.delims = parent.getDelims();
+        this.delims = parent.getDelimiters();
         setParent(parent);
     }
 
@@ -78,6 +85,14 @@ public class HL7FieldComponent implements DataField, DelimitedStructure {
      * @return delimiter array
      */
     public char[] getDelims() {
+        return delims.toCharArray();
+    }
+
+    /**
+     * Returns the shared, immutable delimiter set for this data object.
+     * @return the delimiters
+     */
+    public HL7Delimiters getDelimiters() {
         return delims;
     }
 
@@ -86,6 +101,18 @@ public class HL7FieldComponent implements DataField, DelimitedStructure {
      * @param delims the delimiters
      */
     public void changeDelims(char[] delims) {
+        changeDelims(HL7Delimiters.of(delims));
+    }
+
+    /**
+     * Changes the internal delimiters for this field
+     * @param delims the delimiters
+     */
+    public void changeDelims(HL7Delimiters delims) {
+        if (this.delims.equals(delims)) {
+            return;
+        }
+        invalidate();
         if (isBaseField()) {
             String tmpData = getData();
             this.delims = delims;
@@ -114,12 +141,9 @@ public class HL7FieldComponent implements DataField, DelimitedStructure {
      * @param data a String representation of data
      */
     public void unmarshal(String data) {
-        char[] smallerDelims = new char[delims.length-1];
-        for(int i=1; i<delims.length; i++) {
-            smallerDelims[i-1] = delims[i];
-        }
-        if (!data.equals(new String(smallerDelims))) {
-            String[] brokenup = StringHelper.explode(data, delims[4]+"");
+        source = null;
+        if (!delims.isEncodingCharacters(data)) {
+            String[] brokenup = StringHelper.explode(data, delims.getSubcomponentSeparator()+"");
             if (brokenup.length > 1) {
                 this.data = data; //maybe not wanted
                 subcomponents = new ArrayList<HL7FieldSubcomponent>();
@@ -141,23 +165,86 @@ public class HL7FieldComponent implements DataField, DelimitedStructure {
         setDirty();
     }
 
+    /**
+     * Populates this component with data built by HL7Parser.
+     * @param rawData the unparsed (escaped) data of this component
+     * @param parsedSubcomponents the subcomponents of this component, or null if this is a base field
+     */
+    void load(String rawData, ArrayList<HL7FieldSubcomponent> parsedSubcomponents) {
+        this.data = rawData;
+        source = null;
+        if (parsedSubcomponents != null) {
+            subcomponents = parsedSubcomponents;
+            baseField = false;
+        } else {
+            baseField = true;
+        }
+
+        setDirty();
+    }
+
+    /**
+     * Populates this component with a range of the message, for the COMPACT parse mode. The data of the component
+     * is only made into a String when it is needed.
+     * @param source the message
+     * @param start index of the first char of this component
+     * @param end index after the last char of this component
+     * @param parsedSubcomponents the subcomponents of this component, or null if this is a base field
+     */
+    void load(String source, int start, int end, ArrayList<HL7FieldSubcomponent> parsedSubcomponents) {
+        this.data = null;
+        this.source = source;
+        this.sourceStart = start;
+        this.sourceEnd = end;
+        if (parsedSubcomponents != null) {
+            subcomponents = parsedSubcomponents;
+            baseField = false;
+        } else {
+            baseField = true;
+        }
+
+        setDirty();
+    }
+
     /**
      * Returns a string representation of this and the underlying data structures
      * @return a String representation of this structure
      */
     public String marshal() {
         if (isBaseField()) {
-            return data;
+            return data();
+        } else if (source != null) {
+            //a range of the message in the COMPACT parse mode, which is marshalled again rather than cached
+            return HL7Marshal.toString(this, sourceEnd - sourceStart);
         } else {
-            ArrayList<String> tmpfields = new ArrayList<String>();
-
-            for(HL7FieldSubcomponent inField : subcomponents) {
-                String field = inField.marshal();
-                tmpfields.add(field);
+            if (marshalled == null) {
+                marshalled = HL7Marshal.toString(this, 16);
             }
+            return marshalled;
+        }
+    }
 
-            String[] sFields = tmpfields.toArray(new String[tmpfields.size()]);
-            return StringHelper.implode(sFields, delims[4]+"");
+    /**
+     * Marshals this component straight into an Appendable.
+     * @param out the Appendable to write to
+     * @throws IOException if out throws
+     */
+    public void marshalTo(Appendable out) throws IOException {
+        if (isBaseField()) {
+            if (source != null) {
+                out.append(source, sourceStart, sourceEnd);
+            } else {
+                out.append(data);
+            }
+        } else if (marshalled != null) {
+            out.append(marshalled);
+        } else {
+            for(int i=0; i<subcomponents.size(); i++) {
+                if (i > 0) {
+                    out.append(delims.getSubcomponentSeparator());
+                }
+                subcomponents.get(i).marshalTo(out);
+            }
         }
     }
 
@@ -167,7 +254,9 @@ public class HL7FieldComponent implements DataField, DelimitedStructure {
      */
     public void setData(String data) {
         baseField = true;
-        this.data = HL7Escape.escape(delims, data);
+        source = null;
+        this.data = HL7Escape.escape(delims.array(), data);
+        invalidate();
         if (subcomponents != null) {
             subcomponents.clear();
             setDirty();
@@ -179,7 +268,10 @@ public class HL7FieldComponent implements DataField, DelimitedStructure {
      * @return String representation of the data
      */
     public String getData() {
-        return HL7Escape.unescape(delims, this.data);
+        if (source != null) {
+            return HL7Escape.unescape(delims.array(), source, sourceStart, sourceEnd);
+        }
+        return HL7Escape.unescape(delims.array(), data);
     }
 
     /**
@@ -200,11 +292,28 @@ public class HL7FieldComponent implements DataField, DelimitedStructure {
     }
 
     /**
-     * Returns the underlying array list data structure containing HL7FieldSubcomponents.
+     * Returns the underlying array list data structure containing HL7FieldSubcomponents. Changes made through the
+     * list are the same as the matching addFieldSubcomponent and removeFieldSubcomponent calls.
      * @return the underlying data structure
      */
     public List<HL7FieldSubcomponent> getFieldSubcomponents() {
-        return subcomponents;
+        if (subcomponents == null) {
+            return null;
+        }
+        return new HL7ChildList<HL7FieldSubcomponent>(subcomponents) {
+            void adopt(HL7FieldSubcomponent fieldsub) {
+                fieldsub.setParent(HL7FieldComponent.this);
+                fieldsub.changeDelims(getDelimiters());
+            }
+
+            void changed() {
+                setDirty();
+                if (!baseField) {
+                    data = marshal();
+                    source = null;
+                }
+            }
+        };
     }
 
     /**
@@ -234,10 +343,11 @@ public class HL7FieldComponent implements DataField, DelimitedStructure {
     public boolean addFieldSubcomponent(HL7FieldSubcomponent fieldcomp) {
         baseField = false;
         fieldcomp.setParent(this);
-        fieldcomp.changeDelims(getDelims());
+        fieldcomp.changeDelims(getDelimiters());
         boolean suc =  subcomponents.add(fieldcomp);
-        this.data = marshal();
         setDirty();
+        this.data = marshal();
+        source = null;
         return suc;
     }
 
@@ -249,10 +359,11 @@ public class HL7FieldComponent implements DataField, DelimitedStructure {
     public void addFieldSubcomponent(int index, HL7FieldSubcomponent fieldsubcomp) {
         baseField = false;
         fieldsubcomp.setParent(this);
-        fieldsubcomp.changeDelims(getDelims());
+        fieldsubcomp.changeDelims(getDelimiters());
         subcomponents.add(index, fieldsubcomp);
-        this.data = marshal();
         setDirty();
+        this.data = marshal();
+        source = null;
     }
 
     /**
@@ -264,8 +375,9 @@ public class HL7FieldComponent implements DataField, DelimitedStructure {
         HL7FieldSubcomponent f = subcomponents.remove(pos);
         f.setParent(null);
         if (subcomponents.size() == 0) { baseField = true; }
-        this.data = marshal();
         setDirty();
+        this.data = marshal();
+        source = null;
         return f;
     }
 
@@ -278,8 +390,9 @@ public class HL7FieldComponent implements DataField, DelimitedStructure {
         boolean s = subcomponents.remove(fieldcomp);
         fieldcomp.setParent(null);
         if (subcomponents.size() == 0) { baseField = true; }
-        this.data = marshal();
         setDirty();
+        this.data = marshal();
+        source = null;
         return s;
     }
 
@@ -291,17 +404,69 @@ public class HL7FieldComponent implements DataField, DelimitedStructure {
      */
     public HL7FieldSubcomponent setFieldSubcomponent(int pos, HL7FieldSubcomponent fieldsubcomp) {
         fieldsubcomp.setParent(this);
-        fieldsubcomp.changeDelims(getDelims());
+        fieldsubcomp.changeDelims(getDelimiters());
         HL7FieldSubcomponent old = subcomponents.set(pos, fieldsubcomp);
         old.setParent(null);
-        this.data = marshal();
         setDirty();
+        this.data = marshal();
+        source = null;
         return old;
     }
 
+    /**
+     * Returns the list the subcomponents of this component are kept in, for HL7Parser to fill when this
+     * component came from HL7NodePool.
+     * @return the list of subcomponents
+     */
+    ArrayList<HL7FieldSubcomponent> subcomponentList() {
+        return subcomponents;
+    }
+
+    /**
+     * Clears this component as it goes into HL7NodePool, so it holds on to nothing from its old message.
+     */
+    void clear() {
+        subcomponents.clear();
+        parent = null;
+        data = null;
+        source = null;
+        baseField = false;
+        marshalled = null;
+    }
+
+    /**
+     * Attaches this component, taken from HL7NodePool, to a new parent.
+     * @param parent the field it is parsed into
+     */
+    void reuse(HL7Field parent) {
+        this.delims = parent.getDelimiters();
+        this.parent = parent;
+    }
+
+    /**
+     * Drops the cached marshalled form of this component and every ancestor.
+     */
+    void invalidate() {
+        marshalled = null;
+        if (parent != null) {
+            parent.invalidate();
+        }
+    }
+
+    //the raw data. In the COMPACT parse mode it is copied out of the message each time it is needed rather than
+    //kept, so marshalling a compact structure does not leave a String behind for every value
+    private String data() {
+        String raw = data;
+        if (raw == null && source != null) {
+            return source.substring(sourceStart, sourceEnd);
+        }
+        return raw;
+    }
+
     private void setDirty() {
-        if (parent != null && parent.getParent() != null && parent.getParent().getParent() != null && parent.getParent().getParent().getParent() != null) {
-            parent.getParent().getParent().getParent().needsRecache = true;
+        invalidate();
+        if (parent != null && parent.getParent() != null && parent.getParent().getParent() != null) {
+            parent.getParent().getParent().setDirty();
         }
     }
 
@@ -24,6 +24,7 @@
 
 package org.urhl7.hl7;
 
+import java.io.IOException;
 import org.urhl7.utils.*;
 
 /**
@@ -31,9 +32,13 @@ import org.urhl7.utils.*;
  * @author dmorgan
  */
 public class HL7FieldSubcomponent implements DataField, DelimitedStructure {
-    private char[] delims;
+    private HL7Delimiters delims;
     private HL7FieldComponent parent;
     private String data;
+    //in the COMPACT parse mode, the data is a range of the original message until it is first needed as a String
+    private String source;
+    private int sourceStart;
+    private int sourceEnd;
     private boolean baseField = true;
 
     /**
@@ -41,7 +46,7 @@ public class HL7FieldSubcomponent implements DataField, DelimitedStructure {
      * @param delims
      */
     public HL7FieldSubcomponent(char[] delims) {
-        this.delims = delims;
+        this.delims = HL7Delimiters.of(delims);
     }
 
     /**
@@ -49,7 +54,7 @@ public class HL7FieldSubcomponent implements DataField, DelimitedStructure {
      * @param parent
      */
     public HL7FieldSubcomponent(HL7FieldComponent parent) {
-        this.delims = parent.getDelims();
+        this.delims = parent.getDelimiters();
         setParent(parent);
     }
 
@@ -74,6 +79,14 @@ public class HL7FieldSubcomponent implements DataField, DelimitedStructure {
      * @return delimiter array
      */
     public char[] getDelims() {
+        return delims.toCharArray();
+    }
+
+    /**
+     * Returns the shared, immutable delimiter set for this data object.
+     * @return the delimiters
+     */
+    public HL7Delimiters getDelimiters() {
         return delims;
     }
 
@@ -82,6 +95,17 @@ public class HL7FieldSubcomponent implements DataField, DelimitedStructure {
      * @param delims to change to
      */
     public void changeDelims(char[] delims) {
+        changeDelims(HL7Delimiters.of(delims));
+    }
+
+    /**
+     * Changes the delimiter of this HL7FieldSubcomponent
+     * @param delims to change to
+     */
+    public void changeDelims(HL7Delimiters delims) {
+        if (this.delims.equals(delims)) {
+            return;
+        }
         String tmpData = getData();
         this.delims = delims;
 
@@ -101,6 +125,7 @@ public class HL7FieldSubcomponent implements DataField, DelimitedStructure {
      * @param data a String representation of data
      */
     public void unmarshal(String data) {
+        source = null;
         this.data = data;
         baseField = true;
 
@@ -108,12 +133,42 @@ public class HL7FieldSubcomponent implements DataField, DelimitedStructure {
 
     }
 
+    /**
+     * Populates this subcomponent with a range of the message, for the COMPACT parse mode. The data is only made
+     * into a String when it is needed.
+     * @param source the message
+     * @param start index of the first char of this subcomponent
+     * @param end index after the last char of this subcomponent
+     */
+    void load(String source, int start, int end) {
+        this.data = null;
+        this.source = source;
+        this.sourceStart = start;
+        this.sourceEnd = end;
+        baseField = true;
+
+        setDirty();
+    }
+
     /**
      * Returns a string representation of this and the underlying data structures
      * @return a String representation of this structure
      */
     public String marshal() { 
-        return data;
+        return data();
+    }
+
+    /**
+     * Marshals this subcomponent straight into an Appendable.
+     * @param out the Appendable to write to
+     * @throws IOException if out throws
+     */
+    public void marshalTo(Appendable out) throws IOException {
+        if (source != null) {
+            out.append(source, sourceStart, sourceEnd);
+        } else {
+            out.append(data);
+        }
     }
 
     /**
@@ -122,7 +177,9 @@ public class HL7FieldSubcomponent implements DataField, DelimitedStructure {
      */
     public void setData(String data) {
         baseField = true;
-        this.data = HL7Escape.escape(delims, data);
+        source = null;
+        this.data = HL7Escape.escape(delims.array(), data);
+        invalidate();
     }
 
     /**
@@ -130,7 +187,10 @@ public class HL7FieldSubcomponent implements DataField, DelimitedStructure {
      * @return String representation of the data
      */
     public String getData() {
-        return HL7Escape.unescape(delims, this.data);
+        if (source != null) {
+            return HL7Escape.unescape(delims.array(), source, sourceStart, sourceEnd);
+        }
+        return HL7Escape.unescape(delims.array(), data);
     }
 
     /**
@@ -150,12 +210,50 @@ public class HL7FieldSubcomponent implements DataField, DelimitedStructure {
         return baseField;
     }
 
+    /**
+     * Clears this subcomponent as it goes into HL7NodePool, so it holds on to nothing from its old message.
+     */
+    void clear() {
+        parent = null;
+        data = null;
+        source = null;
+        baseField = true;
+    }
+
+    /**
+     * Attaches this subcomponent, taken from HL7NodePool, to a new parent.
+     * @param parent the component it is parsed into
+     */
+    void reuse(HL7FieldComponent parent) {
+        this.delims = parent.getDelimiters();
+        this.parent = parent;
+    }
+
+    /**
+     * Drops the cached marshalled form of every ancestor.
+     */
+    void invalidate() {
+        if (parent != null) {
+            parent.invalidate();
+        }
+    }
+
+    //the raw data. In the COMPACT parse mode it is copied out of the message each time it is needed rather than
+    //kept, so marshalling a compact structure does not leave a String behind for every value
+    private String data() {
+        String raw = data;
+        if (raw == null && source != null) {
+            return source.substring(sourceStart, sourceEnd);
+        }
+        return raw;
+    }
+
     private void setDirty() {
+        invalidate();
         if (parent != null && parent.getParent() != null
-                           && parent.getParent().getParent() != null && parent.getParent().getParent().getParent() != null
-                           && parent.getParent().getParent().getParent().getParent() != null) {
+                           && parent.getParent().getParent() != null && parent.getParent().getParent().getParent() != null) {
 
-            parent.getParent().getParent().getParent().getParent().needsRecache = true;
+            parent.getParent().getParent().getParent().setDirty();
         }
     }
 }
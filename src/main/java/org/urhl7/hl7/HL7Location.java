@@ -23,28 +23,37 @@
 package org.urhl7.hl7;
 import org.urhl7.utils.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- *
+ * An immutable location in an HL7Structure, such as PID[0]-3[1].1. Two HL7Locations are equal when every index and
+ * every flag (including the implied index flags) are equal, so two fully qualified locations are equal exactly when
+ * they describe the same data field. Use {@link #matches(HL7Location)} to compare against a location with implied
+ * indexes.
  * @author dmorgan
  */
-public class HL7Location {
-    private HL7Location() {}
+public final class HL7Location {
+
+    /* parsed descriptors, shared by every thread */
+    private static final int PARSED_CACHE_LIMIT = 4096;
+    private static final Map<String, HL7Location> PARSED_CACHE = new ConcurrentHashMap<String, HL7Location>();
 
     /* underlying data */
-    private String segmentName = null;
-    private int segmentIndex = 0;
-    private int repeatingFieldIndexInSegment = 0;
-    private int fieldIndexInRepeatingField = 0;
-    private int componentIndexInField = -1;
-    private int subcomponentIndexInComponent = -1;
-    private boolean hasSegment = false;
-    private boolean hasField = false;
-    private boolean hasComponent = false;
-    private boolean hasSubcomponent = false;
+    private final String segmentName;
+    private final int segmentIndex;
+    private final int repeatingFieldIndexInSegment;
+    private final int fieldIndexInRepeatingField;
+    private final int componentIndexInField;
+    private final int subcomponentIndexInComponent;
+    private final boolean hasSegment;
+    private final boolean hasField;
+    private final boolean hasComponent;
+    private final boolean hasSubcomponent;
+
+    private final boolean isSegmentIndexImplied;
+    private final boolean isFieldIndexImplied;
 
-    private boolean isSegmentIndexImplied = false;
-    private boolean isFieldIndexImplied = false;
+    private final int hash;
 
 
     //kept for debugging purposes
@@ -81,29 +90,88 @@ public class HL7Location {
      * @param subcomponentIndex Index of the subcomponent of a component
      */
     public HL7Location(String segmentName, int segmentIndex, int repFieldIndex, int fieldIndex, int componentIndex, int subcomponentIndex) {
-        this.segmentName = segmentName;
-        this.segmentIndex = segmentIndex;
+        this(fullyQualified(segmentName, segmentIndex, repFieldIndex, fieldIndex, componentIndex, subcomponentIndex));
+    }
+
+    private static Builder fullyQualified(String segmentName, int segmentIndex, int repFieldIndex, int fieldIndex, int componentIndex, int subcomponentIndex) {
+        Builder b = new Builder();
+        b.segmentName = segmentName;
+        b.segmentIndex = segmentIndex;
 
-        this.hasSegment = true;
-        this.isSegmentIndexImplied = false;
+        b.hasSegment = true;
+        b.isSegmentIndexImplied = false;
 
         if (repFieldIndex >= 0) {
-            this.repeatingFieldIndexInSegment = repFieldIndex;
-            this.fieldIndexInRepeatingField = fieldIndex;
+            b.repeatingFieldIndexInSegment = repFieldIndex;
+            b.fieldIndexInRepeatingField = fieldIndex;
 
-            this.hasField = true;
-            this.isFieldIndexImplied = false;
+            b.hasField = true;
+            b.isFieldIndexImplied = false;
 
             if (componentIndex >= 0) {
-                this.componentIndexInField = componentIndex;
-                this.hasComponent = true;
+                b.componentIndexInField = componentIndex;
+                b.hasComponent = true;
 
                 if(subcomponentIndex >= 0) {
-                    this.subcomponentIndexInComponent = subcomponentIndex;
-                    this.hasSubcomponent = true;
+                    b.subcomponentIndexInComponent = subcomponentIndex;
+                    b.hasSubcomponent = true;
                 }
             }
         }
+        return b;
+    }
+
+    private HL7Location(Builder b) {
+        this.segmentName = b.segmentName;
+        this.segmentIndex = b.segmentIndex;
+        this.repeatingFieldIndexInSegment = b.repeatingFieldIndexInSegment;
+        this.fieldIndexInRepeatingField = b.fieldIndexInRepeatingField;
+        this.componentIndexInField = b.componentIndexInField;
+        this.subcomponentIndexInComponent = b.subcomponentIndexInComponent;
+        this.hasSegment = b.hasSegment;
+        this.hasField = b.hasField;
+        this.hasComponent = b.hasComponent;
+        this.hasSubcomponent = b.hasSubcomponent;
+        this.isSegmentIndexImplied = b.isSegmentIndexImplied;
+        this.isFieldIndexImplied = b.isFieldIndexImplied;
+
+        int h = (segmentName == null) ? 0 : segmentName.hashCode();
+        h = 31*h + segmentIndex;
+        h = 31*h + repeatingFieldIndexInSegment;
+        h = 31*h + fieldIndexInRepeatingField;
+        h = 31*h + componentIndexInField;
+        h = 31*h + subcomponentIndexInComponent;
+        int flags = (hasSegment ? 1 : 0) | (hasField ? 2 : 0) | (hasComponent ? 4 : 0) | (hasSubcomponent ? 8 : 0)
+                  | (isSegmentIndexImplied ? 16 : 0) | (isFieldIndexImplied ? 32 : 0);
+        h = 31*h + flags;
+        //spread the bits, the indexes are small numbers
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        this.hash = h;
+    }
+
+    /**
+     * The mutable state used while a location is being parsed or determined.
+     */
+    private static final class Builder {
+        private String segmentName = null;
+        private int segmentIndex = 0;
+        private int repeatingFieldIndexInSegment = 0;
+        private int fieldIndexInRepeatingField = 0;
+        private int componentIndexInField = -1;
+        private int subcomponentIndexInComponent = -1;
+        private boolean hasSegment = false;
+        private boolean hasField = false;
+        private boolean hasComponent = false;
+        private boolean hasSubcomponent = false;
+
+        private boolean isSegmentIndexImplied = false;
+        private boolean isFieldIndexImplied = false;
+
+        private HL7Location build() {
+            return new HL7Location(this);
+        }
     }
 
     /**
@@ -115,46 +183,46 @@ public class HL7Location {
     }
 
     /**
-     * Tests if an HL7Location is the same specific location as this location
+     * Tests if an HL7Location is the same specific location as this location. Every index and flag must be equal,
+     * including the implied index flags.
      * @param o the HL7Location
-     * @return true if o matches this HL7Location
+     * @return true if o is the same location as this HL7Location
      */
     @Override
     public boolean equals(Object o) {
-        boolean areWeEqual = true;
-        if (o instanceof HL7Location) {
-            HL7Location other = (HL7Location)o;
-
-
-            areWeEqual = areWeEqual && this.segmentName.equals(other.segmentName);
-            if (areWeEqual) {
-                areWeEqual = areWeEqual && (this.segmentIndex == other.segmentIndex);
-                areWeEqual = areWeEqual && (this.isSegmentIndexImplied() == other.isSegmentIndexImplied());
-                if (areWeEqual) {
-                    areWeEqual = areWeEqual && (this.repeatingFieldIndexInSegment == other.repeatingFieldIndexInSegment);
-                    if (areWeEqual) {
-                        areWeEqual = areWeEqual && (this.fieldIndexInRepeatingField == other.fieldIndexInRepeatingField);
-                        areWeEqual = areWeEqual && (this.isFieldIndexImplied() == other.isFieldIndexImplied());
-                        if (areWeEqual) {
-                            areWeEqual = areWeEqual && (this.componentIndexInField == other.componentIndexInField);
-                            if (areWeEqual) {
-                                areWeEqual = areWeEqual && (this.subcomponentIndexInComponent == other.subcomponentIndexInComponent);
-                            }
-                        }
-                    }
-                }
-            }
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof HL7Location)) {
+            return false;
+        }
+        HL7Location other = (HL7Location)o;
+        if (this.hash != other.hash) {
+            return false;
         }
-        return areWeEqual;
+
+        return (this.segmentIndex == other.segmentIndex)
+            && (this.repeatingFieldIndexInSegment == other.repeatingFieldIndexInSegment)
+            && (this.fieldIndexInRepeatingField == other.fieldIndexInRepeatingField)
+            && (this.componentIndexInField == other.componentIndexInField)
+            && (this.subcomponentIndexInComponent == other.subcomponentIndexInComponent)
+            && (this.hasSegment == other.hasSegment)
+            && (this.hasField == other.hasField)
+            && (this.hasComponent == other.hasComponent)
+            && (this.hasSubcomponent == other.hasSubcomponent)
+            && (this.isSegmentIndexImplied == other.isSegmentIndexImplied)
+            && (this.isFieldIndexImplied == other.isFieldIndexImplied)
+            && Objects.equals(this.segmentName, other.segmentName);
     }
 
     /**
-     * Predictably hashes this HL7Location
+     * Hashes every part of this HL7Location that equals() compares. The hash is computed once, when the location
+     * is created.
      * @return returns a hashcode for this object
      */
     @Override
     public int hashCode() {
-        return (segmentIndex*1000)+(fieldIndexInRepeatingField+(repeatingFieldIndexInSegment*100))+(componentIndexInField+10)+subcomponentIndexInComponent;
+        return hash;
     }
 
     /**
@@ -219,14 +287,34 @@ public class HL7Location {
      * <li>OBX[2]-5</li>
      * </ul>
      * <br />
-     * You can omit the hyphen, for segments that are properly formatted with a 3-character segment name
+     * You can omit the hyphen, for segments that are properly formatted with a 3-character segment name.
+     * <br />
+     * Parsed locations are interned: parsing the same String again returns the same HL7Location without
+     * doing the work twice. The cache is bounded, and is emptied when it grows past its limit.
      * @param location A String location representation
      * @return A prepared HL7Location as described by location.
+     * @throws IllegalArgumentException if location is null or not a valid location
      */
     public static HL7Location parse(String location) {
+        if (location == null) {
+            //the cache cannot hold null keys
+            throw new IllegalArgumentException("Invalid HL7 location: null");
+        }
+        HL7Location loc = PARSED_CACHE.get(location);
+        if (loc == null) {
+            loc = parseUncached(location);
+            if (PARSED_CACHE.size() >= PARSED_CACHE_LIMIT) {
+                PARSED_CACHE.clear();
+            }
+            PARSED_CACHE.put(location, loc);
+        }
+        return loc;
+    }
+
+    private static HL7Location parseUncached(String location) {
 
         try {
-            HL7Location loc = new HL7Location();
+            Builder loc = new Builder();
             if(location.contains("-")) {
                 String segDetails = location.substring(0, location.indexOf("-"));
                 String fieldDetails = location.substring(location.indexOf("-")+1);
@@ -258,7 +346,7 @@ public class HL7Location {
                         repFieldPositionProvided = Integer.parseInt(fieldPieces[0]);
                     }
 
-                    if (loc.segmentName.equals("MSH")) {
+                    if (loc.segmentName.equalsIgnoreCase("MSH")) {
                         if (repFieldPositionProvided > 1) {
                             loc.repeatingFieldIndexInSegment = repFieldPositionProvided-1;
                         } else {
@@ -296,18 +384,18 @@ public class HL7Location {
                         } else { //index, add a hyphen and try again
                             StringBuffer sb = new StringBuffer(location);
                             sb.insert(location.indexOf("]")+1, '-');
-                            return HL7Location.parse(sb.toString());
+                            return HL7Location.parseUncached(sb.toString());
                         }
                     } else { //no index, add a hyphen and try again
                         StringBuffer sb = new StringBuffer(location);
                         sb.insert(3, '-');
-                        return HL7Location.parse(sb.toString());
+                        return HL7Location.parseUncached(sb.toString());
                     }
                 }
 
             }
 
-            return loc;
+            return loc.build();
         } catch (Exception e) {
             e.printStackTrace();
             throw new IllegalArgumentException("Invalid HL7 location: " + location);
@@ -320,13 +408,13 @@ public class HL7Location {
      * @return a fully qualified HL7Location
      */
     public static HL7Location determine(GenericStructure gs) {
-        HL7Location loc = new HL7Location();
+        Builder loc = new Builder();
         loc = applyLocationInfo(loc, gs);
-        return loc;
+        return loc.build();
     }
 
     //the magic method
-    private static HL7Location applyLocationInfo(HL7Location loc, GenericStructure gs) {
+    private static Builder applyLocationInfo(Builder loc, GenericStructure gs) {
         if (gs instanceof HL7FieldSubcomponent) {
             HL7FieldSubcomponent fieldsubcomp = (HL7FieldSubcomponent)gs;
             loc.subcomponentIndexInComponent = fieldsubcomp.getParent().getFieldSubcomponents().indexOf(fieldsubcomp);
@@ -485,7 +573,7 @@ public class HL7Location {
      * @return RepeatingField position
      */
     public int getRepeatingFieldHL7Position() {
-        if(getSegmentName().equals("MSH")) {
+        if(getSegmentName().equalsIgnoreCase("MSH")) {
             if (repeatingFieldIndexInSegment != 0) {
                 return repeatingFieldIndexInSegment+1;
             } else {
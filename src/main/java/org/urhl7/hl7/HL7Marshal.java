@@ -0,0 +1,187 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.hl7;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.*;
+
+/**
+ * Helpers shared by the marshalTo() implementations of the HL7 structures.
+ * @author dmorgan
+ */
+final class HL7Marshal {
+    private static final int CHUNK_SIZE = 512;
+
+    private HL7Marshal() {}
+
+    /**
+     * Marshals a structure into a new String.
+     * @param structure the structure to marshal
+     * @param capacity the expected length, to size the builder with
+     * @return the marshalled structure
+     */
+    static String toString(GenericStructure structure, int capacity) {
+        StringBuilder sb = new StringBuilder(capacity);
+        try {
+            structure.marshalTo(sb);
+        } catch (IOException e) {
+            //a StringBuilder does not throw
+            throw new UncheckedIOException(e);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Marshals a structure straight into a ByteBuffer, encoding it in small chunks. Characters the charset cannot
+     * encode are replaced, as String.getBytes() does.
+     * @param structure the structure to marshal
+     * @param out the buffer to write to
+     * @param charset the charset to encode with
+     * @throws BufferOverflowException if out does not have room for the whole structure
+     */
+    static void encode(GenericStructure structure, ByteBuffer out, Charset charset) {
+        EncodingAppendable sink = new EncodingAppendable(out, charset);
+        try {
+            structure.marshalTo(sink);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        sink.finish();
+    }
+
+    /**
+     * An Appendable that passes everything on, remembering whether the last character appended was a marker.
+     */
+    static final class TrailingAppendable implements Appendable {
+        private final Appendable out;
+        private final char marker;
+        private boolean appended = false;
+        private boolean endsWithMarker = false;
+
+        TrailingAppendable(Appendable out, char marker) {
+            this.out = out;
+            this.marker = marker;
+        }
+
+        public Appendable append(CharSequence csq) throws IOException {
+            if (csq == null) {
+                csq = "null";
+            }
+            return append(csq, 0, csq.length());
+        }
+
+        public Appendable append(CharSequence csq, int start, int end) throws IOException {
+            if (csq == null) {
+                csq = "null";
+            }
+            if (end > start) {
+                out.append(csq, start, end);
+                appended = true;
+                endsWithMarker = csq.charAt(end-1) == marker;
+            }
+            return this;
+        }
+
+        public Appendable append(char c) throws IOException {
+            out.append(c);
+            appended = true;
+            endsWithMarker = c == marker;
+            return this;
+        }
+
+        /**
+         * Returns true if the output now ends with the marker.
+         * @param markerBefore true if the marker was appended just before this Appendable was used
+         * @return true if the output ends with the marker
+         */
+        boolean endsWithMarker(boolean markerBefore) {
+            return appended ? endsWithMarker : markerBefore;
+        }
+    }
+
+    /**
+     * An Appendable that encodes into a ByteBuffer through a small CharBuffer.
+     */
+    private static final class EncodingAppendable implements Appendable {
+        private final ByteBuffer out;
+        private final CharsetEncoder encoder;
+        private final CharBuffer chunk = CharBuffer.allocate(CHUNK_SIZE);
+
+        EncodingAppendable(ByteBuffer out, Charset charset) {
+            this.out = out;
+            this.encoder = charset.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+
+        public Appendable append(CharSequence csq) {
+            if (csq == null) {
+                csq = "null";
+            }
+            return append(csq, 0, csq.length());
+        }
+
+        public Appendable append(CharSequence csq, int start, int end) {
+            if (csq == null) {
+                csq = "null";
+            }
+            for(int i=start; i<end; i++) {
+                if (!chunk.hasRemaining()) {
+                    drain(false);
+                }
+                chunk.put(csq.charAt(i));
+            }
+            return this;
+        }
+
+        public Appendable append(char c) {
+            if (!chunk.hasRemaining()) {
+                drain(false);
+            }
+            chunk.put(c);
+            return this;
+        }
+
+        void finish() {
+            drain(true);
+            if (encoder.flush(out).isOverflow()) {
+                throw new BufferOverflowException();
+            }
+        }
+
+        private void drain(boolean endOfInput) {
+            chunk.flip();
+            if (encoder.encode(chunk, out, endOfInput).isOverflow()) {
+                throw new BufferOverflowException();
+            }
+            //keeps half of a surrogate pair for the next chunk
+            chunk.compact();
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.hl7;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A read-only view of a raw message, for code that only reads a few values and never changes the message. It
+ * looks values up with the same descriptors and results as HL7StructureHelper.get() and getAll(), but builds no
+ * tree. The view keeps a flat table of where each segment starts and ends, and HL7Scanner finds the values inside
+ * the segments that the location names. Each DataField it returns is a small window onto the text, whose data is
+ * unescaped when getData() is called.
+ * <br />
+ * The view reads the CharSequence it was given and does not copy it, so the text must not change while the view
+ * is in use. DataFields from a view cannot be changed; call toStructure() for a full HL7Structure that can.
+ * @author dmorgan
+ */
+public final class HL7MessageView {
+    private static final char SEGMENT_SEPARATOR = '\r';
+
+    private final CharSequence message;
+    private final HL7Delimiters delims;
+    private final String encodingCharacters;
+
+    //the segment table, segment i is [starts[i], ends[i]) and its name ends at nameEnds[i]
+    private int[] starts = new int[16];
+    private int[] ends = new int[16];
+    private int[] nameEnds = new int[16];
+    private int segmentCount = 0;
+
+    /**
+     * Creates a view of a raw message. The delimiters are read from the MSH segment at the start of the message.
+     * @param message the raw message
+     */
+    public HL7MessageView(CharSequence message) {
+        this.message = message;
+        this.delims = HL7Scanner.delimitersOf(message);
+        this.encodingCharacters = delims.getEncodingCharacters();
+
+        char fieldSep = delims.getFieldSeparator();
+        int length = message.length();
+        int segStart = 0;
+        while (segStart < length) {
+            int segEnd = HL7Scanner.indexOf(message, SEGMENT_SEPARATOR, segStart, length);
+            if (segmentCount == starts.length) {
+                starts = Arrays.copyOf(starts, segmentCount*2);
+                ends = Arrays.copyOf(ends, segmentCount*2);
+                nameEnds = Arrays.copyOf(nameEnds, segmentCount*2);
+            }
+            starts[segmentCount] = segStart;
+            ends[segmentCount] = segEnd;
+            nameEnds[segmentCount] = HL7Scanner.indexOf(message, fieldSep, segStart, segEnd);
+            segmentCount++;
+            segStart = segEnd + 1;
+        }
+    }
+
+    /**
+     * Retrieves the first data field at a specified location. If the data field does not exist, rather than erroring,
+     * it will return an NullField with no data.
+     * @param descriptor String description of location
+     * @return the first DataField that matches the descriptor
+     */
+    public DataField get(String descriptor) {
+        return get(HL7Location.parse(descriptor));
+    }
+
+    /**
+     * Retrieves the first data field at a compiled location. If the data field does not exist, rather than erroring,
+     * it will return an NullField with no data.
+     * @param path the compiled location of the data field
+     * @return the first DataField that matches the path
+     */
+    public DataField get(HL7Path path) {
+        return get(path.getLocation());
+    }
+
+    /**
+     * Retrieves the first data field at a specified location. If the data field does not exist, rather than erroring,
+     * it will return an NullField with no data.
+     * @param loc the location of the data field
+     * @return the first DataField that matches the location
+     */
+    public DataField get(HL7Location loc) {
+        HL7Scanner.Ranges found = find(loc, true);
+        if (found.size() == 0) {
+            return new NullField();
+        }
+        return new Value(found.start(0), found.end(0));
+    }
+
+    /**
+     * Retrieves all data fields matching a specified location, left to right, top to bottom. If the data field does
+     * not exist, rather than erroring, it will return an empty list.
+     * @param descriptor String description of location
+     * @return all DataFields that match the descriptor, or an empty list if none do
+     */
+    public List<DataField> getAll(String descriptor) {
+        return getAll(HL7Location.parse(descriptor));
+    }
+
+    /**
+     * Retrieves all data fields matching a compiled location, left to right, top to bottom. If the data field does
+     * not exist, rather than erroring, it will return an empty list.
+     * @param path the compiled location of the data field
+     * @return all DataFields that match the path, or an empty list if none do
+     */
+    public List<DataField> getAll(HL7Path path) {
+        return getAll(path.getLocation());
+    }
+
+    /**
+     * Retrieves all data fields matching a specified location, left to right, top to bottom. If the data field does
+     * not exist, rather than erroring, it will return an empty list.
+     * @param loc the location of the data fields
+     * @return all DataFields that match the location, or an empty list if none do
+     */
+    public List<DataField> getAll(HL7Location loc) {
+        HL7Scanner.Ranges found = find(loc, false);
+        List<DataField> all = new ArrayList<DataField>(found.size());
+        for(int i=0; i<found.size(); i++) {
+            all.add(new Value(found.start(i), found.end(i)));
+        }
+        return all;
+    }
+
+    //the ranges of the values at loc, in the segments the table says it names
+    private HL7Scanner.Ranges find(HL7Location loc, boolean firstOnly) {
+        HL7Scanner.Ranges found = new HL7Scanner.Ranges(firstOnly);
+        if (!loc.hasField()) {
+            return found;
+        }
+        char[] chars = delims.array();
+        String name = loc.getSegmentName();
+        int occurrence = 0;
+        for(int i=0; i<segmentCount; i++) {
+            if (!HL7Scanner.nameEquals(message, starts[i], nameEnds[i], name)) {
+                continue;
+            }
+            if (loc.isSegmentIndexImplied() || occurrence == loc.getSegmentIndex()) {
+                HL7Scanner.scanSegment(message, starts[i], ends[i], loc, chars, encodingCharacters, found);
+                if ((firstOnly && found.size() > 0) || !loc.isSegmentIndexImplied()) {
+                    break;
+                }
+            }
+            occurrence++;
+        }
+        return found;
+    }
+
+    /**
+     * Returns the number of segments in the message.
+     * @return the segment count
+     */
+    public int getSegmentCount() {
+        return segmentCount;
+    }
+
+    /**
+     * Returns the name of a segment.
+     * @param index the position of the segment, starting at 0
+     * @return the segment name, such as PID
+     */
+    public String getSegmentName(int index) {
+        if (index < 0 || index >= segmentCount) {
+            throw new IndexOutOfBoundsException("Segment " + index + " of " + segmentCount);
+        }
+        return message.subSequence(starts[index], nameEnds[index]).toString();
+    }
+
+    /**
+     * Returns the delimiters declared by the message.
+     * @return the delimiters
+     */
+    public HL7Delimiters getDelimiters() {
+        return delims;
+    }
+
+    /**
+     * Returns the raw message this is a view of.
+     * @return the message
+     */
+    public CharSequence getMessage() {
+        return message;
+    }
+
+    /**
+     * Builds a full HL7Structure of the message, for when it has to be changed. Segments are parsed the first time
+     * they are accessed, so this is cheap when only a few segments are touched.
+     * @return a new structure, unmarshalled with HL7ParseMode.LAZY
+     */
+    public HL7Structure toStructure() {
+        return toStructure(HL7ParseMode.LAZY);
+    }
+
+    /**
+     * Builds a full HL7Structure of the message, for when it has to be changed.
+     * @param mode the parsing engine to use
+     * @return a new structure
+     */
+    public HL7Structure toStructure(HL7ParseMode mode) {
+        HL7Structure structure = new HL7Structure(delims);
+        structure.unmarshal(message.toString(), mode);
+        return structure;
+    }
+
+    /**
+     * Returns the raw message.
+     * @return the message as a String
+     */
+    @Override
+    public String toString() {
+        return message.toString();
+    }
+
+    /**
+     * A read-only DataField over one range of the message.
+     */
+    private final class Value implements DataField {
+        private final int start;
+        private final int end;
+
+        Value(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        public String getData() {
+            return HL7Scanner.value(message, start, end, delims.array());
+        }
+
+        public void setData(String data) {
+            throw new UnsupportedOperationException("A HL7MessageView is read-only, use toStructure() to change the message");
+        }
+
+        public String marshal() {
+            return message.subSequence(start, end).toString();
+        }
+
+        public void unmarshal(String data) {
+            throw new UnsupportedOperationException("A HL7MessageView is read-only, use toStructure() to change the message");
+        }
+
+        public HL7MessageView getParent() {
+            return HL7MessageView.this;
+        }
+
+        @Override
+        public String toString() {
+            return marshal();
+        }
+    }
+}
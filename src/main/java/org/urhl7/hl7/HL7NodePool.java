@@ -0,0 +1,149 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.hl7;
+
+import java.util.ArrayDeque;
+import java.util.List;
+
+/**
+ * Per-thread pools of the nodes of recycled messages, used by {@link HL7Structure#reload(String)}. The nodes of the
+ * old message are cleared and put into the pool of the thread that reloads, and HL7Parser builds the new message
+ * from that same pool. A pool keeps a bounded number of each kind of node, so one very large message does not hold
+ * on to memory for the life of the thread.
+ * @author dmorgan
+ */
+final class HL7NodePool {
+    //the most nodes of each kind a thread keeps
+    static final int MAX_POOLED = 4096;
+
+    private static final ThreadLocal<HL7NodePool> POOLS = new ThreadLocal<HL7NodePool>() {
+        @Override
+        protected HL7NodePool initialValue() {
+            return new HL7NodePool();
+        }
+    };
+
+    private final ArrayDeque<HL7Segment> segments = new ArrayDeque<HL7Segment>();
+    private final ArrayDeque<HL7RepeatingField> repeatingFields = new ArrayDeque<HL7RepeatingField>();
+    private final ArrayDeque<HL7Field> fields = new ArrayDeque<HL7Field>();
+    private final ArrayDeque<HL7FieldComponent> components = new ArrayDeque<HL7FieldComponent>();
+    private final ArrayDeque<HL7FieldSubcomponent> subcomponents = new ArrayDeque<HL7FieldSubcomponent>();
+
+    private HL7NodePool() {
+    }
+
+    /**
+     * Returns the pool of the calling thread.
+     * @return the pool
+     */
+    static HL7NodePool get() {
+        return POOLS.get();
+    }
+
+    /**
+     * Clears every node under the segments and puts it into this pool. Segments that were never parsed have no
+     * nodes under them.
+     * @param old the segments of the old message
+     */
+    void recycle(List<HL7Segment> old) {
+        for(HL7Segment segment : old) {
+            if (segment.isParsed()) {
+                for(HL7RepeatingField rf : segment.repeatingFieldList()) {
+                    recycle(rf);
+                }
+            }
+            segment.clear();
+            offer(segments, segment);
+        }
+    }
+
+    private void recycle(HL7RepeatingField rf) {
+        for(HL7Field field : rf.fieldList()) {
+            for(HL7FieldComponent comp : field.componentList()) {
+                for(HL7FieldSubcomponent subcomp : comp.subcomponentList()) {
+                    subcomp.clear();
+                    offer(subcomponents, subcomp);
+                }
+                comp.clear();
+                offer(components, comp);
+            }
+            field.clear();
+            offer(fields, field);
+        }
+        rf.clear();
+        offer(repeatingFields, rf);
+    }
+
+    private static <T> void offer(ArrayDeque<T> pool, T node) {
+        if (pool.size() < MAX_POOLED) {
+            pool.push(node);
+        }
+    }
+
+    HL7Segment segment(HL7Structure parent) {
+        HL7Segment segment = segments.poll();
+        if (segment == null) {
+            return new HL7Segment(parent);
+        }
+        segment.reuse(parent);
+        return segment;
+    }
+
+    HL7RepeatingField repeatingField(HL7Segment parent) {
+        HL7RepeatingField rf = repeatingFields.poll();
+        if (rf == null) {
+            return new HL7RepeatingField(parent);
+        }
+        rf.reuse(parent);
+        return rf;
+    }
+
+    HL7Field field(HL7RepeatingField parent) {
+        HL7Field field = fields.poll();
+        if (field == null) {
+            return new HL7Field(parent);
+        }
+        field.reuse(parent);
+        return field;
+    }
+
+    HL7FieldComponent component(HL7Field parent) {
+        HL7FieldComponent comp = components.poll();
+        if (comp == null) {
+            return new HL7FieldComponent(parent);
+        }
+        comp.reuse(parent);
+        return comp;
+    }
+
+    HL7FieldSubcomponent subcomponent(HL7FieldComponent parent) {
+        HL7FieldSubcomponent subcomp = subcomponents.poll();
+        if (subcomp == null) {
+            return new HL7FieldSubcomponent(parent);
+        }
+        subcomp.reuse(parent);
+        return subcomp;
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.hl7;
+
+/**
+ * Enumeration to specify which parsing engine is used when unmarshalling a String into an HL7Structure.
+ * @author dmorgan
+ */
+public enum HL7ParseMode {
+    /**
+     * The original parser. Each level of the structure splits the String it was handed and passes the pieces
+     * down to the level below it.
+     */
+    STANDARD,
+    /**
+     * A parser that walks the message once as a char array and builds the same structure as STANDARD, without
+     * creating the intermediate Strings and arrays for every level.
+     */
+    SINGLE_PASS,
+    /**
+     * Only splits the message into segments. A segment keeps its slice of the original message and is parsed
+     * the first time its fields are accessed, either directly or through the HL7StructureHelper. Segments that
+     * are never accessed are marshalled back as the original slice.
+     */
+    LAZY,
+    /**
+     * Parses like SINGLE_PASS, but every field, component and subcomponent keeps the range it was parsed from
+     * in the original message instead of its own String. A String is made for a value each time it is read
+     * through getData() or marshal(), and only kept once the value is changed. Marshalling the whole structure
+     * copies the ranges straight out of the message, and while it is unchanged the message itself is kept as its
+     * marshalled form. Segments and repeating fields do cache their own marshal(), so calling it on each of them
+     * keeps a copy of their text. Uses far less heap for messages that are kept but seldom read, at the cost of
+     * copying a value again every time it is read.
+     */
+    COMPACT
+
+}
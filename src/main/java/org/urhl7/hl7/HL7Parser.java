@@ -0,0 +1,348 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.hl7;
+
+import java.util.ArrayList;
+
+/**
+ * Single pass parser that builds an HL7Structure from a String. The message is copied once into a char array, and
+ * every delimiter is found by walking that array from left to right. Only the Strings that are stored in the
+ * resulting structure are created. The tree that is built is identical to the one built by
+ * {@link HL7Structure#unmarshal(String)}.
+ * <br />
+ * The parser can also split a message into unparsed segments only, leaving each HL7Segment to parse itself
+ * the first time its fields are needed.
+ * @author dmorgan
+ */
+final class HL7Parser {
+    private static final char SEGMENT_SEPARATOR = '\r';
+
+    private final char[] buf;
+    //the message, when leaves keep a range of it rather than their own String
+    private final String source;
+    //where nodes come from when a structure is reloaded, otherwise null
+    private final HL7NodePool nodes;
+    private final char[] delims;
+    private final String encodingCharacters;
+    private final char fieldSep;
+    private final char compSep;
+    private final char repSep;
+    private final char subSep;
+
+    private int pos = 0;
+
+    private HL7Parser(char[] buf, HL7Delimiters delimiters, String source, HL7NodePool nodes) {
+        this.buf = buf;
+        this.source = source;
+        this.nodes = nodes;
+        this.delims = delimiters.array();
+        this.encodingCharacters = delimiters.getEncodingCharacters();
+        this.fieldSep = delimiters.getFieldSeparator();
+        this.compSep = delimiters.getComponentSeparator();
+        this.repSep = delimiters.getRepetitionSeparator();
+        this.subSep = delimiters.getSubcomponentSeparator();
+    }
+
+    /**
+     * Parses the data into the provided structure, replacing any segments it already has.
+     * @param structure the structure to populate
+     * @param data the String representation of the message, retained by the structure
+     */
+    static void parseInto(HL7Structure structure, String data) {
+        parseInto(structure, data, false);
+    }
+
+    /**
+     * Parses the data into the provided structure, replacing any segments it already has. When compact, each
+     * field, component and subcomponent keeps a range of the data instead of its own String.
+     * @param structure the structure to populate
+     * @param data the String representation of the message, retained by the structure
+     * @param compact true to keep ranges of the data
+     */
+    static void parseInto(HL7Structure structure, String data, boolean compact) {
+        parseInto(structure, data, compact, null);
+    }
+
+    /**
+     * Parses the data into the provided structure, taking every node from the pool.
+     * @param structure the structure to populate
+     * @param data the String representation of the message, retained by the structure
+     * @param nodes the pool of the calling thread
+     */
+    static void parseInto(HL7Structure structure, String data, HL7NodePool nodes) {
+        parseInto(structure, data, false, nodes);
+    }
+
+    private static void parseInto(HL7Structure structure, String data, boolean compact, HL7NodePool nodes) {
+        HL7Parser parser = new HL7Parser(data.toCharArray(), structure.getDelimiters(), compact ? data : null, nodes);
+        ArrayList<HL7Segment> segments = new ArrayList<HL7Segment>();
+
+        if (parser.buf.length == 0) {
+            //same as "".split("\r"), a single empty segment
+            segments.add(parser.parseSegment(parser.segment(structure), 0, 0));
+        } else {
+            //trailing empty segments are dropped, same as String.split
+            int end = parser.buf.length;
+            while (end > 0 && parser.buf[end-1] == SEGMENT_SEPARATOR) {
+                end--;
+            }
+
+            int start = 0;
+            while (start < end) {
+                int stop = start;
+                while (stop < end && parser.buf[stop] != SEGMENT_SEPARATOR) {
+                    stop++;
+                }
+                segments.add(parser.parseSegment(parser.segment(structure), start, stop));
+                start = stop + 1;
+            }
+        }
+
+        structure.load(data, segments, false);
+    }
+
+    /**
+     * Splits the data into segments without parsing them. Each segment keeps a reference to the data and its own
+     * boundaries, and is parsed by {@link #parseSegment(HL7Segment, String, int, int)} when it is first needed.
+     * @param structure the structure to populate
+     * @param data the String representation of the message, retained by the structure
+     */
+    static void parseLazyInto(HL7Structure structure, String data) {
+        ArrayList<HL7Segment> segments = new ArrayList<HL7Segment>();
+
+        if (data.length() == 0) {
+            HL7Segment segment = new HL7Segment(structure);
+            segment.loadUnparsed(data, 0, 0);
+            segments.add(segment);
+        } else {
+            int end = data.length();
+            while (end > 0 && data.charAt(end-1) == SEGMENT_SEPARATOR) {
+                end--;
+            }
+
+            int start = 0;
+            while (start < end) {
+                int stop = data.indexOf(SEGMENT_SEPARATOR, start);
+                if (stop < 0 || stop > end) {
+                    stop = end;
+                }
+                HL7Segment segment = new HL7Segment(structure);
+                segment.loadUnparsed(data, start, stop);
+                segments.add(segment);
+                start = stop + 1;
+            }
+        }
+
+        structure.load(data, segments, true);
+    }
+
+    /**
+     * Parses a portion of the source String into the provided segment, replacing any fields it already has.
+     * @param segment the segment to populate
+     * @param source the String holding the segment
+     * @param start index of the first char of the segment
+     * @param end index after the last char of the segment
+     */
+    static void parseSegment(HL7Segment segment, String source, int start, int end) {
+        char[] chars = new char[end - start];
+        source.getChars(start, end, chars, 0);
+        new HL7Parser(chars, segment.getDelimiters(), null, null).parseSegment(segment, 0, chars.length);
+    }
+
+    private HL7Segment parseSegment(HL7Segment segment, int start, int end) {
+        ArrayList<HL7RepeatingField> fields = nodes != null ? segment.repeatingFieldList() : new ArrayList<HL7RepeatingField>();
+
+        pos = start;
+        while (true) {
+            fields.add(parseRepeatingField(segment, end));
+            if (pos < end && buf[pos] == fieldSep) {
+                pos++;
+            } else {
+                break;
+            }
+        }
+
+        segment.load(fields);
+        return segment;
+    }
+
+    private HL7RepeatingField parseRepeatingField(HL7Segment segment, int end) {
+        HL7RepeatingField rf = repeatingField(segment);
+        ArrayList<HL7Field> fields = nodes != null ? rf.fieldList() : new ArrayList<HL7Field>();
+
+        if (isEncodingCharacters(end)) {
+            //MSH-2, never broken up
+            HL7Field field = field(rf);
+            field.load(encodingCharacters, null, true);
+            fields.add(field);
+            pos += delims.length-1;
+        } else {
+            while (true) {
+                fields.add(parseField(rf, end));
+                if (pos < end && buf[pos] == repSep) {
+                    pos++;
+                } else {
+                    break;
+                }
+            }
+        }
+
+        rf.load(fields);
+        return rf;
+    }
+
+    private HL7Field parseField(HL7RepeatingField rf, int end) {
+        HL7Field field = field(rf);
+        int start = pos;
+        int stop = scan(start, end);
+
+        if (stop == end || buf[stop] == fieldSep || buf[stop] == repSep) {
+            load(field, start, stop, null);
+            pos = stop;
+            return field;
+        }
+
+        ArrayList<HL7FieldComponent> components = nodes != null ? field.componentList() : new ArrayList<HL7FieldComponent>();
+        int compStart = start;
+        int scanFrom = stop;
+        while (true) {
+            components.add(parseComponent(field, end, compStart, scanFrom));
+            if (pos < end && buf[pos] == compSep) {
+                pos++;
+                compStart = pos;
+                scanFrom = pos;
+            } else {
+                break;
+            }
+        }
+
+        load(field, start, pos, components);
+        return field;
+    }
+
+    //[start, scanFrom) is already known to contain no delimiters
+    private HL7FieldComponent parseComponent(HL7Field field, int end, int start, int scanFrom) {
+        HL7FieldComponent comp = component(field);
+        int stop = scan(scanFrom, end);
+
+        if (stop == end || buf[stop] != subSep) {
+            load(comp, start, stop, null);
+            pos = stop;
+            return comp;
+        }
+
+        ArrayList<HL7FieldSubcomponent> subcomponents = nodes != null ? comp.subcomponentList() : new ArrayList<HL7FieldSubcomponent>();
+        int subStart = start;
+        while (true) {
+            HL7FieldSubcomponent subcomp = subcomponent(comp);
+            load(subcomp, subStart, stop);
+            subcomponents.add(subcomp);
+            if (stop < end && buf[stop] == subSep) {
+                subStart = stop + 1;
+                stop = scan(subStart, end);
+            } else {
+                break;
+            }
+        }
+
+        load(comp, start, stop, subcomponents);
+        pos = stop;
+        return comp;
+    }
+
+    private HL7Segment segment(HL7Structure structure) {
+        return nodes != null ? nodes.segment(structure) : new HL7Segment(structure);
+    }
+
+    private HL7RepeatingField repeatingField(HL7Segment segment) {
+        return nodes != null ? nodes.repeatingField(segment) : new HL7RepeatingField(segment);
+    }
+
+    private HL7Field field(HL7RepeatingField rf) {
+        return nodes != null ? nodes.field(rf) : new HL7Field(rf);
+    }
+
+    private HL7FieldComponent component(HL7Field field) {
+        return nodes != null ? nodes.component(field) : new HL7FieldComponent(field);
+    }
+
+    private HL7FieldSubcomponent subcomponent(HL7FieldComponent comp) {
+        return nodes != null ? nodes.subcomponent(comp) : new HL7FieldSubcomponent(comp);
+    }
+
+    private void load(HL7Field field, int start, int end, ArrayList<HL7FieldComponent> components) {
+        if (source != null) {
+            field.load(source, start, end, components);
+        } else {
+            field.load(new String(buf, start, end - start), components, false);
+        }
+    }
+
+    private void load(HL7FieldComponent comp, int start, int end, ArrayList<HL7FieldSubcomponent> subcomponents) {
+        if (source != null) {
+            comp.load(source, start, end, subcomponents);
+        } else {
+            comp.load(new String(buf, start, end - start), subcomponents);
+        }
+    }
+
+    private void load(HL7FieldSubcomponent subcomp, int start, int end) {
+        if (source != null) {
+            subcomp.load(source, start, end);
+        } else {
+            subcomp.unmarshal(new String(buf, start, end - start));
+        }
+    }
+
+    //finds the next field, repetition, component or subcomponent delimiter
+    private int scan(int from, int end) {
+        int i = from;
+        while (i < end) {
+            char c = buf[i];
+            if (c == fieldSep || c == repSep || c == compSep || c == subSep) {
+                return i;
+            }
+            i++;
+        }
+        return end;
+    }
+
+    //is the repeating field starting at pos exactly the encoding characters (delims without the field delimiter)
+    private boolean isEncodingCharacters(int end) {
+        int len = delims.length-1;
+        if (pos + len > end) {
+            return false;
+        }
+        if (pos + len != end && buf[pos + len] != fieldSep) {
+            return false;
+        }
+        for(int i=0; i<len; i++) {
+            if (buf[pos + i] != delims[i+1]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.hl7;
+
+import java.util.List;
+
+/**
+ * A compiled location. The descriptor is parsed once, and everything the HL7StructureHelper needs to find the
+ * location in its index is computed up front, so the same HL7Path can be evaluated against any number of
+ * HL7Structures without doing any String work. HL7Paths are immutable and can be shared between threads.
+ * <br />
+ * <pre>
+ * HL7Path mrn = HL7Path.compile("PID-3.1");
+ * for(HL7Structure message : messages) {
+ *     String value = mrn.get(message).getData();
+ * }
+ * </pre>
+ * @author dmorgan
+ */
+public final class HL7Path {
+    private final HL7Location location;
+
+    /**
+     * Index key of the location, or null if the location is a segment only.
+     */
+    final HL7StructureHelper.IndexKey key;
+
+    private HL7Path(HL7Location location) {
+        this.location = location;
+        this.key = location.hasField() ? new HL7StructureHelper.IndexKey(location) : null;
+    }
+
+    /**
+     * Compiles a String descriptor, such as PID-3 or OBX[2]-5.1
+     * @param descriptor String description of location
+     * @return the compiled location
+     * @see HL7Location#parse(String)
+     */
+    public static HL7Path compile(String descriptor) {
+        return new HL7Path(HL7Location.parse(descriptor));
+    }
+
+    /**
+     * Compiles an HL7Location
+     * @param location the location
+     * @return the compiled location
+     */
+    public static HL7Path compile(HL7Location location) {
+        return new HL7Path(location);
+    }
+
+    /**
+     * Returns the HL7Location this path was compiled from
+     * @return the location
+     */
+    public HL7Location getLocation() {
+        return location;
+    }
+
+    /**
+     * Retrieves the first data field at this path in the structure. If the data field does not exist, rather than
+     * erroring, it will return an NullField with no data.
+     * @param structure the structure to look in
+     * @return the first DataField at this path
+     */
+    public DataField get(HL7Structure structure) {
+        return structure.helper().get(this);
+    }
+
+    /**
+     * Retrieves all data fields at this path in the structure, left to right, top to bottom.
+     * @param structure the structure to look in
+     * @return all DataField objects at this path, or an empty list if there are none
+     */
+    public List<DataField> getAll(HL7Structure structure) {
+        return structure.helper().getAll(this);
+    }
+
+    /**
+     * Determine if the structure has a data field or segment at this path
+     * @param structure the structure to look in
+     * @return if the data field or segment exists
+     */
+    public boolean has(HL7Structure structure) {
+        return structure.helper().has(this);
+    }
+
+    /**
+     * This path in String form
+     * @return the fully qualified location of this path
+     */
+    @Override
+    public String toString() {
+        return location.toString();
+    }
+}
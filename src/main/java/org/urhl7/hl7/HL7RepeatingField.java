@@ -24,6 +24,7 @@
 
 package org.urhl7.hl7;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import org.urhl7.utils.StringHelper;
@@ -35,15 +36,17 @@ import org.urhl7.utils.StringHelper;
 public class HL7RepeatingField implements GenericStructure, DelimitedStructure {
     private ArrayList<HL7Field> fields = new ArrayList<HL7Field>();;
     //private String data;
-    private char[] delims;
+    private HL7Delimiters delims;
     private HL7Segment parent;
+    //the marshalled form, kept until this repeating field or anything below it changes
+    private String marshalled = null;
 
     /**
      * Creates a HL7Field object that understands the specified delimiters.
      * @param delims
      */
     public HL7RepeatingField(char[] delims) {
-        this.delims = delims;
+        this.delims = HL7Delimiters.of(delims);
     }
 
     /**
@@ -51,16 +54,26 @@ public class HL7RepeatingField implements GenericStructure, DelimitedStructure {
      * @param parent
      */
     public HL7RepeatingField(HL7Segment parent) {
-        this.delims = parent.getDelims();
+        this.delims = parent.getDelimiters();
         setParent(parent);
     }
 
     /**
-     * Returns the underlying array list containing all HL7Fields for this structure
+     * Returns the underlying array list containing all HL7Fields for this structure. Changes made through the list
+     * are the same as the matching addField and removeField calls.
      * @return list of HL7Fields
      */
     public List<HL7Field> getFields() {
-        return fields;
+        return new HL7ChildList<HL7Field>(fields) {
+            void adopt(HL7Field field) {
+                field.setParent(HL7RepeatingField.this);
+                field.changeDelims(getDelimiters());
+            }
+
+            void changed() {
+                setDirty();
+            }
+        };
     }
 
     /**
@@ -90,7 +103,7 @@ public class HL7RepeatingField implements GenericStructure, DelimitedStructure {
     public boolean addField(HL7Field field) {
 
         field.setParent(this);
-        field.changeDelims(getDelims());
+        field.changeDelims(getDelimiters());
         boolean suc =  fields.add(field);
         //this.data = marshal();
 
@@ -107,7 +120,7 @@ public class HL7RepeatingField implements GenericStructure, DelimitedStructure {
 
 
         field.setParent(this);
-        field.changeDelims(getDelims());
+        field.changeDelims(getDelimiters());
         fields.add(index, field);
         //this.data = marshal();
         setDirty();
@@ -151,7 +164,7 @@ public class HL7RepeatingField implements GenericStructure, DelimitedStructure {
      */
     public HL7Field setField(int pos, HL7Field field) {
         field.setParent(this);
-        field.changeDelims(getDelims());
+        field.changeDelims(getDelimiters());
         HL7Field old = fields.set(pos, field);
         old.setParent(null);
 
@@ -166,16 +179,9 @@ public class HL7RepeatingField implements GenericStructure, DelimitedStructure {
      */
     public void unmarshal(String data) {
         //this.data = data;
-
-
-        char[] smallerDelims = new char[delims.length-1];
-        for(int i=1; i<delims.length; i++) {
-            smallerDelims[i-1] = delims[i];
-
-        }
         String[] quickfields;
-        if(!data.equals(new String(smallerDelims))) {
-            quickfields = StringHelper.explode(data, delims[2]+"");
+        if(!delims.isEncodingCharacters(data)) {
+            quickfields = StringHelper.explode(data, delims.getRepetitionSeparator()+"");
         } else {
             quickfields = new String[1];
             quickfields[0] = data;
@@ -193,20 +199,45 @@ public class HL7RepeatingField implements GenericStructure, DelimitedStructure {
         
     }
 
+    /**
+     * Replaces the fields of this repeating field with fields built by HL7Parser.
+     * @param parsedFields the fields, with this repeating field as their parent
+     */
+    void load(ArrayList<HL7Field> parsedFields) {
+        fields = parsedFields;
+        setDirty();
+    }
+
     /**
      * Returns a string representation of this and the underlying data structures
      * @return a String representation of this structure
      */
     public String marshal() {
-        ArrayList<String> tfields = new ArrayList<String>();
-
-        for(HL7Field inField : fields) {
-            String field = inField.marshal();
-            tfields.add(field);
+        if (fields.size() == 1) {
+            return String.valueOf(fields.get(0).marshal());
         }
+        if (marshalled == null) {
+            marshalled = HL7Marshal.toString(this, 16);
+        }
+        return marshalled;
+    }
 
-        String[] sFields = tfields.toArray(new String[tfields.size()]);
-        return StringHelper.implode(sFields, delims[2]+"");
+    /**
+     * Marshals this repeating field straight into an Appendable.
+     * @param out the Appendable to write to
+     * @throws IOException if out throws
+     */
+    public void marshalTo(Appendable out) throws IOException {
+        if (marshalled != null) {
+            out.append(marshalled);
+            return;
+        }
+        for(int i=0; i<fields.size(); i++) {
+            if (i > 0) {
+                out.append(delims.getRepetitionSeparator());
+            }
+            fields.get(i).marshalTo(out);
+        }
     }
 
     /**
@@ -231,6 +262,14 @@ public class HL7RepeatingField implements GenericStructure, DelimitedStructure {
      * @return delimiter array
      */
     public char[] getDelims() {
+        return delims.toCharArray();
+    }
+
+    /**
+     * Returns the shared, immutable delimiter set for this data object.
+     * @return the delimiters
+     */
+    public HL7Delimiters getDelimiters() {
         return delims;
     }
 
@@ -239,7 +278,19 @@ public class HL7RepeatingField implements GenericStructure, DelimitedStructure {
      * @param delims the delimiter set to use
      */
     public void changeDelims(char[] delims) {
+        changeDelims(HL7Delimiters.of(delims));
+    }
+
+    /**
+     * Changes the delimiter set for this and all child objects
+     * @param delims the delimiter set to use
+     */
+    public void changeDelims(HL7Delimiters delims) {
+        if (this.delims.equals(delims)) {
+            return;
+        }
         this.delims = delims;
+        invalidate();
         for(HL7Field field : fields) {
             field.changeDelims(delims);
         }
@@ -254,9 +305,47 @@ public class HL7RepeatingField implements GenericStructure, DelimitedStructure {
         return marshal();
     }
 
+    /**
+     * Returns the list the fields of this repeating field are kept in, for HL7Parser to fill when this
+     * repeating field came from HL7NodePool.
+     * @return the list of fields
+     */
+    ArrayList<HL7Field> fieldList() {
+        return fields;
+    }
+
+    /**
+     * Clears this repeating field as it goes into HL7NodePool, so it holds on to nothing from its old message.
+     */
+    void clear() {
+        fields.clear();
+        parent = null;
+        marshalled = null;
+    }
+
+    /**
+     * Attaches this repeating field, taken from HL7NodePool, to a new parent.
+     * @param parent the segment it is parsed into
+     */
+    void reuse(HL7Segment parent) {
+        this.delims = parent.getDelimiters();
+        this.parent = parent;
+    }
+
+    /**
+     * Drops the cached marshalled form of this repeating field and every ancestor.
+     */
+    void invalidate() {
+        marshalled = null;
+        if (parent != null) {
+            parent.invalidate();
+        }
+    }
+
     private void setDirty() {
-        if (parent != null && parent.getParent() != null) {
-            parent.getParent().needsRecache = true;
+        invalidate();
+        if (parent != null) {
+            parent.setDirty();
         }
     }
 
@@ -0,0 +1,355 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.hl7;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.urhl7.utils.HL7Escape;
+
+/**
+ * HL7Scanner reads the values at a few HL7Locations straight out of the raw text of a message, without building an
+ * HL7Structure. Only the segments named by the locations are looked at, and only the delimiters up to the requested
+ * field are scanned, so it is much cheaper than parsing when you need to decide whether a message is worth parsing.
+ * <br />
+ * Values are found and unescaped the same way HL7StructureHelper finds them: scan(message, loc) returns what
+ * HL7.structure(message).get(loc).getData() would, or null where get() would return a NullField, and scanAll
+ * matches getAll(). Delimiters are read from the MSH segment at the start of the message.
+ * @author dmorgan
+ */
+public final class HL7Scanner {
+    private static final char SEGMENT_SEPARATOR = '\r';
+
+    private HL7Scanner() {}
+
+    /**
+     * Returns the first value at a location, top to bottom, left to right.
+     * @param message the raw message
+     * @param location the location of the value
+     * @return the unescaped value, or null if the message has nothing at that location
+     */
+    public static String scan(CharSequence message, HL7Location location) {
+        return scan(message, new HL7Location[] {location})[0];
+    }
+
+    /**
+     * Returns the first value at a location, top to bottom, left to right.
+     * @param message the raw message
+     * @param location the location of the value, for example MSH-9.1 or PID-3
+     * @return the unescaped value, or null if the message has nothing at that location
+     */
+    public static String scan(CharSequence message, String location) {
+        return scan(message, HL7Location.parse(location));
+    }
+
+    /**
+     * Returns the first value at each of several locations, in a single pass over the message.
+     * @param message the raw message
+     * @param locations the locations of the values
+     * @return the unescaped values, in the same order as the locations, with null where the message has nothing
+     */
+    public static String[] scan(CharSequence message, HL7Location[] locations) {
+        String[] first = new String[locations.length];
+        scan(message, locations, first, null);
+        return first;
+    }
+
+    /**
+     * Returns every value at a location, top to bottom, left to right.
+     * @param message the raw message
+     * @param location the location of the values
+     * @return the unescaped values, or an empty list if the message has nothing at that location
+     */
+    public static List<String> scanAll(CharSequence message, HL7Location location) {
+        List<String> all = new ArrayList<String>();
+        scan(message, new HL7Location[] {location}, null, all);
+        return all;
+    }
+
+    /**
+     * Returns every value at a location, top to bottom, left to right.
+     * @param message the raw message
+     * @param location the location of the values, for example OBX-5
+     * @return the unescaped values, or an empty list if the message has nothing at that location
+     */
+    public static List<String> scanAll(CharSequence message, String location) {
+        return scanAll(message, HL7Location.parse(location));
+    }
+
+    /**
+     * Returns the delimiters declared by the MSH segment at the start of a message, the same way HL7.structure() reads
+     * them, or the default delimiters if the message is too short to declare any.
+     * @param message the raw message
+     * @return the delimiters
+     */
+    public static char[] delimiters(CharSequence message) {
+        if (message.length() < 8) {
+            return new char[] {'|', '^', '~', '\\', '&'};
+        }
+        char[] delims = new char[5];
+        for(int i=0; i<5; i++) {
+            delims[i] = message.charAt(3 + i);
+        }
+        return delims;
+    }
+
+    //either fills first (one value per location) or all (every value of locations[0])
+    private static void scan(CharSequence message, HL7Location[] locations, String[] first, List<String> all) {
+        HL7Delimiters delimiters = delimitersOf(message);
+        char[] delims = delimiters.array();
+        String encodingCharacters = delimiters.getEncodingCharacters();
+        Ranges found = new Ranges(first != null);
+
+        int[] occurrences = new int[locations.length];
+        boolean[] done = new boolean[locations.length];
+        int remaining = 0;
+        for(int i=0; i<locations.length; i++) {
+            done[i] = !locations[i].hasField();
+            if (!done[i]) {
+                remaining++;
+            }
+        }
+
+        int length = message.length();
+        int segStart = 0;
+        while (segStart < length && remaining > 0) {
+            int segEnd = indexOf(message, SEGMENT_SEPARATOR, segStart, length);
+            int nameEnd = indexOf(message, delims[0], segStart, segEnd);
+
+            for(int i=0; i<locations.length; i++) {
+                HL7Location loc = locations[i];
+                if (done[i] || !nameEquals(message, segStart, nameEnd, loc.getSegmentName())) {
+                    continue;
+                }
+                int occurrence = occurrences[i]++;
+                if (!loc.isSegmentIndexImplied() && occurrence != loc.getSegmentIndex()) {
+                    continue;
+                }
+
+                found.clear();
+                scanSegment(message, segStart, segEnd, loc, delims, encodingCharacters, found);
+                if (first != null && found.size() > 0) {
+                    first[i] = value(message, found.start(0), found.end(0), delims);
+                } else if (all != null) {
+                    for(int k=0; k<found.size(); k++) {
+                        all.add(value(message, found.start(k), found.end(k), delims));
+                    }
+                }
+                if ((found.size() > 0 && first != null) || !loc.isSegmentIndexImplied()) {
+                    done[i] = true;
+                    remaining--;
+                }
+            }
+            segStart = segEnd + 1;
+        }
+    }
+
+    /**
+     * Returns the delimiters of a message, or the standard ones if it is too short to declare any.
+     * @param message the raw message
+     * @return the shared delimiter set
+     */
+    static HL7Delimiters delimitersOf(CharSequence message) {
+        return message.length() < 8 ? HL7Delimiters.STANDARD : HL7Delimiters.of(message, 3, 8);
+    }
+
+    /**
+     * Finds the ranges of a location's values inside one segment.
+     * @param message the raw message
+     * @param segStart index of the first char of the segment
+     * @param segEnd index after the last char of the segment
+     * @param loc the location, already known to name this segment
+     * @param delims the delimiters of the message
+     * @param encodingCharacters the encoding characters of the message
+     * @param found receives the range of every value found, and says when to stop
+     */
+    static void scanSegment(CharSequence message, int segStart, int segEnd, HL7Location loc, char[] delims,
+                            String encodingCharacters, Ranges found) {
+        int rfStart = segStart;
+        for(int k=0; k<loc.getRepeatingFieldIndex(); k++) {
+            int next = indexOf(message, delims[0], rfStart, segEnd);
+            if (next == segEnd) {
+                return;
+            }
+            rfStart = next + 1;
+        }
+        int rfEnd = indexOf(message, delims[0], rfStart, segEnd);
+
+        //the encoding characters are never broken up
+        boolean encodingField = regionEquals(message, rfStart, rfEnd, encodingCharacters);
+
+        int fieldStart = rfStart;
+        for(int fieldIdx=0; fieldStart <= rfEnd; fieldIdx++) {
+            int fieldEnd = encodingField ? rfEnd : indexOf(message, delims[2], fieldStart, rfEnd);
+
+            if (loc.isFieldIndexImplied() || fieldIdx == loc.getFieldIndex()) {
+                if (scanField(message, fieldStart, fieldEnd, loc, delims, encodingField, found)) {
+                    return;
+                }
+                if (!loc.isFieldIndexImplied()) {
+                    return;
+                }
+            }
+            fieldStart = fieldEnd + 1;
+        }
+    }
+
+    //returns true when found wants no more values
+    private static boolean scanField(CharSequence message, int start, int end, HL7Location loc, char[] delims,
+                                     boolean encodingField, Ranges found) {
+        if (!loc.hasComponent()) {
+            return found.add(start, end);
+        }
+        if (encodingField || (indexOf(message, delims[1], start, end) == end && indexOf(message, delims[4], start, end) == end)) {
+            //a base field has no components
+            return false;
+        }
+
+        int compStart = start;
+        for(int k=0; k<loc.getComponentIndex(); k++) {
+            int next = indexOf(message, delims[1], compStart, end);
+            if (next == end) {
+                return false;
+            }
+            compStart = next + 1;
+        }
+        int compEnd = indexOf(message, delims[1], compStart, end);
+
+        if (!loc.hasSubcomponent()) {
+            return found.add(compStart, compEnd);
+        }
+        if (indexOf(message, delims[4], compStart, compEnd) == compEnd) {
+            //a base component has no subcomponents
+            return false;
+        }
+
+        int subStart = compStart;
+        for(int k=0; k<loc.getSubcomponentIndex(); k++) {
+            int next = indexOf(message, delims[4], subStart, compEnd);
+            if (next == compEnd) {
+                return false;
+            }
+            subStart = next + 1;
+        }
+        return found.add(subStart, indexOf(message, delims[4], subStart, compEnd));
+    }
+
+    /**
+     * Returns the unescaped value of a range of the message.
+     * @param message the raw message
+     * @param start index of the first char of the value
+     * @param end index after the last char of the value
+     * @param delims the delimiters of the message
+     * @return the unescaped value
+     */
+    static String value(CharSequence message, int start, int end, char[] delims) {
+        if (indexOf(message, delims[3], start, end) == end) {
+            return message.subSequence(start, end).toString();
+        }
+        StringBuilder sb = new StringBuilder(end - start);
+        HL7Escape.unescape(delims, message, start, end, sb);
+        return sb.toString();
+    }
+
+    //position of c in [from, to), or to if it is not there
+    static int indexOf(CharSequence message, char c, int from, int to) {
+        for(int i=from; i<to; i++) {
+            if (message.charAt(i) == c) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    //segment names are matched regardless of case, the way HL7StructureHelper matches them
+    static boolean nameEquals(CharSequence message, int start, int end, String name) {
+        if (end - start != name.length()) {
+            return false;
+        }
+        for(int i=0; i<name.length(); i++) {
+            char c = message.charAt(start + i);
+            char n = name.charAt(i);
+            if (c != n && Character.toUpperCase(c) != Character.toUpperCase(n)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static boolean regionEquals(CharSequence message, int start, int end, String value) {
+        if (end - start != value.length()) {
+            return false;
+        }
+        for(int i=0; i<value.length(); i++) {
+            if (message.charAt(start + i) != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The [start, end) ranges of the values found by scanSegment, kept in one growing array.
+     */
+    static final class Ranges {
+        private final boolean firstOnly;
+        private int[] bounds = new int[8];
+        private int count = 0;
+
+        /**
+         * @param firstOnly true to stop scanning once a value is found
+         */
+        Ranges(boolean firstOnly) {
+            this.firstOnly = firstOnly;
+        }
+
+        //returns true when no more values are wanted
+        boolean add(int start, int end) {
+            if (count*2 == bounds.length) {
+                bounds = Arrays.copyOf(bounds, bounds.length*2);
+            }
+            bounds[count*2] = start;
+            bounds[count*2+1] = end;
+            count++;
+            return firstOnly;
+        }
+
+        int size() {
+            return count;
+        }
+
+        int start(int i) {
+            return bounds[i*2];
+        }
+
+        int end(int i) {
+            return bounds[i*2+1];
+        }
+
+        void clear() {
+            count = 0;
+        }
+    }
+}
@@ -24,6 +24,8 @@
 
 package org.urhl7.hl7;
 
+import java.io.IOException;
+import org.urhl7.utils.HL7Escape;
 import org.urhl7.utils.StringHelper;
 import java.util.*;
 
@@ -35,7 +37,7 @@ import java.util.*;
 public class HL7Segment implements GenericStructure, DelimitedStructure {
     
 
-    private char[] delims;
+    private HL7Delimiters delims;
     //private String segmentName;
     private ArrayList<HL7RepeatingField> fields;
     //private String data;
@@ -43,12 +45,28 @@ public class HL7Segment implements GenericStructure, DelimitedStructure {
 
     private DataField segmentNameDataField = null;
 
+    /**
+     * Set while this segment is queued in the parent for re-indexing.
+     */
+    boolean pendingReindex = false;
+
+    //slice of the message this segment was split from, while it has not been parsed yet. It is cleared only after
+    //the fields are in place, so a thread that sees it cleared also sees the fields
+    private volatile String unparsedSource = null;
+    private int unparsedStart = 0;
+    private int unparsedEnd = 0;
+    private String unparsedSegmentName = null;
+
+    //the marshalled form, kept until this segment or anything below it changes
+    private String marshalled = null;
+    private boolean parsing = false;
+
     /**
      * Creates a HL7Segment object that understands the specified delimiters.
      * @param delims
      */
     public HL7Segment(char[] delims) {
-        this.delims = delims;
+        this.delims = HL7Delimiters.of(delims);
         fields = new ArrayList<HL7RepeatingField>();
     }
 
@@ -57,7 +75,7 @@ public class HL7Segment implements GenericStructure, DelimitedStructure {
      * @param parent
      */
     public HL7Segment(HL7Structure parent) {
-        this.delims = parent.getDelims();
+        this.delims = parent.getDelimiters();
         setParent(parent);
         fields = new ArrayList<HL7RepeatingField>();
     }
@@ -67,8 +85,9 @@ public class HL7Segment implements GenericStructure, DelimitedStructure {
      * fields that have components.
      */
     public void compress() {
+        ensureParsed();
         while(getRepeatingFields().get(getRepeatingFields().size()-1).marshal().equals("")) {
-            getRepeatingFields().remove(getRepeatingFields().size()-1);
+            removeRepeatingField(getRepeatingFields().size()-1);
         }
     }
 
@@ -105,15 +124,39 @@ public class HL7Segment implements GenericStructure, DelimitedStructure {
      * @return a String representation of this data.
      */
     public String marshal() {
-        ArrayList<String> segfields = new ArrayList<String>();
-        
-        for(HL7RepeatingField inField : fields) {
-            String field = inField.marshal();
-            segfields.add(field);
+        String source = unparsedSource;
+        if (marshalled == null) {
+            if (source != null) {
+                marshalled = source.substring(unparsedStart, unparsedEnd);
+            } else {
+                marshalled = HL7Marshal.toString(this, 16 * fields.size());
+            }
+        }
+        return marshalled;
+    }
+
+    /**
+     * Marshals this segment straight into an Appendable. A segment that has not been parsed yet is copied from the
+     * message it came from.
+     * @param out the Appendable to write to
+     * @throws IOException if out throws
+     */
+    public void marshalTo(Appendable out) throws IOException {
+        String source = unparsedSource;
+        if (source != null) {
+            out.append(source, unparsedStart, unparsedEnd);
+            return;
+        }
+        if (marshalled != null) {
+            out.append(marshalled);
+            return;
+        }
+        for(int i=0; i<fields.size(); i++) {
+            if (i > 0) {
+                out.append(delims.getFieldSeparator());
+            }
+            fields.get(i).marshalTo(out);
         }
-        
-        String[] sFields = segfields.toArray(new String[segfields.size()]);
-        return StringHelper.implode(sFields, delims[0]+"");
     }
     
     /**
@@ -122,28 +165,112 @@ public class HL7Segment implements GenericStructure, DelimitedStructure {
      */
     public void unmarshal(String data) {
         //this.data = data;
+        unparsedSource = null;
 
-        getRepeatingFields().clear();
+        fields.clear();
 
-        String[] quickfields = StringHelper.explode(data, delims[0]+"");
+        String[] quickfields = StringHelper.explode(data, delims.getFieldSeparator()+"");
                 
         //segmentName = quickfields[0];
         for(String field : quickfields) {
             HL7RepeatingField f = new HL7RepeatingField(this);
             f.unmarshal(field);
-            getRepeatingFields().add(f);
+            fields.add(f);
         }
 
         segmentNameDataField = getRepeatingField(0).getField(0);
 
         setDirty();
     }
+
+    /**
+     * Replaces the repeating fields of this segment with fields built by HL7Parser.
+     * @param parsedFields the repeating fields, with this segment as their parent
+     */
+    void load(ArrayList<HL7RepeatingField> parsedFields) {
+        fields = parsedFields;
+        segmentNameDataField = parsedFields.get(0).getField(0);
+        unparsedSource = null;
+        setDirty();
+    }
+
+    /**
+     * Makes this segment a reference to a portion of the source String. The segment is parsed the first time
+     * its fields are accessed.
+     * @param source the String holding the segment
+     * @param start index of the first char of the segment
+     * @param end index after the last char of the segment
+     */
+    void loadUnparsed(String source, int start, int end) {
+        unparsedSource = source;
+        unparsedStart = start;
+        unparsedEnd = end;
+        unparsedSegmentName = null;
+        segmentNameDataField = null;
+        invalidate();
+    }
+
+    /**
+     * Returns if the fields of this segment have been parsed. Segments of a structure unmarshalled with
+     * {@link HL7ParseMode#LAZY} are not parsed until they are accessed.
+     * @return true if the fields of this segment exist
+     */
+    public boolean isParsed() {
+        return unparsedSource == null;
+    }
+
+    /**
+     * Parses this segment if it has not been parsed yet. The parse holds the lock of the parent structure, so
+     * threads reading the same structure parse each segment once.
+     */
+    void ensureParsed() {
+        if (unparsedSource != null) {
+            synchronized (parent != null ? parent : this) {
+                String source = unparsedSource;
+                if (source == null || parsing) {
+                    return;
+                }
+                //parsing does not change what the segment marshals to, so the cached form stays
+                parsing = true;
+                try {
+                    HL7Parser.parseSegment(this, source, unparsedStart, unparsedEnd);
+                } finally {
+                    parsing = false;
+                }
+            }
+        }
+    }
+
+    //the segment name of an unparsed segment, the first field of the first repeating field
+    private String findUnparsedSegmentName(String source) {
+        int stop = unparsedStart;
+        while (stop < unparsedEnd && source.charAt(stop) != delims.getFieldSeparator()) {
+            stop++;
+        }
+        String firstField = source.substring(unparsedStart, stop);
+        if (!delims.isEncodingCharacters(firstField)) {
+            int rep = firstField.indexOf(delims.getRepetitionSeparator());
+            if (rep >= 0) {
+                firstField = firstField.substring(0, rep);
+            }
+        }
+        return HL7Escape.unescape(delims.array(), firstField);
+    }
     
     /**
      * Provides a String representation of the Segment name of this segment (ie: MSH, PV1, OBX)
      * @return the Segment Name of this segment
      */
     public String getSegmentName() {
+        String source = unparsedSource;
+        if (source != null) {
+            String name = unparsedSegmentName;
+            if (name == null) {
+                name = findUnparsedSegmentName(source);
+                unparsedSegmentName = name;
+            }
+            return name;
+        }
         //getRepeatingField(0).getField(0).getData();
         //String segmentName = "";
         //try {
@@ -160,16 +287,31 @@ public class HL7Segment implements GenericStructure, DelimitedStructure {
      */
     protected void setSegmentName(String segName) {
         //segmentName = segName;
+        ensureParsed();
         segmentNameDataField.setData(segName);
     }
 
     /**
      * Returns a list of all HL7Fields that have been unmarshalled into this structure. This could be null
-     * if the data was not unmarshalled
+     * if the data was not unmarshalled. Changes made through the list are the same as the matching
+     * addRepeatingField and removeRepeatingField calls.
      * @return List of HL7Fields
      */
     public List<HL7RepeatingField> getRepeatingFields() {
-        return fields;
+        ensureParsed();
+        if (fields == null) {
+            return null;
+        }
+        return new HL7ChildList<HL7RepeatingField>(fields) {
+            void adopt(HL7RepeatingField field) {
+                field.setParent(HL7Segment.this);
+                field.changeDelims(getDelimiters());
+            }
+
+            void changed() {
+                setDirty();
+            }
+        };
     }
     
     /**
@@ -178,8 +320,9 @@ public class HL7Segment implements GenericStructure, DelimitedStructure {
      * @return the success of the add
      */
     public boolean addRepeatingField(HL7RepeatingField field) {
+        ensureParsed();
         field.setParent(this);
-        field.changeDelims(getDelims());
+        field.changeDelims(getDelimiters());
         setDirty();
         return fields.add(field);
     }
@@ -190,9 +333,10 @@ public class HL7Segment implements GenericStructure, DelimitedStructure {
      * @param field the field to add
      */
     public void addRepeatingField(int pos, HL7RepeatingField field) {
+        ensureParsed();
 
         field.setParent(this);
-        field.changeDelims(getDelims());
+        field.changeDelims(getDelimiters());
         fields.add(pos, field);
 
         setDirty();
@@ -205,9 +349,10 @@ public class HL7Segment implements GenericStructure, DelimitedStructure {
      * @return the field that was removed
      */
     public HL7RepeatingField setRepeatingField(int pos, HL7RepeatingField field) {
+        ensureParsed();
 
         field.setParent(this);
-        field.changeDelims(getDelims());
+        field.changeDelims(getDelimiters());
         HL7RepeatingField old = fields.set(pos, field);
         old.setParent(null);
 
@@ -227,6 +372,7 @@ public class HL7Segment implements GenericStructure, DelimitedStructure {
      * @return the success of the remove
      */
     public boolean removeRepeatingField(HL7RepeatingField field) {
+        ensureParsed();
         setDirty();
         return fields.remove(field);
     }
@@ -237,6 +383,7 @@ public class HL7Segment implements GenericStructure, DelimitedStructure {
      * @return the field removed
      */
     public HL7RepeatingField removeRepeatingField(int pos) {
+        ensureParsed();
         setDirty();
         return fields.remove(pos);
     }
@@ -247,6 +394,7 @@ public class HL7Segment implements GenericStructure, DelimitedStructure {
      * @return the field at a specific position
      */
     public HL7RepeatingField getRepeatingField(int pos) {
+        ensureParsed();
         return fields.get(pos);
     }
     
@@ -255,6 +403,20 @@ public class HL7Segment implements GenericStructure, DelimitedStructure {
      * @param chars the delimiters
      */
     public void changeDelims(char[] chars) {
+        changeDelims(HL7Delimiters.of(chars));
+    }
+
+    /**
+     * Changes the internal delimiters for this segment, and all children. Nothing is walked, or parsed, when the
+     * set is the one already in use.
+     * @param chars the delimiters
+     */
+    public void changeDelims(HL7Delimiters chars) {
+        if (delims.equals(chars)) {
+            return;
+        }
+        invalidate();
+        ensureParsed();
         delims = chars;
         List<HL7RepeatingField> locFields = getRepeatingFields();
         for(HL7RepeatingField field : locFields) {
@@ -276,13 +438,70 @@ public class HL7Segment implements GenericStructure, DelimitedStructure {
      * @return delimiter array
      */
     public char[] getDelims() {
+        return delims.toCharArray();
+    }
+
+    /**
+     * Returns the shared, immutable delimiter set for this data object.
+     * @return the delimiters
+     */
+    public HL7Delimiters getDelimiters() {
         return delims;
     }
 
 
-    private void setDirty() {
+    /**
+     * Flags this segment as changed, so the HL7StructureHelper of the parent re-indexes it (and only it) on its
+     * next lookup.
+     */
+    void setDirty() {
+        invalidate();
+        if (parent != null) {
+            parent.segmentChanged(this);
+        }
+    }
+
+    /**
+     * Returns the list the fields of this segment are kept in, for HL7Parser to fill when this segment came
+     * from HL7NodePool.
+     * @return the list of fields
+     */
+    ArrayList<HL7RepeatingField> repeatingFieldList() {
+        return fields;
+    }
+
+    /**
+     * Clears this segment as it goes into HL7NodePool, so it holds on to nothing from its old message.
+     */
+    void clear() {
+        fields.clear();
+        parent = null;
+        segmentNameDataField = null;
+        pendingReindex = false;
+        unparsedSource = null;
+        unparsedSegmentName = null;
+        marshalled = null;
+    }
+
+    /**
+     * Attaches this segment, taken from HL7NodePool, to a new parent.
+     * @param parent the structure it is parsed into
+     */
+    void reuse(HL7Structure parent) {
+        this.delims = parent.getDelimiters();
+        this.parent = parent;
+    }
+
+    /**
+     * Drops the cached marshalled form of this segment and its parent.
+     */
+    void invalidate() {
+        if (parsing) {
+            return;
+        }
+        marshalled = null;
         if (parent != null) {
-            parent.needsRecache = true;
+            parent.invalidate();
         }
     }
     
@@ -24,29 +24,59 @@
 
 package org.urhl7.hl7;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import org.urhl7.utils.StringHelper;
 
 /**
- * This data object is a representation of an HL7 message. 
+ * This data object is a representation of an HL7 message. <br />
+ * A structure can be read by many threads at once, such as routing rules running on a thread pool, without a
+ * copy() for each of them. Any number of threads may call get, getAll, has, getData, marshal and copy on the
+ * same structure, as long as it was safely published to them (for example, handed over through an
+ * ExecutorService) and no thread changes it in the meantime. Lookups take this structure's lock only to build or
+ * update the index. A {@link HL7ParseMode#LAZY} structure parses and indexes segments as they are looked up, so
+ * its lookups hold the lock for as long as it has unparsed segments, and wait on each other. On a structure parsed
+ * any other way, lookups do not wait on each other after the first one. <br />
+ * Changes, such as setData, adding or removing anything, unmarshal and reload, are not thread safe. They must not
+ * overlap with any other use of the structure; give a thread that changes the message its own copy(). For a
+ * snapshot that never changes, use HL7.view(structure.marshal()).
  * @author dmorgan
  */
 public class HL7Structure implements GenericStructure, DelimitedStructure {
    
-    private char[] delimSet;
+    private HL7Delimiters delimSet;
     private List<HL7Segment> segments;
     private String data;
 
     /**
-     * A dirty flag to tell if the structure of this object may have recently been changed.
+     * A dirty flag to tell if the structure of this object may have recently been changed. This is set when segments
+     * are added, removed, or the whole structure is unmarshalled.
      */
-    protected boolean needsRecache = true;
+    protected volatile boolean needsRecache = true;
+
+    /**
+     * Segments whose content changed since the HL7StructureHelper last indexed them. Changes inside a segment do
+     * not set needsRecache, only the changed segment is re-indexed.
+     */
+    final List<HL7Segment> dirtySegments = new ArrayList<HL7Segment>();
+
+    /**
+     * Set when dirtySegments is not empty. Unlike the list it can be read without holding this structure's lock.
+     */
+    volatile boolean hasDirtySegments = false;
+
+    /**
+     * Set when this structure was unmarshalled lazily, and some segments may not be parsed yet.
+     */
+    volatile boolean hasUnparsedSegments = false;
 
 
-    private HL7StructureHelper helper = null;
+    private volatile HL7StructureHelper helper = null;
     
     private static final String SEGMENT_SPLIT_STRING =  "\r";
+
+    //the marshalled form, kept until this structure or anything below it changes
+    private String marshalled = null;
     
     /**
      * Constructor for creating a HL7Structure object. Passing in the delmiting characters provided
@@ -54,6 +84,14 @@ public class HL7Structure implements GenericStructure, DelimitedStructure {
      * @param delims Usually an array of these chars: |^~\&
      */
     public HL7Structure(char[] delims) {
+        delimSet = HL7Delimiters.of(delims);
+    }
+
+    /**
+     * Constructor for creating a HL7Structure object that shares an existing delimiter set.
+     * @param delims the delimiters, usually HL7Delimiters.STANDARD
+     */
+    public HL7Structure(HL7Delimiters delims) {
         delimSet = delims;
     }
 
@@ -63,10 +101,17 @@ public class HL7Structure implements GenericStructure, DelimitedStructure {
      * @return a HL7StructureHelper object bound to this structure
      */
     public HL7StructureHelper helper() {
-        if (helper == null) {
-            helper = new HL7StructureHelper(this);
+        HL7StructureHelper h = helper;
+        if (h == null) {
+            synchronized (this) {
+                h = helper;
+                if (h == null) {
+                    h = new HL7StructureHelper(this);
+                    helper = h;
+                }
+            }
         }
-        return helper;
+        return h;
     }
 
     /**
@@ -111,6 +156,17 @@ public class HL7Structure implements GenericStructure, DelimitedStructure {
          return helper().get(loc);
      }
 
+    /**
+     * Retrieves the first data field at a compiled location.
+     * If the data field does not exist, rather than erroring, it will return an NullField with no data.
+     * Shorthand alias for {@link HL7StructureHelper#get(HL7Path) helper().get()} method.
+     * @param path the compiled location of the data field
+     * @return the first DataField that matches the path
+     */
+     public DataField get(HL7Path path) {
+         return helper().get(path);
+     }
+
     /**
      * Retrieves the all data fields matching a specified location, left to right, top to bottom. If the data field
      * does not exist, rather than erroring, it will return an empty list.
@@ -133,6 +189,17 @@ public class HL7Structure implements GenericStructure, DelimitedStructure {
         return helper().getAll(loc);
     }
 
+    /**
+     * Retrieves the all data fields matching a compiled location, left to right, top to bottom. If the data field
+     * does not exist, rather than erroring, it will return an empty list.
+     * Shorthand alias for {@link HL7StructureHelper#getAll(HL7Path) helper().getAll()} method.
+     * @param path the compiled location of the data field
+     * @return all DataField object that match the path, or an empty list if none do
+     */
+    public List<DataField> getAll(HL7Path path) {
+        return helper().getAll(path);
+    }
+
     /**
      * Determine if this structure has a particular data field or segment.
      * Shorthand alias for {@link HL7StructureHelper#has(String) helper().has()} method.
@@ -153,6 +220,16 @@ public class HL7Structure implements GenericStructure, DelimitedStructure {
          return helper().has(loc);
      }
 
+    /**
+     * Determine if this structure has a particular data field or segment.
+     * Shorthand alias for {@link HL7StructureHelper#has(HL7Path) helper().has()} method.
+     * @param path the compiled location of the data field or segment
+     * @return if the data field or segment exists
+     */
+     public boolean has(HL7Path path) {
+         return helper().has(path);
+     }
+
 
     /**
      * Compress the message by removing fields that are empty at the end of the segments. Does not remove
@@ -199,7 +276,7 @@ public class HL7Structure implements GenericStructure, DelimitedStructure {
                                     }
                                 }
                             } else {
-                                if (!f.marshal().equals( (new String(newStruct.getDelims())).substring(1) )) {
+                                if (!f.marshal().equals( newStruct.getDelimiters().getEncodingCharacters() )) {
                                     f.setData("");
                                 }
                             }
@@ -268,8 +345,10 @@ public class HL7Structure implements GenericStructure, DelimitedStructure {
      */
     public void addSegment(int index, HL7Segment seg) {
         seg.setParent(this);
-        seg.changeDelims(getDelims());
+        seg.changeDelims(getDelimiters());
         segments.add(index, seg);
+        needsRecache = true;
+        marshalled = null;
     }
     
     /**
@@ -279,26 +358,47 @@ public class HL7Structure implements GenericStructure, DelimitedStructure {
      */
     public boolean addSegment(HL7Segment seg) {
         seg.setParent(this);
-        seg.changeDelims(getDelims());
+        seg.changeDelims(getDelimiters());
+        needsRecache = true;
+        marshalled = null;
         return segments.add(seg);
     }
     
     /**
-     * Removes a particular segment from the HL7Structure
+     * Removes a particular segment from the HL7Structure. The removed segment no longer has a parent, so changing
+     * it afterwards does not affect this structure.
      * @param seg the segment to remove
      * @return the success of removing the segment
      */
     public boolean removeSegment(HL7Segment seg) {
-        return segments.remove(seg);
+        needsRecache = true;
+        marshalled = null;
+        boolean removed = segments.remove(seg);
+        if (removed) {
+            release(seg);
+        }
+        return removed;
     }
     
     /**
-     * Removes the segment at a specific position from the HL7Structure
+     * Removes the segment at a specific position from the HL7Structure. The removed segment no longer has a parent,
+     * so changing it afterwards does not affect this structure.
      * @param pos the position to remove the segment
      * @return the segment that was removed
      */
     public HL7Segment removeSegment(int pos) {
-        return segments.remove(pos);
+        needsRecache = true;
+        marshalled = null;
+        HL7Segment removed = segments.remove(pos);
+        release(removed);
+        return removed;
+    }
+
+    //detaches a removed segment, unless it was already put in another structure
+    private void release(HL7Segment seg) {
+        if (seg.getParent() == this) {
+            seg.setParent(null);
+        }
     }
     
     /**
@@ -319,23 +419,61 @@ public class HL7Structure implements GenericStructure, DelimitedStructure {
         return segments.indexOf(seg);
     }
 
+    /**
+     * Queues a segment whose content changed for re-indexing by the HL7StructureHelper.
+     * @param seg the segment that changed
+     */
+    void segmentChanged(HL7Segment seg) {
+        if (!needsRecache && !seg.pendingReindex) {
+            seg.pendingReindex = true;
+            dirtySegments.add(seg);
+            hasDirtySegments = true;
+        }
+    }
+
+    /**
+     * Drops the cached marshalled form of this structure.
+     */
+    void invalidate() {
+        marshalled = null;
+    }
+
     /**
      * Returns a string representation of this and the underlying data structures
      * @return a String representation of this structure
      */
     public String marshal() {
-        ArrayList<String> loSegs = new ArrayList<String>();
-        
-        for(HL7Segment segment : segments) {
-            String seg = segment.marshal();
-            loSegs.add(seg);
+        if (marshalled == null) {
+            String text = HL7Marshal.toString(this, 128 * segments.size());
+            //an unchanged message keeps the String it was parsed from, rather than a second copy of it
+            marshalled = text.equals(data) ? data : text;
+        }
+        return marshalled;
+    }
+
+    /**
+     * Marshals this structure straight into an Appendable, segment by segment, with no intermediate Strings.
+     * @param out the Appendable to write to
+     * @throws IOException if out throws
+     */
+    public void marshalTo(Appendable out) throws IOException {
+        if (marshalled != null) {
+            out.append(marshalled);
+            return;
+        }
+        int last = segments.size() - 1;
+        for(int i=0; i<last; i++) {
+            segments.get(i).marshalTo(out);
+            out.append(SEGMENT_SPLIT_STRING);
         }
-        String[] sSegs = loSegs.toArray(new String[loSegs.size()]);
-        String retValue = StringHelper.implode(sSegs, SEGMENT_SPLIT_STRING);
-        if (!retValue.endsWith(SEGMENT_SPLIT_STRING)){
-            retValue = retValue + SEGMENT_SPLIT_STRING;
+        //the structure always ends with a segment separator, so watch whether the last segment already does
+        HL7Marshal.TrailingAppendable tail = new HL7Marshal.TrailingAppendable(out, SEGMENT_SPLIT_STRING.charAt(0));
+        if (last >= 0) {
+            segments.get(last).marshalTo(tail);
+        }
+        if (!tail.endsWithMarker(last > 0)) {
+            out.append(SEGMENT_SPLIT_STRING);
         }
-        return retValue;
     }
     
     /**
@@ -352,19 +490,99 @@ public class HL7Structure implements GenericStructure, DelimitedStructure {
         for(String segmentString : segmentStrings) {
             HL7Segment segment = new HL7Segment(this);
             segment.unmarshal(segmentString);
-            getSegments().add(segment);
+            segments.add(segment);
+        }
+
+        hasUnparsedSegments = false;
+        needsRecache = true;
+        marshalled = null;
+        dirtySegments.clear();
+        hasDirtySegments = false;
+    }
+
+    /**
+     * Unmarshals an arbitrary String representation of a structure into this data structure, using the
+     * requested parsing engine. Every engine builds the same structure.
+     * @param data a String representation of data
+     * @param mode the parsing engine to use
+     */
+    public void unmarshal(String data, HL7ParseMode mode) {
+        if (mode == HL7ParseMode.SINGLE_PASS) {
+            HL7Parser.parseInto(this, data);
+        } else if (mode == HL7ParseMode.COMPACT) {
+            HL7Parser.parseInto(this, data, true);
+        } else if (mode == HL7ParseMode.LAZY) {
+            HL7Parser.parseLazyInto(this, data);
+        } else {
+            unmarshal(data);
+        }
+    }
+
+    /**
+     * Replaces the message in this structure with a new one, the same way as
+     * unmarshal(data, HL7ParseMode.SINGLE_PASS), but reusing the nodes of the old message. Its segments, repeating
+     * fields, fields, components and subcomponents are cleared and put into a pool kept by the calling thread, and
+     * the new message is built from that pool. The delimiters are read from the new message.
+     * <br />
+     * Every node that was reached through this structure before the call may be handed out again as part of this or
+     * any other structure reloaded on the same thread. No reference to any of them may be kept, or used, after this
+     * is called. To keep a message, keep a {@link #copy()} of it instead.
+     * @param data a String representation of the new message
+     */
+    public void reload(String data) {
+        HL7Delimiters newDelims = HL7Delimiters.of(data, 3, 8);
+        HL7NodePool pool = HL7NodePool.get();
+        if (segments != null) {
+            pool.recycle(segments);
         }
+        delimSet = newDelims;
+        needsRecache = true;
+        dirtySegments.clear();
+        hasDirtySegments = false;
+        HL7Parser.parseInto(this, data, pool);
+    }
 
+    /**
+     * Replaces the segments of this structure with segments built by HL7Parser.
+     * @param data the String representation the segments were parsed from
+     * @param parsedSegments the segments
+     * @param unparsed true if the segments have not been parsed yet
+     */
+    void load(String data, List<HL7Segment> parsedSegments, boolean unparsed) {
+        this.data = data;
+        segments = parsedSegments;
+        hasUnparsedSegments = unparsed;
         needsRecache = true;
+        marshalled = null;
+        dirtySegments.clear();
+        hasDirtySegments = false;
     }
 
     /**
      * Returns a List of the HL7Segment objects that are maintained in this data structure. This value can be null if no 
-     * data was unmarshalled.
+     * data was unmarshalled. Changes made through the list are the same as the matching addSegment and
+     * removeSegment calls.
      * @return A list of HL7Segments
      */
     public List<HL7Segment> getSegments() {
-        return segments;
+        if (segments == null) {
+            return null;
+        }
+        return new HL7ChildList<HL7Segment>(segments) {
+            void adopt(HL7Segment seg) {
+                seg.setParent(HL7Structure.this);
+                seg.changeDelims(getDelimiters());
+            }
+
+            void release(HL7Segment seg) {
+                HL7Structure.this.release(seg);
+            }
+
+            void changed() {
+                needsRecache = true;
+                marshalled = null;
+            }
+        };
     }
 
 
@@ -392,6 +610,14 @@ public class HL7Structure implements GenericStructure, DelimitedStructure {
      * @return delimiter array
      */
     public char[] getDelims() {
+        return delimSet.toCharArray();
+    }
+
+    /**
+     * Returns the shared, immutable delimiter set for this data object.
+     * @return the delimiters
+     */
+    public HL7Delimiters getDelimiters() {
         return delimSet;
     }
 
@@ -420,10 +646,22 @@ public class HL7Structure implements GenericStructure, DelimitedStructure {
      * @param changeMSHDelims automatically set the MSH field to the new delimiters
      */
     public void changeDelims(char[] chars, boolean changeMSHDelims) {
+        changeDelims(HL7Delimiters.of(chars), changeMSHDelims);
+    }
+
+    /**
+     * Changes the delimiter set for this HL7Strucutre. Depending on the changeMSHDelims flag, will either automatically change
+     * the data in the MSH segment that specifies the chars, or will not. The segments are only walked when the set
+     * differs from the one in use.
+     * @param chars the delimiters to set.
+     * @param changeMSHDelims automatically set the MSH field to the new delimiters
+     */
+    public void changeDelims(HL7Delimiters chars, boolean changeMSHDelims) {
+        invalidate();
         if (changeMSHDelims) {
             try {
                 if (segments.get(0).getSegmentName().equals("MSH")) {
-                    segments.get(0).getRepeatingField(1).getField(0).unmarshal((new String(chars)).substring(1));
+                    segments.get(0).getRepeatingField(1).getField(0).unmarshal(chars.getEncodingCharacters());
                 }
                 //if (helper().has("MSH-2")) {
                 //    HL7Field field = helper().getSegment("MSH").getRepeatingField(1).getField(0);
@@ -432,6 +670,9 @@ public class HL7Structure implements GenericStructure, DelimitedStructure {
             } catch (Exception e) { } //do nothing if there is an error
         }
         
+        if (delimSet.equals(chars)) {
+            return;
+        }
         delimSet = chars;
 
         List<HL7Segment> locSegments = getSegments();
@@ -34,8 +34,11 @@ import java.util.*;
  */
 public class HL7StructureHelper {
     private HL7Structure structure;
-    private Map<HL7Location, DataField> _CACHE = null;
+    private Map<IndexKey, IndexBucket> _INDEX = null;
+    private Map<String, List<IndexKey>> _KEYS_BY_SEGMENT_NAME = null;
+    private Map<HL7Segment, IndexedSegment> _INDEXED_SEGMENTS = null;
     private int cacheingDone = 0;
+    private int segmentReindexingDone = 0;
 
     /**
      * Create a HL7StructureHelper that is bound to the provided HL7Structure
@@ -43,7 +46,7 @@ public class HL7StructureHelper {
      */
     public HL7StructureHelper(HL7Structure structure) {
         this.structure = structure;
-        this._CACHE = new LinkedHashMap<HL7Location, DataField>();
+        this._INDEX = new HashMap<IndexKey, IndexBucket>();
         //this._KEYCACHE = new LinkedList<HL7Location>();
         refreshCache();
     }
@@ -64,32 +67,42 @@ public class HL7StructureHelper {
      * @param loc the HL7Location of the data field
      * @return if the data field or segment exists
      */
-    public boolean has(HL7Location loc) { //this is a very... simple way to do it. could be more efficient.
+    public boolean has(HL7Location loc) {
+        return has(loc, null);
+    }
+
+    /**
+     * Determine if this structure has a particular data field or segment
+     * @param path the compiled location of the data field or segment
+     * @return if the data field or segment exists
+     */
+    public boolean has(HL7Path path) {
+        return has(path.getLocation(), path.key);
+    }
+
+    private boolean has(HL7Location loc, IndexKey key) { //this is a very... simple way to do it. could be more efficient.
         if (loc.hasSegment() && !loc.hasField()) {
             HL7Segment segment = getSegment(loc);
             if (segment != null) {
                 return true;
             }
-        } else {
-            if (structure.needsRecache) {
-                refreshCache();
-            }
-
-
-            if (loc.isFullyQualified()) {
-                return _CACHE.containsKey(loc);
-            }
-
-            for (Map.Entry<HL7Location, DataField> entry : _CACHE.entrySet()) {
-                if (entry.getKey().matches(loc)) {
-                    return true;
-                }
+        } else if (structure.hasUnparsedSegments) {
+            synchronized (structure) {
+                prepare(loc);
+                return hasIndexed(loc, key);
             }
-
+        } else {
+            prepare(loc);
+            return hasIndexed(loc, key);
         }
         return false;
     }
 
+    private boolean hasIndexed(HL7Location loc, IndexKey key) {
+        IndexBucket bucket = _INDEX.get(key != null ? key : new IndexKey(loc));
+        return bucket != null && bucket.first(loc) != null;
+    }
+
     /**
      * Retrieves the first HL7Segment that matches the descriptor (top to bottom)
      * @param descriptor String description of location
@@ -168,21 +181,38 @@ public class HL7StructureHelper {
      * @return the first DataField that matches the descriptor
      */
     public DataField get(HL7Location loc) {
-        if (structure.needsRecache) {
-            refreshCache();
-        }
+        return get(loc, null);
+    }
 
+    /**
+     * Retrieves the first data field at a compiled location. If the data field does not exist, rather than erroring,
+     * it will return an NullField with no data.
+     * @param path the compiled location of the data field
+     * @return the first DataField that matches the path
+     */
+    public DataField get(HL7Path path) {
+        return get(path.getLocation(), path.key);
+    }
 
-        if (loc.isFullyQualified()) {
-            DataField possible = _CACHE.get(loc);
-            if (possible != null) {
-                return possible;
+    private DataField get(HL7Location loc, IndexKey key) {
+        if (structure.hasUnparsedSegments) {
+            synchronized (structure) {
+                prepare(loc);
+                return find(loc, key);
             }
         }
+        prepare(loc);
+        return find(loc, key);
+    }
 
-        for (Map.Entry<HL7Location, DataField> entry : _CACHE.entrySet()) {
-            if (entry.getKey().matches(loc)) {
-                return entry.getValue();
+    private DataField find(HL7Location loc, IndexKey key) {
+        if (loc.hasField()) {
+            IndexBucket bucket = _INDEX.get(key != null ? key : new IndexKey(loc));
+            if (bucket != null) {
+                DataField possible = bucket.first(loc);
+                if (possible != null) {
+                    return possible;
+                }
             }
         }
         
@@ -206,14 +236,37 @@ public class HL7StructureHelper {
      * @return all DataField object that match the location, or an empty list if none do
      */
     public List<DataField> getAll(HL7Location loc) {
-        if (structure.needsRecache) {
-            refreshCache();
+        return getAll(loc, null);
+    }
+
+    /**
+     * Retrieves the all data fields matching a compiled location, left to right, top to bottom. If the data field
+     * does not exist, rather than erroring, it will return an empty list.
+     * @param path the compiled location of the data field
+     * @return all DataField object that match the path, or an empty list if none do
+     */
+    public List<DataField> getAll(HL7Path path) {
+        return getAll(path.getLocation(), path.key);
+    }
+
+    private List<DataField> getAll(HL7Location loc, IndexKey key) {
+        if (structure.hasUnparsedSegments) {
+            synchronized (structure) {
+                prepare(loc);
+                return findAll(loc, key);
+            }
         }
+        prepare(loc);
+        return findAll(loc, key);
+    }
+
+    private List<DataField> findAll(HL7Location loc, IndexKey key) {
         ArrayList<DataField> listOfFields = new ArrayList<DataField>();
 
-        for (Map.Entry<HL7Location, DataField> entry : _CACHE.entrySet()) {
-            if (entry.getKey().matches(loc)) {
-                listOfFields.add(entry.getValue());
+        if (loc.hasField()) {
+            IndexBucket bucket = _INDEX.get(key != null ? key : new IndexKey(loc));
+            if (bucket != null) {
+                bucket.all(loc, listOfFields);
             }
         }
         
@@ -221,9 +274,133 @@ public class HL7StructureHelper {
     }
 
 
+    //brings the index up to date for a lookup. The work is done while holding the structure's lock, and only when
+    //the structure changed or still has unparsed segments, so threads sharing a structure that nobody changes read
+    //the index without waiting on each other. The flags are volatile and written last, which publishes the index.
+    //While a lazily unmarshalled structure has unparsed segments, any lookup may parse and index one, so the
+    //lookups read the index while holding the lock as well.
+    private void prepare(HL7Location loc) {
+        if (structure.needsRecache || structure.hasDirtySegments || structure.hasUnparsedSegments) {
+            synchronized (structure) {
+                parseSegmentsFor(loc);
+                refreshIfNeeded();
+            }
+        }
+    }
+
+    //parses the segments of a lazily unmarshalled structure that the location can reach into
+    private void parseSegmentsFor(HL7Location loc) {
+        if (!structure.hasUnparsedSegments) {
+            return;
+        }
+        int positionCount = -1;
+        for(HL7Segment segment : structure.getSegments()) {
+            if (segment.getSegmentName().equalsIgnoreCase(loc.getSegmentName())) {
+                positionCount++;
+                if (loc.isSegmentIndexImplied() || loc.getSegmentIndex() == positionCount) {
+                    segment.ensureParsed();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns how many times the whole index has been rebuilt. This happens when the helper is created, and after
+     * segments are added to or removed from the structure, or the structure is unmarshalled again.
+     * @return the number of full rebuilds
+     */
+    public int getCacheRebuildCount() {
+        return cacheingDone;
+    }
+
+    /**
+     * Returns how many times a single segment has been re-indexed after a change inside of it, without rebuilding
+     * the whole index.
+     * @return the number of segment re-indexes
+     */
+    public int getSegmentReindexCount() {
+        return segmentReindexingDone;
+    }
+
+    private void refreshIfNeeded() {
+        if (structure.needsRecache) {
+            refreshCache();
+        } else if (!structure.dirtySegments.isEmpty()) {
+            reindexDirtySegments();
+            structure.hasDirtySegments = false;
+        }
+    }
+
+    //re-indexes the segments whose content changed, and the segments that share a name with a renamed segment
+    private void reindexDirtySegments() {
+        List<HL7Segment> dirty = new ArrayList<HL7Segment>(structure.dirtySegments);
+        structure.dirtySegments.clear();
+
+        Set<String> renamed = null;
+        for(HL7Segment segment : dirty) {
+            segment.pendingReindex = false;
+            IndexedSegment indexed = _INDEXED_SEGMENTS.get(segment);
+            if (indexed == null) {
+                //not a segment we know about
+                refreshCache();
+                return;
+            }
+
+            String segmentName = indexName(segment.getSegmentName());
+            if (!segmentName.equals(indexed.segmentName)) {
+                //positions of the siblings with either name have shifted
+                if (renamed == null) {
+                    renamed = new HashSet<String>();
+                }
+                renamed.add(indexed.segmentName);
+                renamed.add(segmentName);
+            } else {
+                segmentReindexingDone++;
+                clearSegment(segmentName, indexed.segmentIndex);
+                indexSegment(segment, segmentName, indexed.segmentIndex);
+            }
+        }
+
+        if (renamed != null) {
+            for(String segmentName : renamed) {
+                List<IndexKey> keys = _KEYS_BY_SEGMENT_NAME.remove(segmentName);
+                if (keys != null) {
+                    for(IndexKey key : keys) {
+                        _INDEX.remove(key);
+                    }
+                }
+            }
+
+            HashMap<String, Integer> mappingIndex = new HashMap<String,Integer>();
+            for(HL7Segment segment : structure.getSegments()) {
+                String segmentName = indexName(segment.getSegmentName());
+                if (renamed.contains(segmentName)) {
+                    Integer segmentIndex = mappingIndex.get(segmentName);
+                    segmentIndex = (segmentIndex == null) ? 0 : segmentIndex+1;
+                    mappingIndex.put(segmentName, segmentIndex);
+
+                    segmentReindexingDone++;
+                    _INDEXED_SEGMENTS.put(segment, new IndexedSegment(segmentName, segmentIndex));
+                    indexSegment(segment, segmentName, segmentIndex);
+                }
+            }
+        }
+    }
+
+    private void clearSegment(String segmentName, int segmentIndex) {
+        List<IndexKey> keys = _KEYS_BY_SEGMENT_NAME.get(segmentName);
+        if (keys != null) {
+            for(IndexKey key : keys) {
+                _INDEX.get(key).clearSegment(segmentIndex);
+            }
+        }
+    }
+
     private void refreshCache() {
         cacheingDone++;
-        LinkedHashMap<HL7Location, DataField> table = new LinkedHashMap<HL7Location, DataField>();
+        _INDEX = new HashMap<IndexKey, IndexBucket>();
+        _KEYS_BY_SEGMENT_NAME = new HashMap<String, List<IndexKey>>();
+        _INDEXED_SEGMENTS = new IdentityHashMap<HL7Segment, IndexedSegment>();
 
         //for(HL7Segment segment : structure.getSegments()) {
         List<HL7Segment> segmentList = structure.getSegments();
@@ -231,7 +408,7 @@ public class HL7StructureHelper {
 
         for(int sIdx=0; sIdx<segmentList.size(); sIdx++) {
             HL7Segment segment = segmentList.get(sIdx);
-            String segmentName = segment.getSegmentName();
+            String segmentName = indexName(segment.getSegmentName());
             Integer segmentIndex = mappingIndex.get(segmentName);
             if (segmentIndex == null) {
                 mappingIndex.put(segmentName, 0);
@@ -241,45 +418,225 @@ public class HL7StructureHelper {
                 mappingIndex.put(segmentName, segmentIndex);
             }
 
+            segment.pendingReindex = false;
+            _INDEXED_SEGMENTS.put(segment, new IndexedSegment(segmentName, segmentIndex));
+            indexSegment(segment, segmentName, segmentIndex);
+        }
+
+        structure.dirtySegments.clear();
+        structure.hasDirtySegments = false;
+        structure.needsRecache = false;
+    }
+
+    private void indexSegment(HL7Segment segment, String segmentName, int segmentIndex) {
+        if (!segment.isParsed()) {
+            //not reached yet, it will be indexed once it is parsed
+            return;
+        }
 
-            List<HL7RepeatingField> repeatingFieldList = segment.getRepeatingFields();
-            for(int rfIdx=0; rfIdx<repeatingFieldList.size(); rfIdx++) {
-                HL7RepeatingField rf = repeatingFieldList.get(rfIdx);
-                    List<HL7Field> fieldList = rf.getFields();
-                    for(int fIdx=0; fIdx<fieldList.size(); fIdx++){
-                        HL7Field field = fieldList.get(fIdx);
-
-                        //if (field.isBaseField() ){
-                            HL7Location loc = new HL7Location(segmentName, segmentIndex, rfIdx, fIdx, -1, -1);
-                            table.put(loc, field);
-                        //} else {
-                        if (!field.isBaseField() ){ //
-                            List<HL7FieldComponent> fieldCompList = field.getFieldComponents();
-                            for(int fcIdx=0; fcIdx<fieldCompList.size(); fcIdx++) {
-                                HL7FieldComponent fieldcomp = fieldCompList.get(fcIdx);
-                                //if(fieldcomp.isBaseField() ){
-                                    HL7Location locfc = new HL7Location(segmentName, segmentIndex, rfIdx, fIdx, fcIdx, -1);
-                                    table.put(locfc, fieldcomp);
-                                //} else {
-                                if(!fieldcomp.isBaseField() ){ //
-                                    List<HL7FieldSubcomponent> fieldSubcompList = fieldcomp.getFieldSubcomponents();
-                                    for(int fscIdx=0; fscIdx<fieldSubcompList.size(); fscIdx++) {
-                                        HL7FieldSubcomponent fieldsub = fieldSubcompList.get(fscIdx);
-                                        if(fieldsub.isBaseField() ){ 
-                                            HL7Location locsc = new HL7Location(segmentName, segmentIndex, rfIdx, fIdx, fcIdx, fscIdx);
-                                            table.put(locsc, fieldsub);
-                                        }
+        List<HL7RepeatingField> repeatingFieldList = segment.repeatingFieldList();
+        for(int rfIdx=0; rfIdx<repeatingFieldList.size(); rfIdx++) {
+            HL7RepeatingField rf = repeatingFieldList.get(rfIdx);
+                List<HL7Field> fieldList = rf.fieldList();
+                for(int fIdx=0; fIdx<fieldList.size(); fIdx++){
+                    HL7Field field = fieldList.get(fIdx);
+
+                    //if (field.isBaseField() ){
+                        addToIndex(segmentName, rfIdx, -1, -1, segmentIndex, fIdx, field);
+                    //} else {
+                    if (!field.isBaseField() ){ //
+                        List<HL7FieldComponent> fieldCompList = field.componentList();
+                        for(int fcIdx=0; fcIdx<fieldCompList.size(); fcIdx++) {
+                            HL7FieldComponent fieldcomp = fieldCompList.get(fcIdx);
+                            //if(fieldcomp.isBaseField() ){
+                                addToIndex(segmentName, rfIdx, fcIdx, -1, segmentIndex, fIdx, fieldcomp);
+                            //} else {
+                            if(!fieldcomp.isBaseField() ){ //
+                                List<HL7FieldSubcomponent> fieldSubcompList = fieldcomp.subcomponentList();
+                                for(int fscIdx=0; fscIdx<fieldSubcompList.size(); fscIdx++) {
+                                    HL7FieldSubcomponent fieldsub = fieldSubcompList.get(fscIdx);
+                                    if(fieldsub.isBaseField() ){ 
+                                        addToIndex(segmentName, rfIdx, fcIdx, fscIdx, segmentIndex, fIdx, fieldsub);
                                     }
                                 }
                             }
                         }
                     }
-                //}
+                }
+            //}
+        }
+    }
+
+    private void addToIndex(String segmentName, int rfIdx, int fcIdx, int fscIdx, int segmentIndex, int fIdx, DataField df) {
+        IndexKey key = new IndexKey(segmentName, rfIdx, fcIdx, fscIdx);
+        IndexBucket bucket = _INDEX.get(key);
+        if (bucket == null) {
+            bucket = new IndexBucket();
+            _INDEX.put(key, bucket);
+            List<IndexKey> keys = _KEYS_BY_SEGMENT_NAME.get(segmentName);
+            if (keys == null) {
+                keys = new ArrayList<IndexKey>();
+                _KEYS_BY_SEGMENT_NAME.put(segmentName, keys);
             }
+            keys.add(key);
         }
+        bucket.add(segmentIndex, fIdx, df);
+    }
 
-        _CACHE = table;
-        structure.needsRecache = false;
+    //segment names are matched regardless of case, as getSegment() does, so the index keys them in upper case
+    static String indexName(String segmentName) {
+        for(int i=0; i<segmentName.length(); i++) {
+            if (Character.isLowerCase(segmentName.charAt(i))) {
+                return segmentName.toUpperCase(Locale.ROOT);
+            }
+        }
+        return segmentName;
+    }
+
+    /**
+     * Name and position a segment had when it was last indexed.
+     */
+    private static final class IndexedSegment {
+        private final String segmentName;
+        private final int segmentIndex;
+
+        IndexedSegment(String segmentName, int segmentIndex) {
+            this.segmentName = segmentName;
+            this.segmentIndex = segmentIndex;
+        }
+    }
+
+    /**
+     * Key of the index: everything in a location except the segment index and the field (repetition) index,
+     * which are the two indexes that may be implied.
+     */
+    static final class IndexKey {
+        private final String segmentName;
+        private final int repeatingFieldIndex;
+        private final int componentIndex;
+        private final int subcomponentIndex;
+        private final int hash;
+
+        IndexKey(HL7Location loc) {
+            this(indexName(loc.getSegmentName()), loc.getRepeatingFieldIndex(),
+                 loc.hasComponent() ? loc.getComponentIndex() : -1,
+                 loc.hasSubcomponent() ? loc.getSubcomponentIndex() : -1);
+        }
+
+        IndexKey(String segmentName, int repeatingFieldIndex, int componentIndex, int subcomponentIndex) {
+            this.segmentName = segmentName;
+            this.repeatingFieldIndex = repeatingFieldIndex;
+            this.componentIndex = componentIndex;
+            this.subcomponentIndex = subcomponentIndex;
+            int h = segmentName.hashCode();
+            h = 31*h + repeatingFieldIndex;
+            h = 31*h + componentIndex;
+            h = 31*h + subcomponentIndex;
+            this.hash = h;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof IndexKey)) {
+                return false;
+            }
+            IndexKey other = (IndexKey)o;
+            return repeatingFieldIndex == other.repeatingFieldIndex && componentIndex == other.componentIndex
+                    && subcomponentIndex == other.subcomponentIndex && segmentName.equals(other.segmentName);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * All data fields that share an IndexKey, ordered by segment index, then by field index. A slot is null when
+     * that segment or repetition does not have the data field.
+     */
+    private static final class IndexBucket {
+        private final ArrayList<ArrayList<DataField>> bySegment = new ArrayList<ArrayList<DataField>>();
+
+        void add(int segmentIndex, int fieldIndex, DataField df) {
+            while (bySegment.size() <= segmentIndex) {
+                bySegment.add(null);
+            }
+            ArrayList<DataField> byField = bySegment.get(segmentIndex);
+            if (byField == null) {
+                byField = new ArrayList<DataField>(1);
+                bySegment.set(segmentIndex, byField);
+            }
+            while (byField.size() <= fieldIndex) {
+                byField.add(null);
+            }
+            byField.set(fieldIndex, df);
+        }
+
+        void clearSegment(int segmentIndex) {
+            if (segmentIndex < bySegment.size()) {
+                bySegment.set(segmentIndex, null);
+            }
+        }
+
+        DataField first(HL7Location loc) {
+            if (loc.isSegmentIndexImplied()) {
+                for(int i=0; i<bySegment.size(); i++) {
+                    DataField df = inSegment(bySegment.get(i), loc);
+                    if (df != null) {
+                        return df;
+                    }
+                }
+                return null;
+            }
+            if (loc.getSegmentIndex() < 0 || loc.getSegmentIndex() >= bySegment.size()) {
+                return null;
+            }
+            return inSegment(bySegment.get(loc.getSegmentIndex()), loc);
+        }
+
+        void all(HL7Location loc, List<DataField> into) {
+            if (loc.isSegmentIndexImplied()) {
+                for(int i=0; i<bySegment.size(); i++) {
+                    allInSegment(bySegment.get(i), loc, into);
+                }
+            } else if (loc.getSegmentIndex() >= 0 && loc.getSegmentIndex() < bySegment.size()) {
+                allInSegment(bySegment.get(loc.getSegmentIndex()), loc, into);
+            }
+        }
+
+        private static DataField inSegment(ArrayList<DataField> byField, HL7Location loc) {
+            if (byField == null) {
+                return null;
+            }
+            if (loc.isFieldIndexImplied()) {
+                for(int i=0; i<byField.size(); i++) {
+                    if (byField.get(i) != null) {
+                        return byField.get(i);
+                    }
+                }
+                return null;
+            }
+            if (loc.getFieldIndex() < 0 || loc.getFieldIndex() >= byField.size()) {
+                return null;
+            }
+            return byField.get(loc.getFieldIndex());
+        }
+
+        private static void allInSegment(ArrayList<DataField> byField, HL7Location loc, List<DataField> into) {
+            if (byField == null) {
+                return;
+            }
+            if (loc.isFieldIndexImplied()) {
+                for(int i=0; i<byField.size(); i++) {
+                    if (byField.get(i) != null) {
+                        into.add(byField.get(i));
+                    }
+                }
+            } else if (loc.getFieldIndex() >= 0 && loc.getFieldIndex() < byField.size() && byField.get(loc.getFieldIndex()) != null) {
+                into.add(byField.get(loc.getFieldIndex()));
+            }
+        }
     }
 
     //public void printCacheUsage() {
@@ -0,0 +1,116 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.spark;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import org.urhl7.hl7.HL7Location;
+import org.urhl7.hl7.HL7Scanner;
+
+/**
+ * An HL7MessageSelector that decides from the values at a few HL7Locations, read from the raw message with an
+ * HL7Scanner. Only the messages it accepts pay for HL7.structure(). Extend it and implement matches(), or use one of
+ * the static factories:
+ * <pre>
+ *   reader.setSelector(HL7MessageFilter.anyOf("PID-3.1", "123456"));
+ * </pre>
+ * @author dmorgan
+ */
+public abstract class HL7MessageFilter implements HL7MessageSelector {
+    private final HL7Location[] locations;
+
+    /**
+     * Creates a filter reading the values at the given locations.
+     * @param locations the locations, for example MSH-9.1 or PID-3
+     */
+    protected HL7MessageFilter(String... locations) {
+        this.locations = new HL7Location[locations.length];
+        for(int i=0; i<locations.length; i++) {
+            this.locations[i] = HL7Location.parse(locations[i]);
+        }
+    }
+
+    /**
+     * Creates a filter reading the values at the given locations.
+     * @param locations the locations
+     */
+    protected HL7MessageFilter(HL7Location... locations) {
+        this.locations = locations.clone();
+    }
+
+    /**
+     * Reads the values at this filter's locations and hands them to matches().
+     * @param message the raw message
+     * @return the result of matches()
+     */
+    public boolean accept(CharSequence message) {
+        return matches(HL7Scanner.scan(message, locations));
+    }
+
+    /**
+     * Decides whether a message is parsed.
+     * @param values the first value at each location, in the order the locations were given, or null where the
+     * message has nothing at that location. This is the same value HL7StructureHelper.get() would return.
+     * @return true if the message is to be parsed and sent to the listener
+     */
+    protected abstract boolean matches(String[] values);
+
+    /**
+     * Returns the locations this filter reads.
+     * @return a copy of the locations
+     */
+    public HL7Location[] getLocations() {
+        return locations.clone();
+    }
+
+    /**
+     * Creates a filter accepting messages whose value at a location is one of the given values.
+     * @param location the location, for example MSH-9.2
+     * @param values the accepted values
+     * @return the filter
+     */
+    public static HL7MessageFilter anyOf(String location, String... values) {
+        final Set<String> accepted = new HashSet<String>(Arrays.asList(values));
+        return new HL7MessageFilter(location) {
+            protected boolean matches(String[] found) {
+                return found[0] != null && accepted.contains(found[0]);
+            }
+        };
+    }
+
+    /**
+     * Creates a filter accepting messages that have a value at a location that is not empty.
+     * @param location the location, for example ZPD-1
+     * @return the filter
+     */
+    public static HL7MessageFilter present(String location) {
+        return new HL7MessageFilter(location) {
+            protected boolean matches(String[] found) {
+                return found[0] != null && found[0].length() > 0;
+            }
+        };
+    }
+}
@@ -33,7 +33,9 @@ import org.urhl7.hl7.HL7Structure;
 public interface HL7MessageListener {
 
     /**
-     * This method is called whenever a message has been successfully parsed.
+     * This method is called whenever a message has been successfully parsed. If the reader reuses structures
+     * (SparkFileReader.setReuseStructures(true)), the message may only be used until this method returns; keep
+     * message.copy() to hold on to it.
      * @param message the message received
      * @return true if message is to be accepted, false if message is to be denied.
      */
@@ -0,0 +1,238 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.spark;
+
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * An OutputStream that compresses fixed size blocks on an executor and writes each block, in order, as a complete
+ * gzip member. Every member header carries an extra field (subfield id "UH", 4 bytes) holding the length of the
+ * whole member in bytes, little endian, so a reader can split the file into members without inflating it.
+ *
+ * Flushing compresses and writes the partly filled block, so frequent flushes produce small members.
+ * @author dmorgan
+ */
+final class ParallelGzipOutputStream extends OutputStream {
+    /**
+     * First byte of the extra subfield id that holds the member length.
+     */
+    static final byte SUBFIELD_ID1 = 'U';
+    /**
+     * Second byte of the extra subfield id that holds the member length.
+     */
+    static final byte SUBFIELD_ID2 = 'H';
+    /**
+     * Length of the fixed part of a member header: the gzip header, XLEN, and the member length subfield.
+     */
+    static final int HEADER_LENGTH = 10 + 2 + 8;
+
+    private static final int TRAILER_LENGTH = 8;
+
+    private final OutputStream out;
+    private final Executor executor;
+    private final int blockSize;
+    private final int maxInFlight;
+    private final ArrayDeque<FutureTask<byte[]>> pending = new ArrayDeque<FutureTask<byte[]>>();
+
+    private byte[] block;
+    private int blockLength = 0;
+    private boolean anyMemberWritten = false;
+    private boolean closed = false;
+
+    /**
+     * Creates a new ParallelGzipOutputStream.
+     * @param out the stream the gzip members are written to
+     * @param executor the executor blocks are compressed on
+     * @param blockSize the number of uncompressed bytes in each member
+     * @param maxInFlight the largest number of blocks compressing or waiting to be written at once
+     */
+    ParallelGzipOutputStream(OutputStream out, Executor executor, int blockSize, int maxInFlight) {
+        this.out = out;
+        this.executor = executor;
+        this.blockSize = Math.max(blockSize, 1);
+        this.maxInFlight = Math.max(maxInFlight, 1);
+        this.block = new byte[this.blockSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        block[blockLength++] = (byte)b;
+        if (blockLength == blockSize) {
+            submitBlock();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        while (len > 0) {
+            int n = Math.min(len, blockSize - blockLength);
+            System.arraycopy(b, off, block, blockLength, n);
+            blockLength += n;
+            off += n;
+            len -= n;
+            if (blockLength == blockSize) {
+                submitBlock();
+            }
+        }
+    }
+
+    /**
+     * Compresses the partly filled block, writes every pending member and flushes the underlying stream.
+     * @throws IOException
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        if (blockLength > 0) {
+            submitBlock();
+        }
+        while (!pending.isEmpty()) {
+            writeOldest();
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            flush();
+            if (!anyMemberWritten) {
+                //an empty gzip file still holds one (empty) member
+                out.write(member(new byte[0], 0));
+            }
+        } finally {
+            closed = true;
+            for(FutureTask<byte[]> task : pending) {
+                task.cancel(false);
+            }
+            pending.clear();
+            out.close();
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    private void submitBlock() throws IOException {
+        while (pending.size() >= maxInFlight) {
+            writeOldest();
+        }
+        final byte[] data = block;
+        final int length = blockLength;
+        FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+            public byte[] call() {
+                return member(data, length);
+            }
+        });
+        pending.add(task);
+        executor.execute(task);
+
+        block = new byte[blockSize];
+        blockLength = 0;
+    }
+
+    private void writeOldest() throws IOException {
+        byte[] member;
+        try {
+            member = pending.poll().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a block to be compressed");
+        } catch (ExecutionException e) {
+            throw new IOException("Could not compress a block", e.getCause());
+        }
+        out.write(member);
+        anyMemberWritten = true;
+    }
+
+    //builds one complete gzip member
+    static byte[] member(byte[] data, int length) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2 + 64);
+            byte[] buf = new byte[Math.max(length / 4, 512)];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buf);
+                compressed.write(buf, 0, n);
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(data, 0, length);
+
+            int memberLength = HEADER_LENGTH + compressed.size() + TRAILER_LENGTH;
+            ByteArrayOutputStream member = new ByteArrayOutputStream(memberLength);
+            //ID1, ID2, CM=deflate, FLG=FEXTRA, MTIME, XFL, OS=unknown
+            member.write(0x1f);
+            member.write(0x8b);
+            member.write(8);
+            member.write(4);
+            writeInt(member, 0);
+            member.write(0);
+            member.write(255);
+            //XLEN, then the member length subfield
+            writeShort(member, 8);
+            member.write(SUBFIELD_ID1);
+            member.write(SUBFIELD_ID2);
+            writeShort(member, 4);
+            writeInt(member, memberLength);
+
+            compressed.writeTo(member);
+
+            writeInt(member, (int)crc.getValue());
+            writeInt(member, length);
+            return member.toByteArray();
+        } catch (IOException e) {
+            //ByteArrayOutputStream does not throw
+            throw new IllegalStateException(e);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static void writeShort(OutputStream out, int v) throws IOException {
+        out.write(v & 0xff);
+        out.write((v >>> 8) & 0xff);
+    }
+
+    private static void writeInt(OutputStream out, int v) throws IOException {
+        writeShort(out, v & 0xffff);
+        writeShort(out, (v >>> 16) & 0xffff);
+    }
+}
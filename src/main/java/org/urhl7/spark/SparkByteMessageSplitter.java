@@ -0,0 +1,173 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.spark;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Splits a stream of bytes into messages on an encoded delimiter, before anything is decoded. This works like
+ * SparkMessageSplitter, but next() only marks where the message is in buffer(), so the caller can decide whether
+ * it is worth decoding at all. It may only be used for charsets where supports() is true.
+ * @author dmorgan
+ */
+final class SparkByteMessageSplitter {
+    private static final String ASCII_SAMPLE = "MSH|^~\\&\r\n\t #*:`-_ABCXYZabcxyz0123456789";
+
+    private final byte[] delimiter;
+    private byte[] buf;
+    private int length = 0;
+    private int start = 0;
+    private int scan = 0;
+    private int messageStart = 0;
+    private int messageLength = 0;
+    private long discarded = 0;
+
+    /**
+     * Creates a new SparkByteMessageSplitter.
+     * @param delimiter the encoded delimiter between messages
+     * @param initialCapacity the initial size of the internal buffer
+     */
+    SparkByteMessageSplitter(byte[] delimiter, int initialCapacity) {
+        if (delimiter.length == 0) {
+            throw new IllegalArgumentException("The delimiter between messages must not be empty");
+        }
+        this.delimiter = delimiter;
+        this.buf = new byte[Math.max(initialCapacity, delimiter.length)];
+    }
+
+    /**
+     * Returns true if messages in this charset can be split on raw bytes. That is the case for single byte charsets
+     * that encode ASCII as ASCII (ISO-8859-1, windows-1252, US-ASCII...) and for UTF-8, where the bytes of an ASCII
+     * character never occur inside another character.
+     * @param charset the charset
+     * @return true if the charset can be scanned as bytes
+     */
+    static boolean supports(Charset charset) {
+        if (StandardCharsets.UTF_8.equals(charset)) {
+            return true;
+        }
+        if (!charset.canEncode() || charset.newEncoder().maxBytesPerChar() != 1.0f) {
+            return false;
+        }
+        return Arrays.equals(ASCII_SAMPLE.getBytes(charset), ASCII_SAMPLE.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Appends the remaining bytes of a ByteBuffer, consuming them.
+     * @param bytes the bytes to append
+     */
+    void append(ByteBuffer bytes) {
+        int len = bytes.remaining();
+        ensureRoom(len);
+        bytes.get(buf, length, len);
+        length += len;
+    }
+
+    /**
+     * Finds the next complete message. Its bytes are then buffer()[messageStart(), messageStart()+messageLength()).
+     * @return false if no complete message has been appended yet
+     */
+    boolean next() {
+        byte first = delimiter[0];
+        int last = length - delimiter.length;
+        for(int i=scan; i<=last; i++) {
+            if (buf[i] == first && isDelimiterAt(i)) {
+                messageStart = start;
+                messageLength = i - start;
+                start = i + delimiter.length;
+                scan = start;
+                return true;
+            }
+        }
+        //a delimiter may be split across appends, so rescan its possible start
+        scan = Math.max(start, last + 1);
+        return false;
+    }
+
+    /**
+     * Marks everything after the last delimiter as the current message.
+     * @return false if the remainder is blank (only whitespace and control characters, as String.trim() sees it)
+     */
+    boolean remainder() {
+        messageStart = start;
+        messageLength = length - start;
+        for(int i=start; i<length; i++) {
+            if ((buf[i] & 0xff) > ' ') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    byte[] buffer() {
+        return buf;
+    }
+
+    int messageStart() {
+        return messageStart;
+    }
+
+    int messageLength() {
+        return messageLength;
+    }
+
+    /**
+     * Returns the position of the current message in everything appended so far.
+     * @return the offset of the current message
+     */
+    long messageOffset() {
+        return discarded + messageStart;
+    }
+
+    private boolean isDelimiterAt(int pos) {
+        for(int j=1; j<delimiter.length; j++) {
+            if (buf[pos+j] != delimiter[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void ensureRoom(int len) {
+        if (length + len <= buf.length) {
+            return;
+        }
+        if (start > 0) {
+            System.arraycopy(buf, start, buf, 0, length-start);
+            discarded += start;
+            length -= start;
+            scan -= start;
+            start = 0;
+        }
+        if (length + len > buf.length) {
+            byte[] bigger = new byte[Math.max(buf.length*2, length+len)];
+            System.arraycopy(buf, 0, bigger, 0, length);
+            buf = bigger;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.spark;
+
+/**
+ * Enumeration to specify how a SparkFileWriter compresses the file it writes.
+ * @author dmorgan
+ */
+public enum SparkCompression {
+    /**
+     * Messages are written as plain text.
+     */
+    NONE,
+    /**
+     * Messages are written as a single gzip stream, compressed on the writing thread.
+     */
+    GZIP,
+    /**
+     * Messages are cut into fixed size blocks that are compressed on an executor, each into its own gzip member.
+     * The members are written in order, so the file is a standard multi-member gzip file that any gzip reader
+     * (including SparkFileReader) can read. Each member records its own length in a gzip extra field, so readers
+     * can find and inflate the members independently.
+     */
+    PARALLEL_GZIP
+
+}
@@ -25,7 +25,16 @@
 package org.urhl7.spark;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.StandardOpenOption;
 import org.urhl7.hl7.HL7;
+import org.urhl7.hl7.HL7Location;
+import org.urhl7.hl7.HL7Scanner;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 import java.util.zip.*;
 import org.urhl7.hl7.HL7Structure;
 
@@ -38,6 +47,20 @@ public class SparkFileReader {
     private String delimiter;
     private HL7MessageListener listener;
     private int INTERNAL_BUFFER_SIZE = 500;
+    private int CHANNEL_BUFFER_SIZE = 64 * 1024;
+    private SparkReadMode readMode = SparkReadMode.STANDARD;
+    private Executor executor = null;
+    private SparkDelivery delivery = SparkDelivery.IN_ORDER;
+    private int maxMessagesInFlight = 4 * Runtime.getRuntime().availableProcessors();
+    private int readAheadBlocks = 16;
+    private Charset charset = Charset.defaultCharset();
+    private HL7MessageSelector selector = null;
+    private boolean buildIndex = false;
+    private String[] indexKeys = SparkIndex.KEYS_DEFAULT;
+    private boolean reuseStructures = false;
+
+    //room for any partially read character
+    private static final int MINIMUM_CHANNEL_BUFFER_SIZE = 16;
 
     /**
      * The default delimiter between messages. The default value is "\r\n"
@@ -154,7 +177,7 @@ public class SparkFileReader {
         Shamelessly taken from http://stackoverflow.com/questions/30507653/how-to-check-whether-file-is-gzip-or-not-in-java
         Thank you kind internet friend
     */
-    private static boolean isGZipped(File f) {
+    static boolean isGZipped(File f) {
         int magic = 0;
         try {
             RandomAccessFile raf = new RandomAccessFile(f, "r");
@@ -167,11 +190,30 @@ public class SparkFileReader {
     /**
      * Begins parsing the messages in the file specified. This may throw an IOException and must be handled. The parse function reads in the file,
      * when it finds a delimiter will attempt to parse the message. This message is then sent to the listener specified.
+     * If an executor is set, messages are parsed on it and sent to the listener in the order set by setDelivery().
+     * If setBuildIndex(true) was called, the file is read in the CHANNEL mode and its index is saved next to it.
      * @return success of the parsing (if any of the messaceReceived(HL7Structure struct) calls return false, this will as well).
      * @throws java.io.IOException
      */
     public boolean parseBatch() throws java.io.IOException {
-        boolean success  = true;
+        SparkMessageDispatcher dispatcher = SparkMessageDispatcher.create(listener, executor, delivery, getMaxMessagesInFlight(), reuseStructures);
+        try {
+            if (buildIndex) {
+                indexBatch(dispatcher);
+            } else if (readMode == SparkReadMode.CHANNEL) {
+                parseBatchChannel(dispatcher);
+            } else if (readMode == SparkReadMode.PIPELINED) {
+                parseBatchPipelined(dispatcher);
+            } else {
+                parseBatchStandard(dispatcher);
+            }
+            return dispatcher.finish();
+        } finally {
+            dispatcher.cancel();
+        }
+    }
+
+    private void parseBatchStandard(SparkMessageDispatcher dispatcher) throws java.io.IOException {
         //FileReader fr = new FileReader(inputFile);
         
         Reader fr = null;
@@ -179,10 +221,10 @@ public class SparkFileReader {
         if( SparkFileReader.isGZipped(inputFile) ){
             InputStream fileStream = new FileInputStream(inputFile);
             InputStream gzipStream = new GZIPInputStream(fileStream);
-            Reader decoder = new InputStreamReader(gzipStream);
+            Reader decoder = new InputStreamReader(gzipStream, charset);
             fr = new BufferedReader(decoder);
         } else {
-            fr = new FileReader(inputFile);
+            fr = new InputStreamReader(new FileInputStream(inputFile), charset);
         }
 
         char[] buf = new char[getInternalBufferSize()];
@@ -197,7 +239,7 @@ public class SparkFileReader {
 
             while (sb.indexOf(delimiter) != -1) {
                 message = sb.substring(0, sb.indexOf(delimiter)).toString();
-                success = success && listener.messageReceived(HL7.structure(message));
+                offer(dispatcher, message);
                 if (message.length()+delimiter.length() <= sb.length()) {
                     sb.delete(0, message.length()+delimiter.length());
                 } else {
@@ -212,11 +254,285 @@ public class SparkFileReader {
         //final cleanup.
         if (!sb.toString().trim().equals("")) {
             message = sb.toString();
-            success = success && listener.messageReceived(HL7.structure(new String(message)));
+            offer(dispatcher, new String(message));
         }
 
         fr.close();
-        return success;
+    }
+
+    /**
+     * Reads the whole file without parsing it, and saves an index of it next to the file (see SparkIndex.sidecarFor()).
+     * The index records where every message starts, and the values at the key locations set with setIndexKeys().
+     * Indexing finds messages in the raw bytes, so the charset must be UTF-8, or a single byte charset that encodes
+     * ASCII as ASCII.
+     * @return the index
+     * @throws java.io.IOException if the file cannot be read, or the charset cannot be scanned as bytes
+     */
+    public SparkIndex buildIndex() throws java.io.IOException {
+        return indexBatch(null);
+    }
+
+    /**
+     * Loads the index saved next to the file by buildIndex(), parseBatch() or SparkFileWriter.
+     * @return the index
+     * @throws java.io.IOException if there is no index, or it cannot be read
+     */
+    public SparkIndex loadIndex() throws java.io.IOException {
+        return SparkIndex.load(SparkIndex.sidecarFor(inputFile));
+    }
+
+    /**
+     * Reads and parses a single message, seeking straight to it with an index of the file. Gzip files are inflated
+     * from the nearest restart point before the message. The selector does not apply.
+     * @param index an index of this file
+     * @param ordinal the position of the message in the file, starting at 0
+     * @return the message
+     * @throws java.io.IOException
+     */
+    public HL7Structure read(SparkIndex index, int ordinal) throws java.io.IOException {
+        HL7MessageListenerListAdapter adapter = new HL7MessageListenerListAdapter();
+        SparkMessageDispatcher dispatcher = SparkMessageDispatcher.create(adapter, null, delivery, 1);
+        readIndexed(index, ordinal, ordinal+1, dispatcher, false);
+        dispatcher.finish();
+        return adapter.getList().get(0);
+    }
+
+    /**
+     * Reads a range of messages, seeking straight to the first with an index of the file, and sends them to the
+     * listener as parseBatch() does. The selector, executor and delivery order all apply.
+     * @param index an index of this file
+     * @param from the position of the first message, starting at 0
+     * @param to the position after the last message
+     * @return success of the parsing (if any of the messaceReceived(HL7Structure struct) calls return false, this will as well).
+     * @throws java.io.IOException
+     */
+    public boolean read(SparkIndex index, int from, int to) throws java.io.IOException {
+        if (from < 0 || to > index.size() || from > to) {
+            throw new IndexOutOfBoundsException("Messages " + from + " to " + to + " are not in the index of " + index.size() + " messages");
+        }
+        SparkMessageDispatcher dispatcher = SparkMessageDispatcher.create(listener, executor, delivery, getMaxMessagesInFlight(), reuseStructures);
+        try {
+            readIndexed(index, from, to, dispatcher, true);
+            return dispatcher.finish();
+        } finally {
+            dispatcher.cancel();
+        }
+    }
+
+    private void readIndexed(SparkIndex index, int from, int to, SparkMessageDispatcher dispatcher, boolean select) throws java.io.IOException {
+        if (from == to) {
+            return;
+        }
+        FileChannel file = FileChannel.open(inputFile.toPath(), StandardOpenOption.READ);
+        try {
+            if (SparkFileReader.isGZipped(inputFile)) {
+                long[] restart = index.restartPointFor(index.getOffset(from));
+                file.position(restart[0]);
+                //GZIPInputStream carries on through the members after the restart point
+                DataInputStream in = new DataInputStream(new GZIPInputStream(Channels.newInputStream(file), getChannelBufferSize()));
+                long position = restart[1];
+                for(int i=from; i<to; i++) {
+                    long skip = index.getOffset(i) - position;
+                    while (skip > 0) {
+                        int skipped = in.skipBytes((int)Math.min(skip, Integer.MAX_VALUE));
+                        if (skipped == 0) {
+                            throw new EOFException("The index of " + inputFile + " points past the end of the file");
+                        }
+                        skip -= skipped;
+                    }
+                    byte[] message = new byte[index.getLength(i)];
+                    in.readFully(message);
+                    position = index.getOffset(i) + message.length;
+                    offer(dispatcher, new String(message, charset), select);
+                }
+            } else {
+                for(int i=from; i<to; i++) {
+                    ByteBuffer message = ByteBuffer.allocate(index.getLength(i));
+                    long position = index.getOffset(i);
+                    while (message.hasRemaining()) {
+                        if (file.read(message, position + message.position()) == -1) {
+                            throw new EOFException("The index of " + inputFile + " points past the end of the file");
+                        }
+                    }
+                    offer(dispatcher, new String(message.array(), charset), select);
+                }
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    private SparkIndex indexBatch(SparkMessageDispatcher dispatcher) throws java.io.IOException {
+        if (!SparkByteMessageSplitter.supports(charset)) {
+            throw new IOException("An index can only be built for charsets that can be scanned as bytes, not " + charset);
+        }
+        SparkIndex index = new SparkIndex(indexKeys);
+        parseBatchChannelBytes(openChannel(), dispatcher, index);
+        if (SparkFileReader.isGZipped(inputFile)) {
+            index.findRestartPoints(inputFile);
+        }
+        index.save(SparkIndex.sidecarFor(inputFile));
+        return index;
+    }
+
+    private ReadableByteChannel openChannel() throws java.io.IOException {
+        if( SparkFileReader.isGZipped(inputFile) ){
+            return Channels.newChannel(new GZIPInputStream(new FileInputStream(inputFile), getChannelBufferSize()));
+        } else {
+            return FileChannel.open(inputFile.toPath(), StandardOpenOption.READ);
+        }
+    }
+
+    private void parseBatchChannel(SparkMessageDispatcher dispatcher) throws java.io.IOException {
+        ReadableByteChannel channel = openChannel();
+
+        if (SparkByteMessageSplitter.supports(charset)) {
+            parseBatchChannelBytes(channel, dispatcher, null);
+            return;
+        }
+
+        //same charset handling as InputStreamReader
+        CharsetDecoder decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        int bufferSize = Math.max(getChannelBufferSize(), MINIMUM_CHANNEL_BUFFER_SIZE);
+        ByteBuffer bytes = ByteBuffer.allocate(bufferSize);
+        CharBuffer chars = CharBuffer.allocate(bufferSize);
+        SparkMessageSplitter splitter = new SparkMessageSplitter(delimiter, bufferSize);
+        String message = "";
+
+        try {
+            boolean endOfInput = false;
+            while (!endOfInput) {
+                endOfInput = (channel.read(bytes) == -1);
+                bytes.flip();
+
+                CoderResult result;
+                do {
+                    result = decoder.decode(bytes, chars, endOfInput);
+                    if (!result.isOverflow() && endOfInput) {
+                        result = decoder.flush(chars);
+                    }
+                    chars.flip();
+                    splitter.append(chars);
+                    chars.clear();
+                } while (result.isOverflow());
+                bytes.compact();
+
+                while ((message = splitter.next()) != null) {
+                    offer(dispatcher, message);
+                }
+            }
+        } finally {
+            channel.close();
+        }
+
+        //final cleanup.
+        message = splitter.remainder();
+        if (!message.trim().equals("")) {
+            offer(dispatcher, message);
+        }
+    }
+
+    //splits on raw bytes and only decodes the messages the selector accepts. With no dispatcher, messages are only indexed
+    private void parseBatchChannelBytes(ReadableByteChannel channel, SparkMessageDispatcher dispatcher, SparkIndex index) throws java.io.IOException {
+        int bufferSize = Math.max(getChannelBufferSize(), MINIMUM_CHANNEL_BUFFER_SIZE);
+        ByteBuffer bytes = ByteBuffer.allocate(bufferSize);
+        SparkByteMessageSplitter splitter = new SparkByteMessageSplitter(delimiter.getBytes(charset), bufferSize);
+        HL7Location[] keyLocations = null;
+        if (index != null) {
+            String[] keys = index.keyLocationArray();
+            keyLocations = new HL7Location[keys.length];
+            for(int i=0; i<keys.length; i++) {
+                keyLocations[i] = HL7Location.parse(keys[i]);
+            }
+        }
+
+        try {
+            while (channel.read(bytes) != -1) {
+                bytes.flip();
+                splitter.append(bytes);
+                bytes.clear();
+
+                while (splitter.next()) {
+                    if (index != null) {
+                        record(index, keyLocations, splitter);
+                    }
+                    if (dispatcher != null) {
+                        offer(dispatcher, splitter);
+                    }
+                }
+            }
+        } finally {
+            channel.close();
+        }
+
+        //final cleanup.
+        if (splitter.remainder()) {
+            if (index != null) {
+                record(index, keyLocations, splitter);
+            }
+            if (dispatcher != null) {
+                offer(dispatcher, splitter);
+            }
+        }
+    }
+
+    private void record(SparkIndex index, HL7Location[] keyLocations, SparkByteMessageSplitter splitter) {
+        String[] keys = HL7Scanner.scan(new ByteCharSequence(ByteBuffer.wrap(splitter.buffer()), splitter.messageStart(), splitter.messageLength()), keyLocations);
+        //the view reads the bytes as ISO-8859-1, so decode the values again when the file is in another charset
+        if (!StandardCharsets.ISO_8859_1.equals(charset)) {
+            for(int i=0; i<keys.length; i++) {
+                if (keys[i] != null) {
+                    keys[i] = new String(keys[i].getBytes(StandardCharsets.ISO_8859_1), charset);
+                }
+            }
+        }
+        index.add(splitter.messageOffset(), splitter.messageLength(), keys);
+    }
+
+    private void offer(SparkMessageDispatcher dispatcher, SparkByteMessageSplitter splitter) throws java.io.IOException {
+        byte[] buf = splitter.buffer();
+        if (selector == null || selector.accept(new ByteCharSequence(ByteBuffer.wrap(buf), splitter.messageStart(), splitter.messageLength()))) {
+            dispatcher.dispatch(new String(buf, splitter.messageStart(), splitter.messageLength(), charset));
+        }
+    }
+
+    private void offer(SparkMessageDispatcher dispatcher, String message) throws java.io.IOException {
+        offer(dispatcher, message, true);
+    }
+
+    private void offer(SparkMessageDispatcher dispatcher, String message, boolean select) throws java.io.IOException {
+        if (!select || selector == null || selector.accept(message)) {
+            dispatcher.dispatch(message);
+        }
+    }
+
+    private void parseBatchPipelined(SparkMessageDispatcher dispatcher) throws java.io.IOException {
+        int bufferSize = Math.max(getChannelBufferSize(), MINIMUM_CHANNEL_BUFFER_SIZE);
+        Executor inflateExecutor = (executor != null) ? executor : ForkJoinPool.commonPool();
+        SparkReadAhead readAhead = new SparkReadAhead(inputFile, SparkFileReader.isGZipped(inputFile), charset,
+                inflateExecutor, bufferSize, getReadAheadBlocks());
+        SparkMessageSplitter splitter = new SparkMessageSplitter(delimiter, bufferSize);
+        String message = "";
+
+        try {
+            char[] block;
+            while ((block = readAhead.take()) != null) {
+                splitter.append(block, 0, block.length);
+                while ((message = splitter.next()) != null) {
+                    offer(dispatcher, message);
+                }
+            }
+        } finally {
+            readAhead.close();
+        }
+
+        //final cleanup.
+        message = splitter.remainder();
+        if (!message.trim().equals("")) {
+            offer(dispatcher, message);
+        }
     }
 
     /**
@@ -227,15 +543,15 @@ public class SparkFileReader {
      */
     public HL7Structure parse() throws java.io.IOException {
         HL7Structure retour=null;
-        BufferedReader br= new BufferedReader(new FileReader(inputFile));
+        BufferedReader br= new BufferedReader(new InputStreamReader(new FileInputStream(inputFile), charset));
        
-        String message = "";
+        StringBuilder message = new StringBuilder();
 
-     message=br.readLine()+"\r";
+        message.append(br.readLine()).append('\r');
 
-        while(br.ready()) {message=message+br.readLine()+"\r";}
+        while(br.ready()) {message.append(br.readLine()).append('\r');}
         
-        retour=HL7.structure(message);
+        retour=HL7.structure(message.toString());
     
         br.close();
         return retour;
@@ -259,4 +575,200 @@ public class SparkFileReader {
         this.INTERNAL_BUFFER_SIZE = internalBufferSize;
     }
 
+    /**
+     * Gets the size, in bytes, of the buffers used by the CHANNEL and PIPELINED read modes. The default is 64KB.
+     * @return the CHANNEL_BUFFER_SIZE
+     */
+    public int getChannelBufferSize() {
+        return CHANNEL_BUFFER_SIZE;
+    }
+
+    /**
+     * Sets the size, in bytes, of the buffers used by the CHANNEL and PIPELINED read modes. Sizes below 16 bytes are
+     * raised to 16.
+     * @param channelBufferSize the CHANNEL_BUFFER_SIZE to set
+     */
+    public void setChannelBufferSize(int channelBufferSize) {
+        this.CHANNEL_BUFFER_SIZE = channelBufferSize;
+    }
+
+    /**
+     * Returns the SparkReadMode used by parseBatch(). The default is SparkReadMode.STANDARD.
+     * @return the read mode
+     */
+    public SparkReadMode getReadMode() {
+        return readMode;
+    }
+
+    /**
+     * Sets the SparkReadMode used by parseBatch().
+     * @param readMode the read mode to set
+     */
+    public void setReadMode(SparkReadMode readMode) {
+        this.readMode = readMode;
+    }
+
+    /**
+     * Returns the Charset the file is decoded with.
+     * @return the charset
+     */
+    public Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * Sets the Charset the file is decoded with. The default is the platform default charset. For single byte
+     * charsets that encode ASCII as ASCII (such as ISO-8859-1), and for UTF-8, the CHANNEL read mode finds message
+     * delimiters in the raw bytes and only decodes the messages the selector accepts.
+     * @param charset the charset to set
+     */
+    public void setCharset(Charset charset) {
+        this.charset = charset;
+    }
+
+    /**
+     * Returns the HL7MessageSelector that decides which messages are parsed, or null if every message is parsed.
+     * @return the selector
+     */
+    public HL7MessageSelector getSelector() {
+        return selector;
+    }
+
+    /**
+     * Sets the HL7MessageSelector that decides, from the raw text, which messages are parsed and sent to the listener.
+     * An HL7MessageFilter selects on the values at a few HL7Locations. Use null to parse every message, which is the
+     * default.
+     * @param selector the selector to set
+     */
+    public void setSelector(HL7MessageSelector selector) {
+        this.selector = selector;
+    }
+
+    /**
+     * Returns true if parseBatch() saves an index of the file next to it.
+     * @return the buildIndex
+     */
+    public boolean isBuildIndex() {
+        return buildIndex;
+    }
+
+    /**
+     * Sets whether parseBatch() saves an index of the file next to it, for read(SparkIndex, ...) to seek with later.
+     * Building an index reads the file in the CHANNEL mode, whatever the read mode, and needs a charset that can be
+     * scanned as bytes. The default is false.
+     * @param buildIndex the buildIndex to set
+     */
+    public void setBuildIndex(boolean buildIndex) {
+        this.buildIndex = buildIndex;
+    }
+
+    /**
+     * Returns the locations whose values are recorded in the index for every message.
+     * @return the index keys
+     */
+    public String[] getIndexKeys() {
+        return indexKeys.clone();
+    }
+
+    /**
+     * Sets the locations whose values are recorded in the index for every message. The default is
+     * SparkIndex.KEYS_DEFAULT (MSH-10, PID-3 and MSH-7).
+     * @param indexKeys the index keys to set
+     */
+    public void setIndexKeys(String... indexKeys) {
+        this.indexKeys = indexKeys.clone();
+    }
+
+    /**
+     * Returns true if parseBatch() and read(SparkIndex, int, int) hand recycled HL7Structures to the listener.
+     * @return the reuseStructures
+     */
+    public boolean isReuseStructures() {
+        return reuseStructures;
+    }
+
+    /**
+     * Sets whether parseBatch() and read(SparkIndex, int, int) hand recycled HL7Structures to the listener, instead of
+     * building a new one for every message. Once messageReceived() returns, the structure it was given is reloaded
+     * with a later message, and the segments, fields, components and subcomponents under it are reset and reused
+     * (see {@link HL7Structure#reload(String)}). With reuse on, a listener may only use the message, and anything it
+     * got from it, until messageReceived() returns. To keep a message past that, the listener keeps message.copy()
+     * instead. The default is false, where the listener may keep any message it is given.
+     * @param reuseStructures the reuseStructures to set
+     */
+    public void setReuseStructures(boolean reuseStructures) {
+        this.reuseStructures = reuseStructures;
+    }
+
+    /**
+     * Returns the Executor that messages are parsed on, or null if they are parsed on the thread calling parseBatch().
+     * @return the executor
+     */
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Sets an Executor (such as a ForkJoinPool, or a virtual thread per task executor) to parse messages on. The file
+     * is still read, and the listener is still called, on the thread calling parseBatch(). Use null to parse on that
+     * thread as well, which is the default.
+     * @param executor the executor to set
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Returns the order in which messages parsed on the executor are sent to the listener.
+     * @return the delivery order
+     */
+    public SparkDelivery getDelivery() {
+        return delivery;
+    }
+
+    /**
+     * Sets the order in which messages parsed on the executor are sent to the listener. The default is
+     * SparkDelivery.IN_ORDER.
+     * @param delivery the delivery order to set
+     */
+    public void setDelivery(SparkDelivery delivery) {
+        this.delivery = delivery;
+    }
+
+    /**
+     * Returns the largest number of messages that may be parsing or waiting for delivery at once when an executor is set.
+     * @return the maxMessagesInFlight
+     */
+    public int getMaxMessagesInFlight() {
+        return maxMessagesInFlight;
+    }
+
+    /**
+     * Sets the largest number of messages that may be parsing or waiting for delivery at once when an executor is set.
+     * Reading stops while this many messages are outstanding, which keeps memory use flat on large files. The default
+     * is four times the number of processors.
+     * @param maxMessagesInFlight the maxMessagesInFlight to set
+     */
+    public void setMaxMessagesInFlight(int maxMessagesInFlight) {
+        this.maxMessagesInFlight = maxMessagesInFlight;
+    }
+
+    /**
+     * Returns the largest number of decoded blocks the PIPELINED read mode reads ahead of the parser.
+     * @return the readAheadBlocks
+     */
+    public int getReadAheadBlocks() {
+        return readAheadBlocks;
+    }
+
+    /**
+     * Sets the largest number of decoded blocks the PIPELINED read mode reads ahead of the parser. Each block holds
+     * about one channel buffer of text. The default is 16. Gzip members are inflated on the executor set with
+     * setExecutor(), or on the common ForkJoinPool when there is none.
+     * @param readAheadBlocks the readAheadBlocks to set
+     */
+    public void setReadAheadBlocks(int readAheadBlocks) {
+        this.readAheadBlocks = readAheadBlocks;
+    }
+
 }
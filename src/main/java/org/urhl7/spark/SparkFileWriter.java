@@ -24,26 +24,61 @@
 
 package org.urhl7.spark;
 
+import org.urhl7.hl7.HL7Location;
+import org.urhl7.hl7.HL7Scanner;
 import org.urhl7.hl7.HL7Structure;
 import java.io.*;
+import java.nio.charset.Charset;
 import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.GZIPOutputStream;
 
 /**
- * Allows the writing of HL7Structure messages to a specified file.
+ * Allows the writing of HL7Structure messages to a specified file. Messages are written through a buffer, which is
+ * flushed according to the SparkFlushPolicy (after every message by default, or after every few compressed blocks
+ * when the file is compressed). A SparkFileWriter must be closed when you are done with it, for example with a
+ * try-with-resources statement.
  * @author dmorgan
  */
-public class SparkFileWriter {
+public class SparkFileWriter implements Closeable {
     private File outputFile;
     private String delimiter;
     private boolean appendToFile;
+    private SparkFlushPolicy flushPolicy = null;
+    private int bufferSize = BUFFER_SIZE_DEFAULT;
+    private SparkCompression compression = SparkCompression.NONE;
+    private Charset charset = Charset.defaultCharset();
+    private Executor compressionExecutor = null;
+    private int compressionBlockSize = COMPRESSION_BLOCK_SIZE_DEFAULT;
+    private boolean buildIndex = false;
+    private String[] indexKeys = SparkIndex.KEYS_DEFAULT;
 
-    private FileWriter fw = null;
+    private CountingWriter fw = null;
+    private int messagesSinceFlush = 0;
+    private long charactersSinceFlush = 0;
+    private long lastFlushNanos = System.nanoTime();
+    private SparkFlushPolicy defaultFlushPolicy = SparkFlushPolicy.EVERY_MESSAGE;
+    private SparkIndex index = null;
+    private HL7Location[] indexLocations = null;
+    private long indexPosition = 0;
 
     /**
      * The default delimiter between messages. The default value is "\r\n"
      */
     public static final String DELIMITER_DEFAULT = "\r\n";
 
+    /**
+     * The default size of the write buffer, in characters. The default value is 64K.
+     */
+    public static final int BUFFER_SIZE_DEFAULT = 64 * 1024;
+
+    /**
+     * The default number of uncompressed bytes in each gzip member written by SparkCompression.PARALLEL_GZIP. The
+     * default value is 256KB.
+     */
+    public static final int COMPRESSION_BLOCK_SIZE_DEFAULT = 256 * 1024;
+
 
     /**
      * Creates a SparkFileWriter, mapped to a specific File path. Default delimiters are used, and the file will be APPENDED to if it
@@ -133,31 +168,82 @@ public class SparkFileWriter {
             prepFileStreams();
         }
         
-        fw.write(message.marshal());
-        fw.write(getDelimiter());
-        fw.flush();
+        writeMessage(message);
+        flushIfNeeded();
     }
 
     /**
-     * Writes several HL7Structure messages to the file, each ended with the specified delimiter.
+     * Writes several HL7Structure messages to the file, each ended with the specified delimiter. The messages are
+     * marshalled straight into the buffer. With the EVERY_MESSAGE policy the buffer is flushed once, after the last
+     * message; any other policy is checked after each message.
      * @param messages
      * @throws java.io.IOException
      */
     public void writeAll(List<HL7Structure> messages) throws IOException {
+        if (fw == null) {
+            prepFileStreams();
+        }
+
+        boolean everyMessage = getFlushPolicy().isEveryMessage();
         for(HL7Structure message : messages) {
-            write(message);
+            writeMessage(message);
+            if (!everyMessage) {
+                flushIfNeeded();
+            }
+        }
+        if (everyMessage) {
+            flush();
+        }
+    }
+
+    private void writeMessage(HL7Structure message) throws IOException {
+        long before = fw.count;
+        if (index != null) {
+            String data = message.marshal();
+            fw.write(data);
+            int length = data.getBytes(charset).length;
+            index.add(indexPosition, length, HL7Scanner.scan(data, indexLocations));
+            indexPosition += length + delimiter.getBytes(charset).length;
+        } else {
+            //streams the message into the buffer, without building it as a String first
+            message.marshalTo(fw);
+        }
+        fw.write(delimiter);
+        messagesSinceFlush++;
+        charactersSinceFlush += fw.count - before;
+    }
+
+    private void flushIfNeeded() throws IOException {
+        long millisSinceFlush = (System.nanoTime() - lastFlushNanos) / 1000000L;
+        if (getFlushPolicy().shouldFlush(messagesSinceFlush, charactersSinceFlush, millisSinceFlush)) {
+            flush();
+        }
+    }
+
+    /**
+     * Flushes any buffered messages to the file.
+     * @throws java.io.IOException
+     */
+    public void flush() throws IOException {
+        if (fw != null) {
+            fw.flush();
         }
+        messagesSinceFlush = 0;
+        charactersSinceFlush = 0;
+        lastFlushNanos = System.nanoTime();
     }
 
     /**
-     * Closes the underlying FileWriter. If you call this method and attempt to write again, you will receive an
-     * IOException. Remember to close() when you are finished with your writing to file to avoid locks.
+     * Flushes any buffered messages and closes the underlying file. If you call this method and attempt to write
+     * again, you will receive an IOException. Remember to close() when you are finished with your writing to file to
+     * avoid locks and lost messages. If an index is being built, it is saved next to the file.
      * @throws java.io.IOException
      */
     public void close() throws IOException {
         if ( fw != null) {
             fw.close();
         }
+        saveIndex();
     }
 
     /**
@@ -173,8 +259,8 @@ public class SparkFileWriter {
      * @param outputFile the outputFile to set
      */
     public void setOutputFile(File outputFile) {
+        releaseFileStreams();
         this.outputFile = outputFile;
-        fw = null;
     }
 
     /**
@@ -207,25 +293,274 @@ public class SparkFileWriter {
      */
     public void setAppendToFile(boolean appendToFile) {
         this.appendToFile = appendToFile;
-        fw = null;
+        releaseFileStreams();
 
     }
 
-    //reassigns the filewriter
-    private void prepFileStreams() throws IOException {
-        fw = new FileWriter(getOutputFile(), isAppendToFile());
+    /**
+     * Returns the policy deciding when buffered messages are flushed to the file.
+     * @return the flushPolicy
+     */
+    public SparkFlushPolicy getFlushPolicy() {
+        if (flushPolicy != null) {
+            return flushPolicy;
+        }
+        if (fw == null) {
+            defaultFlushPolicy = createDefaultFlushPolicy();
+        }
+        return defaultFlushPolicy;
+    }
+
+    /**
+     * Sets the policy deciding when buffered messages are flushed to the file. The default for a plain file is
+     * SparkFlushPolicy.EVERY_MESSAGE. Each flush of a compressed file ends a gzip block, so the default for
+     * SparkCompression.GZIP is to flush every compression block size bytes, and for SparkCompression.PARALLEL_GZIP
+     * every time a full round of blocks can be compressed in parallel. Use null to go back to the default.
+     * @param flushPolicy the flushPolicy to set
+     */
+    public void setFlushPolicy(SparkFlushPolicy flushPolicy) {
+        this.flushPolicy = flushPolicy;
+    }
+
+    /**
+     * Returns the size of the write buffer, in characters.
+     * @return the bufferSize
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Sets the size of the write buffer, in characters. This takes effect the next time the file is opened.
+     * @param bufferSize the bufferSize to set
+     */
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Returns the Charset messages are encoded with.
+     * @return the charset
+     */
+    public Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * Sets the Charset messages are encoded with. The default is the platform default charset. This takes effect the
+     * next time the file is opened.
+     * @param charset the charset to set
+     */
+    public void setCharset(Charset charset) {
+        this.charset = charset;
+    }
+
+    /**
+     * Returns how the file is compressed.
+     * @return the compression
+     */
+    public SparkCompression getCompression() {
+        return compression;
+    }
+
+    /**
+     * Sets how the file is compressed. The default is SparkCompression.NONE. This takes effect the next time the file
+     * is opened. Appending compressed output to a file is only readable if the file was already gzip compressed.
+     * Unless a flush policy has been set, a compressed file is flushed by size rather than after every message (see
+     * setFlushPolicy).
+     * @param compression the compression to set
+     */
+    public void setCompression(SparkCompression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Returns the Executor blocks are compressed on for SparkCompression.PARALLEL_GZIP, or null to use the common
+     * ForkJoinPool.
+     * @return the compressionExecutor
+     */
+    public Executor getCompressionExecutor() {
+        return compressionExecutor;
+    }
+
+    /**
+     * Sets the Executor blocks are compressed on for SparkCompression.PARALLEL_GZIP. Use null to use the common
+     * ForkJoinPool, which is the default.
+     * @param compressionExecutor the compressionExecutor to set
+     */
+    public void setCompressionExecutor(Executor compressionExecutor) {
+        this.compressionExecutor = compressionExecutor;
+    }
+
+    /**
+     * Returns the number of uncompressed bytes in each gzip member written by SparkCompression.PARALLEL_GZIP.
+     * @return the compressionBlockSize
+     */
+    public int getCompressionBlockSize() {
+        return compressionBlockSize;
+    }
+
+    /**
+     * Sets the number of uncompressed bytes in each gzip member written by SparkCompression.PARALLEL_GZIP. Larger
+     * blocks compress a little better, smaller blocks spread across more cores.
+     * @param compressionBlockSize the compressionBlockSize to set
+     */
+    public void setCompressionBlockSize(int compressionBlockSize) {
+        this.compressionBlockSize = compressionBlockSize;
     }
 
     /**
-     * Ensures that on finalization, the underlying file writer is closed.
-     * @throws java.lang.Throwable
+     * Returns true if an index of the file is saved next to it when the writer is closed.
+     * @return the buildIndex
      */
-    @Override
-    protected void finalize() throws Throwable {
-        try {
-            close();        // close open files
-        } finally {
-            super.finalize();
+    public boolean isBuildIndex() {
+        return buildIndex;
+    }
+
+    /**
+     * Sets whether an index of the file is saved next to it when the writer is closed, for SparkFileReader to seek
+     * with (see SparkIndex). When appending to a plain file that already has messages, the existing messages are
+     * indexed first by reading the file once. An index cannot be built when appending to a compressed file that
+     * already has messages; rebuild it afterwards with SparkFileReader.buildIndex() instead. The default is false.
+     * This takes effect the next time the file is opened.
+     * @param buildIndex the buildIndex to set
+     */
+    public void setBuildIndex(boolean buildIndex) {
+        this.buildIndex = buildIndex;
+    }
+
+    /**
+     * Returns the locations whose values are recorded in the index for every message.
+     * @return the index keys
+     */
+    public String[] getIndexKeys() {
+        return indexKeys.clone();
+    }
+
+    /**
+     * Sets the locations whose values are recorded in the index for every message. The default is
+     * SparkIndex.KEYS_DEFAULT (MSH-10, PID-3 and MSH-7).
+     * @param indexKeys the index keys to set
+     */
+    public void setIndexKeys(String... indexKeys) {
+        this.indexKeys = indexKeys.clone();
+    }
+
+    //starts the index, carrying on from the messages already in the file when appending
+    private void prepIndex() throws IOException {
+        File file = getOutputFile();
+        if (isAppendToFile() && file.length() > 0) {
+            if (compression != SparkCompression.NONE || SparkFileReader.isGZipped(file)) {
+                throw new IOException("An index cannot be continued on the compressed file " + file + ", rebuild it with SparkFileReader.buildIndex()");
+            }
+            SparkFileReader reader = new SparkFileReader(file, getDelimiter());
+            reader.setCharset(charset);
+            reader.setIndexKeys(indexKeys);
+            index = reader.buildIndex();
+            indexPosition = file.length();
+        } else {
+            index = new SparkIndex(indexKeys);
+            indexPosition = 0;
+        }
+        indexLocations = new HL7Location[indexKeys.length];
+        for(int i=0; i<indexKeys.length; i++) {
+            indexLocations[i] = HL7Location.parse(indexKeys[i]);
+        }
+    }
+
+    private void saveIndex() throws IOException {
+        if (index != null) {
+            SparkIndex finished = index;
+            index = null;
+            if (compression != SparkCompression.NONE) {
+                finished.findRestartPoints(getOutputFile());
+            }
+            finished.save(SparkIndex.sidecarFor(getOutputFile()));
+        }
+    }
+
+    //reassigns the filewriter
+    private void prepFileStreams() throws IOException {
+        if (buildIndex) {
+            prepIndex();
+        }
+        Writer w;
+        if (compression == SparkCompression.GZIP) {
+            OutputStream fileStream = new FileOutputStream(getOutputFile(), isAppendToFile());
+            w = new OutputStreamWriter(new GZIPOutputStream(fileStream, 8192, true), charset);
+        } else if (compression == SparkCompression.PARALLEL_GZIP) {
+            OutputStream fileStream = new FileOutputStream(getOutputFile(), isAppendToFile());
+            Executor executor = (compressionExecutor != null) ? compressionExecutor : ForkJoinPool.commonPool();
+            w = new OutputStreamWriter(new ParallelGzipOutputStream(fileStream, executor, getCompressionBlockSize(), maxInFlight()), charset);
+        } else {
+            w = new OutputStreamWriter(new FileOutputStream(getOutputFile(), isAppendToFile()), charset);
+        }
+        defaultFlushPolicy = createDefaultFlushPolicy();
+        fw = new CountingWriter(new BufferedWriter(w, Math.max(getBufferSize(), 1)));
+        messagesSinceFlush = 0;
+        charactersSinceFlush = 0;
+        lastFlushNanos = System.nanoTime();
+    }
+
+    //a flush ends a gzip member (or sync flushes the deflater), so compressed files are flushed by size
+    private SparkFlushPolicy createDefaultFlushPolicy() {
+        long blockSize = Math.max(getCompressionBlockSize(), 1);
+        if (compression == SparkCompression.GZIP) {
+            return SparkFlushPolicy.everyBytes(blockSize);
+        } else if (compression == SparkCompression.PARALLEL_GZIP) {
+            return SparkFlushPolicy.everyBytes(blockSize * maxInFlight());
+        }
+        return SparkFlushPolicy.EVERY_MESSAGE;
+    }
+
+    private static int maxInFlight() {
+        return 2 * Runtime.getRuntime().availableProcessors();
+    }
+
+    //closes the filewriter so buffered messages are not lost when the file changes
+    private void releaseFileStreams() {
+        if (fw != null) {
+            try {
+                fw.close();
+                saveIndex();
+            } catch (IOException e) { }
+            fw = null;
+        }
+    }
+
+    //counts the characters written, and appends Strings without copying them
+    private static final class CountingWriter extends FilterWriter {
+        private long count = 0;
+
+        CountingWriter(Writer out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            out.write(c);
+            count++;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            out.write(cbuf, off, len);
+            count += len;
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            out.write(str, off, len);
+            count += len;
+        }
+
+        @Override
+        public Writer append(CharSequence csq, int start, int end) throws IOException {
+            if (csq instanceof String) {
+                write((String)csq, start, end-start);
+                return this;
+            }
+            return super.append(csq, start, end);
         }
     }
 
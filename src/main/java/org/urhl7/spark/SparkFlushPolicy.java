@@ -0,0 +1,124 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.spark;
+
+/**
+ * Decides when a SparkFileWriter flushes its buffer to the file. Limits are checked after each message is written,
+ * so a time interval is only noticed when the next message is written.
+ * @author dmorgan
+ */
+public final class SparkFlushPolicy {
+    private final int messages;
+    private final long characters;
+    private final long intervalMillis;
+
+    /**
+     * Flushes after every message. This is the default, and matches a SparkFileWriter without a buffer.
+     */
+    public static final SparkFlushPolicy EVERY_MESSAGE = new SparkFlushPolicy(1, 0, 0);
+
+    /**
+     * Only flushes when the buffer is full, and when the writer is flushed or closed explicitly.
+     */
+    public static final SparkFlushPolicy ON_CLOSE = new SparkFlushPolicy(0, 0, 0);
+
+    private SparkFlushPolicy(int messages, long characters, long intervalMillis) {
+        this.messages = messages;
+        this.characters = characters;
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * Flushes after every count messages.
+     * @param count the number of messages between flushes
+     * @return the policy
+     */
+    public static SparkFlushPolicy everyMessages(int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("The number of messages between flushes must be at least 1");
+        }
+        return new SparkFlushPolicy(count, 0, 0);
+    }
+
+    /**
+     * Flushes once at least count bytes have been written since the last flush. Bytes are counted as the characters
+     * of the marshalled messages and delimiters, which is exact for ASCII data.
+     * @param count the number of bytes between flushes
+     * @return the policy
+     */
+    public static SparkFlushPolicy everyBytes(long count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("The number of bytes between flushes must be at least 1");
+        }
+        return new SparkFlushPolicy(0, count, 0);
+    }
+
+    /**
+     * Flushes on the first message written at least millis milliseconds after the last flush.
+     * @param millis the time between flushes
+     * @return the policy
+     */
+    public static SparkFlushPolicy everyInterval(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("The time between flushes must not be negative");
+        }
+        return new SparkFlushPolicy(0, 0, millis);
+    }
+
+    /**
+     * Returns true if this policy flushes after every message.
+     * @return true for EVERY_MESSAGE and everyMessages(1)
+     */
+    public boolean isEveryMessage() {
+        return messages == 1;
+    }
+
+    boolean shouldFlush(int messagesSinceFlush, long charactersSinceFlush, long millisSinceFlush) {
+        if (messages > 0) {
+            return messagesSinceFlush >= messages;
+        } else if (characters > 0) {
+            return charactersSinceFlush >= characters;
+        } else if (this != ON_CLOSE) {
+            return millisSinceFlush >= intervalMillis;
+        }
+        return false;
+    }
+
+    /**
+     * Returns a description of this policy
+     * @return a description of this policy
+     */
+    @Override
+    public String toString() {
+        if (messages > 0) {
+            return "every " + messages + " message(s)";
+        } else if (characters > 0) {
+            return "every " + characters + " byte(s)";
+        } else if (this != ON_CLOSE) {
+            return "every " + intervalMillis + "ms";
+        }
+        return "on close";
+    }
+}
@@ -0,0 +1,403 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.spark;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * A random access index over an HL7 batch file. For every message it records the byte offset and length of the
+ * message in the uncompressed data, along with the values at a few key HL7Locations (by default MSH-10, PID-3 and
+ * MSH-7), so a single message or a range of messages can be read back with SparkFileReader without reading the
+ * whole file. For gzip files it also records restart points: positions in the compressed file where a gzip member
+ * starts, and how much uncompressed data came before it. Reading then only inflates from the nearest restart point.
+ * Only multi-member files written with SparkCompression.PARALLEL_GZIP have restart points past the start of the file.
+ * <br />
+ * The index is saved next to the data file, as a small text file (see sidecarFor()). SparkFileWriter builds it while
+ * writing, and SparkFileReader builds it while reading.
+ * @author dmorgan
+ */
+public class SparkIndex {
+    /**
+     * The key locations indexed by default: the control id (MSH-10), the patient identifier (PID-3) and the message
+     * timestamp (MSH-7).
+     */
+    public static final String[] KEYS_DEFAULT = {"MSH-10", "PID-3", "MSH-7"};
+
+    /**
+     * The extension appended to a data file's name for its index.
+     */
+    public static final String SIDECAR_EXTENSION = ".idx";
+
+    private static final String HEADER = "#urHL7 index 1";
+    private static final String KEYS_LINE = "#keys";
+    private static final String RESTART_LINE = "#restart";
+    private static final String NULL_VALUE = "\\N";
+
+    private final String[] keyLocations;
+    private long[] offsets = new long[64];
+    private int[] lengths = new int[64];
+    private final ArrayList<String[]> keys = new ArrayList<String[]>();
+    private int size = 0;
+
+    private long[] restartCompressed = new long[] {0};
+    private long[] restartUncompressed = new long[] {0};
+
+    private HashMap<String, HashMap<String, List<Integer>>> lookups = new HashMap<String, HashMap<String, List<Integer>>>();
+
+    /**
+     * Creates an empty index on the default key locations.
+     */
+    public SparkIndex() {
+        this(KEYS_DEFAULT);
+    }
+
+    /**
+     * Creates an empty index on the given key locations.
+     * @param keyLocations the locations whose values are recorded for every message
+     */
+    public SparkIndex(String... keyLocations) {
+        this.keyLocations = keyLocations.clone();
+    }
+
+    /**
+     * Returns the file an index of dataFile is saved to: the same path with ".idx" appended.
+     * @param dataFile the HL7 batch file
+     * @return the index file
+     */
+    public static File sidecarFor(File dataFile) {
+        return new File(dataFile.getPath() + SIDECAR_EXTENSION);
+    }
+
+    /**
+     * Returns the number of messages in the index.
+     * @return the number of messages
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the byte offset of a message in the uncompressed data.
+     * @param ordinal the position of the message in the file, starting at 0
+     * @return the offset
+     */
+    public long getOffset(int ordinal) {
+        checkOrdinal(ordinal);
+        return offsets[ordinal];
+    }
+
+    /**
+     * Returns the length of a message in bytes, without its delimiter.
+     * @param ordinal the position of the message in the file, starting at 0
+     * @return the length
+     */
+    public int getLength(int ordinal) {
+        checkOrdinal(ordinal);
+        return lengths[ordinal];
+    }
+
+    /**
+     * Returns the locations whose values are recorded for every message.
+     * @return the key locations
+     */
+    public List<String> getKeyLocations() {
+        return Collections.unmodifiableList(Arrays.asList(keyLocations));
+    }
+
+    /**
+     * Returns the value recorded for a message at a key location.
+     * @param ordinal the position of the message in the file, starting at 0
+     * @param keyLocation one of the key locations
+     * @return the value, or null if the message has nothing at that location
+     */
+    public String getKey(int ordinal, String keyLocation) {
+        checkOrdinal(ordinal);
+        return keys.get(ordinal)[keyIndex(keyLocation)];
+    }
+
+    /**
+     * Finds the messages with a value at a key location.
+     * @param keyLocation one of the key locations
+     * @param value the value to look for
+     * @return the ordinals of the matching messages, in file order
+     */
+    public List<Integer> find(String keyLocation, String value) {
+        int k = keyIndex(keyLocation);
+        HashMap<String, List<Integer>> lookup = lookups.get(keyLocation);
+        if (lookup == null) {
+            lookup = new HashMap<String, List<Integer>>();
+            for(int i=0; i<size; i++) {
+                String v = keys.get(i)[k];
+                if (v != null) {
+                    List<Integer> ordinals = lookup.get(v);
+                    if (ordinals == null) {
+                        ordinals = new ArrayList<Integer>(1);
+                        lookup.put(v, ordinals);
+                    }
+                    ordinals.add(i);
+                }
+            }
+            lookups.put(keyLocation, lookup);
+        }
+        List<Integer> found = lookup.get(value);
+        return (found == null) ? Collections.<Integer>emptyList() : Collections.unmodifiableList(found);
+    }
+
+    /**
+     * Returns the restart point to inflate from to reach an uncompressed offset.
+     * @param offset an offset in the uncompressed data
+     * @return {compressed offset, uncompressed offset} of the last restart point at or before offset
+     */
+    long[] restartPointFor(long offset) {
+        int i = Arrays.binarySearch(restartUncompressed, offset);
+        if (i < 0) {
+            i = -i - 2;
+        }
+        return new long[] {restartCompressed[Math.max(i, 0)], restartUncompressed[Math.max(i, 0)]};
+    }
+
+    /**
+     * Returns the number of gzip restart points, including the start of the file.
+     * @return the number of restart points
+     */
+    public int getRestartPointCount() {
+        return restartCompressed.length;
+    }
+
+    String[] keyLocationArray() {
+        return keyLocations;
+    }
+
+    void add(long offset, int length, String[] keyValues) {
+        if (size == offsets.length) {
+            offsets = Arrays.copyOf(offsets, size * 2);
+            lengths = Arrays.copyOf(lengths, size * 2);
+        }
+        offsets[size] = offset;
+        lengths[size] = length;
+        keys.add(keyValues);
+        size++;
+        lookups.clear();
+    }
+
+    /**
+     * Replaces the restart points with the start of every gzip member that records its length in the file. A file
+     * that is not multi-member gzip only has the start of the file.
+     * @param dataFile the (compressed) data file
+     * @throws IOException
+     */
+    void findRestartPoints(File dataFile) throws IOException {
+        ArrayList<long[]> points = new ArrayList<long[]>();
+        points.add(new long[] {0, 0});
+
+        FileChannel channel = FileChannel.open(dataFile.toPath(), StandardOpenOption.READ);
+        try {
+            long fileSize = channel.size();
+            long position = 0;
+            long uncompressed = 0;
+            ByteBuffer header = ByteBuffer.allocate(ParallelGzipOutputStream.HEADER_LENGTH);
+            ByteBuffer trailer = ByteBuffer.allocate(4);
+            while (position < fileSize) {
+                int memberLength = SparkReadAhead.memberLength(channel, position, header);
+                if (memberLength < 0 || position + memberLength > fileSize) {
+                    break;
+                }
+                if (position > 0) {
+                    points.add(new long[] {position, uncompressed});
+                }
+                trailer.clear();
+                while (trailer.hasRemaining()) {
+                    if (channel.read(trailer, position + memberLength - 4 + trailer.position()) == -1) {
+                        throw new EOFException("Unexpected end of gzip member");
+                    }
+                }
+                uncompressed += (trailer.get(0) & 0xffL) | ((trailer.get(1) & 0xffL) << 8)
+                              | ((trailer.get(2) & 0xffL) << 16) | ((trailer.get(3) & 0xffL) << 24);
+                position += memberLength;
+            }
+        } finally {
+            channel.close();
+        }
+
+        restartCompressed = new long[points.size()];
+        restartUncompressed = new long[points.size()];
+        for(int i=0; i<points.size(); i++) {
+            restartCompressed[i] = points.get(i)[0];
+            restartUncompressed[i] = points.get(i)[1];
+        }
+    }
+
+    /**
+     * Saves this index to a file.
+     * @param indexFile the file to save to, usually sidecarFor(dataFile)
+     * @throws IOException
+     */
+    public void save(File indexFile) throws IOException {
+        Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(indexFile), StandardCharsets.UTF_8));
+        try {
+            w.write(HEADER);
+            w.write('\n');
+            w.write(KEYS_LINE);
+            for(String key : keyLocations) {
+                w.write('\t');
+                w.write(escape(key));
+            }
+            w.write('\n');
+            for(int i=0; i<restartCompressed.length; i++) {
+                w.write(RESTART_LINE + "\t" + restartCompressed[i] + "\t" + restartUncompressed[i] + "\n");
+            }
+            for(int i=0; i<size; i++) {
+                w.write(Long.toString(offsets[i]));
+                w.write('\t');
+                w.write(Integer.toString(lengths[i]));
+                for(String value : keys.get(i)) {
+                    w.write('\t');
+                    w.write(escape(value));
+                }
+                w.write('\n');
+            }
+        } finally {
+            w.close();
+        }
+    }
+
+    /**
+     * Loads an index saved with save().
+     * @param indexFile the index file
+     * @return the index
+     * @throws IOException if the file cannot be read or is not an index
+     */
+    public static SparkIndex load(File indexFile) throws IOException {
+        BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), StandardCharsets.UTF_8));
+        try {
+            if (!HEADER.equals(r.readLine())) {
+                throw new IOException(indexFile + " is not an HL7 index");
+            }
+            String[] keyLine = split(r.readLine());
+            if (keyLine.length == 0 || !KEYS_LINE.equals(keyLine[0])) {
+                throw new IOException(indexFile + " is not an HL7 index");
+            }
+            SparkIndex index = new SparkIndex(Arrays.copyOfRange(keyLine, 1, keyLine.length));
+
+            ArrayList<long[]> points = new ArrayList<long[]>();
+            String line;
+            while ((line = r.readLine()) != null) {
+                String[] parts = split(line);
+                if (RESTART_LINE.equals(parts[0])) {
+                    points.add(new long[] {Long.parseLong(parts[1]), Long.parseLong(parts[2])});
+                } else {
+                    index.add(Long.parseLong(parts[0]), Integer.parseInt(parts[1]), Arrays.copyOfRange(parts, 2, parts.length));
+                }
+            }
+            if (!points.isEmpty()) {
+                index.restartCompressed = new long[points.size()];
+                index.restartUncompressed = new long[points.size()];
+                for(int i=0; i<points.size(); i++) {
+                    index.restartCompressed[i] = points.get(i)[0];
+                    index.restartUncompressed[i] = points.get(i)[1];
+                }
+            }
+            return index;
+        } catch (RuntimeException e) {
+            throw new IOException(indexFile + " is not a valid HL7 index", e);
+        } finally {
+            r.close();
+        }
+    }
+
+    private int keyIndex(String keyLocation) {
+        for(int i=0; i<keyLocations.length; i++) {
+            if (keyLocations[i].equals(keyLocation)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException(keyLocation + " is not a key of this index");
+    }
+
+    private void checkOrdinal(int ordinal) {
+        if (ordinal < 0 || ordinal >= size) {
+            throw new IndexOutOfBoundsException("Message " + ordinal + " is not in the index of " + size + " messages");
+        }
+    }
+
+    private static String escape(String value) {
+        if (value == null) {
+            return NULL_VALUE;
+        }
+        StringBuilder sb = new StringBuilder(value.length());
+        for(int i=0; i<value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\': sb.append("\\\\"); break;
+                case '\t': sb.append("\\t"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                default: sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    //splits a line on tabs and unescapes every column
+    private static String[] split(String line) {
+        ArrayList<String> columns = new ArrayList<String>();
+        int start = 0;
+        while (true) {
+            int tab = line.indexOf('\t', start);
+            String column = line.substring(start, (tab < 0) ? line.length() : tab);
+            columns.add(unescape(column));
+            if (tab < 0) {
+                break;
+            }
+            start = tab + 1;
+        }
+        return columns.toArray(new String[columns.size()]);
+    }
+
+    private static String unescape(String column) {
+        if (NULL_VALUE.equals(column)) {
+            return null;
+        }
+        if (column.indexOf('\\') < 0) {
+            return column;
+        }
+        StringBuilder sb = new StringBuilder(column.length());
+        for(int i=0; i<column.length(); i++) {
+            char c = column.charAt(i);
+            if (c == '\\' && i+1 < column.length()) {
+                char n = column.charAt(++i);
+                sb.append(n == 't' ? '\t' : n == 'n' ? '\n' : n == 'r' ? '\r' : n);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
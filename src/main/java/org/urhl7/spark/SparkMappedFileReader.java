@@ -0,0 +1,260 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.spark;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import org.urhl7.hl7.HL7;
+
+/**
+ * An HL7 file reader for very large, uncompressed batch files. The file is memory mapped one window at a time and
+ * message boundaries are found directly in the mapped bytes. A message is only decoded into a String and parsed
+ * if the HL7MessageSelector (when one is set) accepts it, so skipped messages cost little more than the scan.
+ * Messages are delimited and sent to the listener the same way SparkFileReader does it.
+ *
+ * The charset must be UTF-8 or a single byte charset that encodes ASCII as ASCII (such as ISO-8859-1), so that
+ * boundaries can be found in the raw bytes. The default is the platform default charset.
+ * @author dmorgan
+ */
+public class SparkMappedFileReader {
+    private File inputFile;
+    private String delimiter;
+    private HL7MessageListener listener;
+    private HL7MessageSelector selector;
+    private int windowSize = WINDOW_SIZE_DEFAULT;
+    private Charset charset = Charset.defaultCharset();
+
+    /**
+     * The default delimiter between messages. The default value is "\r\n"
+     */
+    public static final String DELIMITER_DEFAULT = SparkFileReader.DELIMITER_DEFAULT;
+
+    /**
+     * The default size of the window of the file that is mapped at once. The default value is 64MB.
+     */
+    public static final int WINDOW_SIZE_DEFAULT = 64 * 1024 * 1024;
+
+    /**
+     * Creates a new SparkMappedFileReader pointing at a specific file with a specified listener.
+     * @param inputFile the file to read in
+     * @param listener the listener to use
+     */
+    public SparkMappedFileReader(File inputFile, HL7MessageListener listener) {
+        this(inputFile, listener, DELIMITER_DEFAULT);
+    }
+
+    /**
+     * Creates a new SparkMappedFileReader pointing a specific file, with a listener, and a specified delimiter.
+     * @param inputFile the file to read in
+     * @param listener the listener to use
+     * @param delimiter the delimiter between messages
+     */
+    public SparkMappedFileReader(File inputFile, HL7MessageListener listener, String delimiter) {
+        this.inputFile = inputFile;
+        this.listener = listener;
+        this.delimiter = delimiter;
+    }
+
+    /**
+     * Begins parsing the messages in the file specified. Each message accepted by the selector is parsed and sent to
+     * the listener. A gzip file cannot be mapped; use SparkFileReader for those.
+     * @return success of the parsing (if any of the messageReceived(HL7Structure struct) calls return false, this will as well).
+     * @throws java.io.IOException if the file cannot be read, is gzip compressed, or holds a single message larger than 2GB
+     */
+    public boolean parseBatch() throws java.io.IOException {
+        if (SparkFileReader.isGZipped(inputFile)) {
+            throw new IOException("Cannot memory map the gzip file " + inputFile + ", use SparkFileReader instead");
+        }
+
+        if (!SparkByteMessageSplitter.supports(charset)) {
+            throw new IOException("Cannot find message boundaries in the raw bytes of " + charset + " data");
+        }
+        byte[] delim = delimiter.getBytes(charset);
+        boolean success = true;
+
+        FileChannel channel = FileChannel.open(inputFile.toPath(), StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            long position = 0;
+            long window = windowSize;
+
+            while (position < size) {
+                int length = (int)Math.min(window, size - position);
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+
+                int start = 0;
+                int last = length - delim.length;
+                for(int i=0; i<=last; i++) {
+                    if (map.get(i) == delim[0] && isDelimiterAt(map, i, delim)) {
+                        success = deliver(map, start, i, charset, success);
+                        start = i + delim.length;
+                        i = start - 1;
+                    }
+                }
+
+                if (position + length == size) {
+                    //final cleanup.
+                    if (!isBlank(map, start, length)) {
+                        success = deliver(map, start, length, charset, success);
+                    }
+                    position = size;
+                } else if (start == 0) {
+                    //a single message is larger than the window, map it again with a larger one
+                    if (window >= Integer.MAX_VALUE) {
+                        throw new IOException("A message at byte " + position + " of " + inputFile + " is larger than 2GB");
+                    }
+                    window = Math.min(window * 2, Integer.MAX_VALUE);
+                } else {
+                    //the unfinished message at the end of this window starts the next one
+                    position += start;
+                    window = windowSize;
+                }
+            }
+        } finally {
+            channel.close();
+        }
+
+        return success;
+    }
+
+    private boolean deliver(ByteBuffer map, int from, int to, Charset charset, boolean success) {
+        if (!success) {
+            //same as SparkFileReader, nothing more is delivered after a listener has returned false
+            return false;
+        }
+        if (selector != null && !selector.accept(new ByteCharSequence(map, from, to - from))) {
+            return true;
+        }
+        byte[] raw = new byte[to - from];
+        //one bulk copy out of the map, not a bounds checked get per byte
+        map.duplicate().limit(to).position(from).get(raw);
+        return listener.messageReceived(HL7.structure(new String(raw, charset)));
+    }
+
+    private static boolean isDelimiterAt(ByteBuffer map, int pos, byte[] delim) {
+        for(int j=1; j<delim.length; j++) {
+            if (map.get(pos + j) != delim[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //String.trim() semantics
+    private static boolean isBlank(ByteBuffer map, int from, int to) {
+        for(int i=from; i<to; i++) {
+            if ((map.get(i) & 0xff) > ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the delimiter that is being searched for between messages in the file.
+     * @return the delimiter
+     */
+    public String getDelimiter() {
+        return delimiter;
+    }
+
+    /**
+     * Sets the delimiter to look for between messages in the file.
+     * @param delimiter the delimiter to set
+     */
+    public void setDelimiter(String delimiter) {
+        this.delimiter = delimiter;
+    }
+
+    /**
+     * Returned the HL7MessageListener that is being triggered for this SparkMappedFileReader.
+     * @return the listener
+     */
+    public HL7MessageListener getListener() {
+        return listener;
+    }
+
+    /**
+     * Sets the listener to use for the handling of messages as they are read.
+     * @param listener the listener to set
+     */
+    public void setListener(HL7MessageListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Returns the HL7MessageSelector that decides which messages are parsed, or null if every message is parsed.
+     * @return the selector
+     */
+    public HL7MessageSelector getSelector() {
+        return selector;
+    }
+
+    /**
+     * Sets the HL7MessageSelector that decides which messages are parsed. Use null to parse every message.
+     * @param selector the selector to set
+     */
+    public void setSelector(HL7MessageSelector selector) {
+        this.selector = selector;
+    }
+
+    /**
+     * Returns the Charset accepted messages are decoded with.
+     * @return the charset
+     */
+    public Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * Sets the Charset accepted messages are decoded with. This must be UTF-8, or a single byte charset that encodes
+     * ASCII as ASCII, or parseBatch() throws an IOException.
+     * @param charset the charset to set
+     */
+    public void setCharset(Charset charset) {
+        this.charset = charset;
+    }
+
+    /**
+     * Gets the size, in bytes, of the window of the file that is mapped at once.
+     * @return the window size
+     */
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    /**
+     * Sets the size, in bytes, of the window of the file that is mapped at once. A message larger than the window
+     * is still read, by temporarily mapping a larger window.
+     * @param windowSize the window size to set
+     */
+    public void setWindowSize(int windowSize) {
+        this.windowSize = Math.max(windowSize, 1);
+    }
+}
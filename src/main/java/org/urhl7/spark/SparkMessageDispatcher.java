@@ -0,0 +1,278 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.spark;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.*;
+import java.util.concurrent.*;
+import org.urhl7.hl7.HL7;
+import org.urhl7.hl7.HL7Delimiters;
+import org.urhl7.hl7.HL7Structure;
+
+/**
+ * Takes the raw messages found by a reader, parses them and sends them to the listener. The listener is always
+ * called on the thread that calls dispatch() and finish(). Once the listener returns false no further messages are
+ * parsed or sent, and finish() returns false.
+ * <br />
+ * When structures are reused, each delivered structure goes back into a queue once the listener returns, and the
+ * next parse reloads it, on whichever thread that parse runs. Its nodes are recycled through the pool of that thread.
+ * @author dmorgan
+ */
+abstract class SparkMessageDispatcher {
+    protected final HL7MessageListener listener;
+    protected boolean success = true;
+    //delivered structures waiting to be reloaded, or null when structures are not reused
+    private ConcurrentLinkedQueue<HL7Structure> spares = null;
+
+    SparkMessageDispatcher(HL7MessageListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Creates a dispatcher that parses on the calling thread, or on the executor if one is given.
+     * @param listener the listener to send messages to
+     * @param executor the executor to parse on, or null to parse on the calling thread
+     * @param delivery the order in which parsed messages are sent to the listener
+     * @param maxInFlight the largest number of messages that are parsed or waiting to be delivered at once
+     * @return the dispatcher
+     */
+    static SparkMessageDispatcher create(HL7MessageListener listener, Executor executor, SparkDelivery delivery, int maxInFlight) {
+        return create(listener, executor, delivery, maxInFlight, false);
+    }
+
+    /**
+     * Creates a dispatcher that parses on the calling thread, or on the executor if one is given.
+     * @param listener the listener to send messages to
+     * @param executor the executor to parse on, or null to parse on the calling thread
+     * @param delivery the order in which parsed messages are sent to the listener
+     * @param maxInFlight the largest number of messages that are parsed or waiting to be delivered at once
+     * @param reuse true to reload delivered structures with later messages, instead of building new ones
+     * @return the dispatcher
+     */
+    static SparkMessageDispatcher create(HL7MessageListener listener, Executor executor, SparkDelivery delivery, int maxInFlight, boolean reuse) {
+        SparkMessageDispatcher dispatcher = newDispatcher(listener, executor, delivery, maxInFlight);
+        if (reuse) {
+            dispatcher.spares = new ConcurrentLinkedQueue<HL7Structure>();
+        }
+        return dispatcher;
+    }
+
+    private static SparkMessageDispatcher newDispatcher(HL7MessageListener listener, Executor executor, SparkDelivery delivery, int maxInFlight) {
+        if (executor == null) {
+            return new Serial(listener);
+        } else if (delivery == SparkDelivery.AS_COMPLETED) {
+            return new AsCompleted(listener, executor, maxInFlight);
+        } else {
+            return new InOrder(listener, executor, maxInFlight);
+        }
+    }
+
+    /**
+     * Hands a raw message to this dispatcher. This may block until earlier messages have been delivered.
+     * @param message the raw message
+     * @throws IOException if the thread is interrupted while waiting
+     */
+    abstract void dispatch(String message) throws IOException;
+
+    /**
+     * Delivers every message that is still outstanding.
+     * @return false if the listener returned false for any message
+     * @throws IOException if the thread is interrupted while waiting
+     */
+    abstract boolean finish() throws IOException;
+
+    /**
+     * Cancels any messages that have not been delivered. This is called after finish(), or when reading fails.
+     */
+    void cancel() {
+    }
+
+    protected void deliver(HL7Structure message) {
+        success = success && listener.messageReceived(message);
+        if (spares != null) {
+            spares.add(message);
+        }
+    }
+
+    protected HL7Structure parse(String message) {
+        if (spares == null) {
+            return HL7.structure(message);
+        }
+        HL7Structure structure = spares.poll();
+        if (structure == null) {
+            structure = new HL7Structure(HL7Delimiters.STANDARD);
+        }
+        structure.reload(message);
+        return structure;
+    }
+
+    protected Callable<HL7Structure> parseTask(final String message) {
+        return new Callable<HL7Structure>() {
+            public HL7Structure call() {
+                return parse(message);
+            }
+        };
+    }
+
+    //a parse exception is thrown from the reader thread as if the message had been parsed there
+    private static HL7Structure get(Future<HL7Structure> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a message to be parsed");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            } else if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Parses and delivers each message on the calling thread, as it is dispatched.
+     */
+    private static final class Serial extends SparkMessageDispatcher {
+        Serial(HL7MessageListener listener) {
+            super(listener);
+        }
+
+        void dispatch(String message) {
+            if (success) {
+                deliver(parse(message));
+            }
+        }
+
+        boolean finish() {
+            return success;
+        }
+    }
+
+    /**
+     * Parses on the executor and delivers in file order, through a queue of pending parses.
+     */
+    private static final class InOrder extends SparkMessageDispatcher {
+        private final Executor executor;
+        private final int maxInFlight;
+        private final ArrayDeque<FutureTask<HL7Structure>> pending = new ArrayDeque<FutureTask<HL7Structure>>();
+
+        InOrder(HL7MessageListener listener, Executor executor, int maxInFlight) {
+            super(listener);
+            this.executor = executor;
+            this.maxInFlight = Math.max(maxInFlight, 1);
+        }
+
+        void dispatch(String message) throws IOException {
+            if (!success) {
+                return;
+            }
+            while (pending.size() >= maxInFlight && success) {
+                deliverOldest();
+            }
+            if (success) {
+                FutureTask<HL7Structure> task = new FutureTask<HL7Structure>(parseTask(message));
+                pending.add(task);
+                executor.execute(task);
+            }
+        }
+
+        boolean finish() throws IOException {
+            while (!pending.isEmpty() && success) {
+                deliverOldest();
+            }
+            cancel();
+            return success;
+        }
+
+        private void deliverOldest() throws IOException {
+            deliver(get(pending.poll()));
+        }
+
+        void cancel() {
+            for(FutureTask<HL7Structure> task : pending) {
+                task.cancel(false);
+            }
+            pending.clear();
+        }
+    }
+
+    /**
+     * Parses on the executor and delivers each message as soon as its parse completes.
+     */
+    private static final class AsCompleted extends SparkMessageDispatcher {
+        private final CompletionService<HL7Structure> completion;
+        private final int maxInFlight;
+        private final Set<Future<HL7Structure>> pending = new HashSet<Future<HL7Structure>>();
+
+        AsCompleted(HL7MessageListener listener, Executor executor, int maxInFlight) {
+            super(listener);
+            this.completion = new ExecutorCompletionService<HL7Structure>(executor);
+            this.maxInFlight = Math.max(maxInFlight, 1);
+        }
+
+        void dispatch(String message) throws IOException {
+            if (!success) {
+                return;
+            }
+            while (pending.size() >= maxInFlight && success) {
+                deliverNext();
+            }
+            if (success) {
+                pending.add(completion.submit(parseTask(message)));
+            }
+        }
+
+        boolean finish() throws IOException {
+            while (!pending.isEmpty() && success) {
+                deliverNext();
+            }
+            cancel();
+            return success;
+        }
+
+        private void deliverNext() throws IOException {
+            Future<HL7Structure> done;
+            try {
+                done = completion.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a message to be parsed");
+            }
+            pending.remove(done);
+            deliver(get(done));
+        }
+
+        void cancel() {
+            for(Future<HL7Structure> future : pending) {
+                future.cancel(false);
+            }
+            pending.clear();
+        }
+    }
+}
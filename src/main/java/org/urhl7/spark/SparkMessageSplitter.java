@@ -0,0 +1,133 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.spark;
+
+import java.nio.CharBuffer;
+
+/**
+ * Splits a stream of characters into messages on a delimiter. Characters are appended as they are read, and
+ * complete messages are pulled off with next(). The scan for the delimiter picks up where the previous scan
+ * stopped, and consumed characters are only dropped when more room is needed, so each character is scanned
+ * once and moved at most once per buffer fill.
+ * @author dmorgan
+ */
+final class SparkMessageSplitter {
+    private final char[] delimiter;
+    private char[] buf;
+    private int length = 0;
+    private int start = 0;
+    private int scan = 0;
+
+    /**
+     * Creates a new SparkMessageSplitter.
+     * @param delimiter the delimiter between messages
+     * @param initialCapacity the initial size of the internal buffer
+     */
+    SparkMessageSplitter(String delimiter, int initialCapacity) {
+        if (delimiter == null || delimiter.length() == 0) {
+            throw new IllegalArgumentException("The delimiter between messages must not be empty");
+        }
+        this.delimiter = delimiter.toCharArray();
+        this.buf = new char[Math.max(initialCapacity, this.delimiter.length)];
+    }
+
+    /**
+     * Appends the remaining characters of a CharBuffer, consuming them.
+     * @param chars the characters to append
+     */
+    void append(CharBuffer chars) {
+        int len = chars.remaining();
+        ensureRoom(len);
+        chars.get(buf, length, len);
+        length += len;
+    }
+
+    /**
+     * Appends characters from an array.
+     * @param chars the characters to append
+     * @param off the offset of the first character
+     * @param len the number of characters
+     */
+    void append(char[] chars, int off, int len) {
+        ensureRoom(len);
+        System.arraycopy(chars, off, buf, length, len);
+        length += len;
+    }
+
+    /**
+     * Returns the next complete message, without its delimiter.
+     * @return the next message, or null if no complete message has been appended yet
+     */
+    String next() {
+        char first = delimiter[0];
+        int last = length - delimiter.length;
+        for(int i=scan; i<=last; i++) {
+            if (buf[i] == first && isDelimiterAt(i)) {
+                String message = new String(buf, start, i-start);
+                start = i + delimiter.length;
+                scan = start;
+                return message;
+            }
+        }
+        //a delimiter may be split across appends, so rescan its possible start
+        scan = Math.max(start, last + 1);
+        return null;
+    }
+
+    /**
+     * Returns everything after the last delimiter. This is the final message if the input did not end with a
+     * delimiter.
+     * @return the remaining characters
+     */
+    String remainder() {
+        return new String(buf, start, length-start);
+    }
+
+    private boolean isDelimiterAt(int pos) {
+        for(int j=1; j<delimiter.length; j++) {
+            if (buf[pos+j] != delimiter[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void ensureRoom(int len) {
+        if (length + len <= buf.length) {
+            return;
+        }
+        if (start > 0) {
+            System.arraycopy(buf, start, buf, 0, length-start);
+            length -= start;
+            scan -= start;
+            start = 0;
+        }
+        if (length + len > buf.length) {
+            char[] bigger = new char[Math.max(buf.length*2, length+len)];
+            System.arraycopy(buf, 0, bigger, 0, length);
+            buf = bigger;
+        }
+    }
+}
@@ -0,0 +1,351 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.spark;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.*;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/**
+ * Reads, decompresses and decodes a file on a dedicated thread, handing blocks of decoded characters to the
+ * consuming thread through a bounded queue. When the file is multi-member gzip written with member lengths
+ * (see ParallelGzipOutputStream), the members are inflated concurrently on an executor and decoded in order.
+ * Any other gzip data is inflated on the read-ahead thread.
+ * @author dmorgan
+ */
+final class SparkReadAhead implements Closeable {
+    private static final Object END = new Object();
+
+    //deflate cannot expand data by more than this, so a larger ISIZE in a member trailer is corrupt
+    private static final int MAX_DEFLATE_RATIO = 1032;
+
+    private final File file;
+    private final boolean gzipped;
+    private final Executor inflateExecutor;
+    private final int blockSize;
+    private final int maxMembersInFlight;
+    private final BlockingQueue<Object> queue;
+    private final CharsetDecoder decoder;
+    private final Thread thread;
+    private boolean finished = false;
+
+    //the bytes of a character split across blocks, owned by the read-ahead thread
+    private byte[] leftover = new byte[0];
+
+    /**
+     * Creates a SparkReadAhead and starts its thread.
+     * @param file the file to read
+     * @param gzipped true if the file is gzip compressed
+     * @param charset the charset to decode with
+     * @param inflateExecutor the executor gzip members are inflated on
+     * @param blockSize the size of the blocks read and decoded, in bytes
+     * @param queuedBlocks the largest number of decoded blocks waiting for the consumer
+     */
+    SparkReadAhead(File file, boolean gzipped, Charset charset, Executor inflateExecutor, int blockSize, int queuedBlocks) {
+        this.file = file;
+        this.gzipped = gzipped;
+        this.inflateExecutor = inflateExecutor;
+        this.blockSize = Math.max(blockSize, 16);
+        this.maxMembersInFlight = 2 * Runtime.getRuntime().availableProcessors();
+        this.queue = new ArrayBlockingQueue<Object>(Math.max(queuedBlocks, 1));
+        this.decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        this.thread = new Thread(new Runnable() {
+            public void run() {
+                produce();
+            }
+        }, "SparkFileReader read-ahead " + file.getName());
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Returns the next block of decoded characters, waiting for it if needed.
+     * @return the next block, or null at the end of the file
+     * @throws IOException if the file could not be read or decompressed
+     */
+    char[] take() throws IOException {
+        if (finished) {
+            return null;
+        }
+        Object next;
+        try {
+            next = queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the file to be read");
+        }
+        if (next == END) {
+            finished = true;
+            return null;
+        } else if (next instanceof IOException) {
+            finished = true;
+            throw (IOException)next;
+        } else if (next instanceof RuntimeException) {
+            finished = true;
+            throw (RuntimeException)next;
+        } else if (next instanceof Error) {
+            finished = true;
+            throw (Error)next;
+        }
+        return (char[])next;
+    }
+
+    /**
+     * Stops the read-ahead thread if it is still running.
+     */
+    public void close() {
+        finished = true;
+        thread.interrupt();
+    }
+
+    private void produce() {
+        try {
+            if (gzipped) {
+                readMembers();
+            } else {
+                InputStream in = new FileInputStream(file);
+                try {
+                    readStream(in);
+                } finally {
+                    in.close();
+                }
+            }
+            queue.put(END);
+        } catch (InterruptedException e) {
+            //closed by the consumer
+        } catch (Throwable t) {
+            try {
+                queue.put(t);
+            } catch (InterruptedException e) { }
+        }
+    }
+
+    //inflates members with known lengths concurrently, anything else is streamed through GZIPInputStream
+    private void readMembers() throws IOException, InterruptedException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+        try {
+            long size = channel.size();
+            long position = 0;
+            ByteBuffer header = ByteBuffer.allocate(ParallelGzipOutputStream.HEADER_LENGTH);
+
+            while (position < size) {
+                int memberLength = memberLength(channel, position, header);
+                if (memberLength < 0) {
+                    break;
+                }
+                if (memberLength > size - position) {
+                    throw new EOFException("Unexpected end of gzip member");
+                }
+                final byte[] member = new byte[memberLength];
+                readFully(channel, ByteBuffer.wrap(member), position);
+                position += memberLength;
+
+                while (pending.size() >= maxMembersInFlight) {
+                    byte[] inflated = get(pending.poll());
+                    decode(inflated, inflated.length, false);
+                }
+                FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+                    public byte[] call() throws IOException {
+                        return inflate(member);
+                    }
+                });
+                pending.add(task);
+                inflateExecutor.execute(task);
+            }
+
+            while (!pending.isEmpty()) {
+                byte[] inflated = get(pending.poll());
+                decode(inflated, inflated.length, false);
+            }
+
+            if (position < size) {
+                channel.position(position);
+                readStream(new GZIPInputStream(Channels.newInputStream(channel), blockSize));
+            } else {
+                decode(new byte[0], 0, true);
+            }
+        } finally {
+            for(Future<byte[]> future : pending) {
+                future.cancel(false);
+            }
+            channel.close();
+        }
+    }
+
+    //the length of the member at position, or -1 if it does not carry its length
+    static int memberLength(FileChannel channel, long position, ByteBuffer header) throws IOException {
+        header.clear();
+        while (header.hasRemaining()) {
+            if (channel.read(header, position + header.position()) == -1) {
+                return -1;
+            }
+        }
+        byte[] h = header.array();
+        if ((h[0] & 0xff) != 0x1f || (h[1] & 0xff) != 0x8b || h[2] != 8 || h[3] != 4
+                || readShort(h, 10) != 8 || h[12] != ParallelGzipOutputStream.SUBFIELD_ID1
+                || h[13] != ParallelGzipOutputStream.SUBFIELD_ID2 || readShort(h, 14) != 4) {
+            return -1;
+        }
+        int length = readInt(h, 16);
+        return (length >= ParallelGzipOutputStream.HEADER_LENGTH + 8) ? length : -1;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            if (channel.read(dst, position + dst.position()) == -1) {
+                throw new EOFException("Unexpected end of gzip member");
+            }
+        }
+    }
+
+    //inflates one complete member written by ParallelGzipOutputStream
+    static byte[] inflate(byte[] member) throws IOException {
+        int dataEnd = member.length - 8;
+        int expectedCrc = readInt(member, dataEnd);
+        int expectedSize = readInt(member, dataEnd + 4);
+        long maxSize = Math.min((long)(dataEnd - ParallelGzipOutputStream.HEADER_LENGTH) * MAX_DEFLATE_RATIO, Integer.MAX_VALUE - 8);
+        if (expectedSize < 0 || expectedSize > maxSize) {
+            throw new ZipException("Corrupt gzip member (bad size " + (expectedSize & 0xffffffffL) + ")");
+        }
+        byte[] out = new byte[expectedSize];
+
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(member, ParallelGzipOutputStream.HEADER_LENGTH, dataEnd - ParallelGzipOutputStream.HEADER_LENGTH);
+            int length = 0;
+            while (!inflater.finished()) {
+                int n;
+                if (length < out.length) {
+                    n = inflater.inflate(out, length, out.length - length);
+                } else if (inflater.inflate(new byte[1]) > 0) {
+                    throw new ZipException("Corrupt gzip member (wrong size)");
+                } else {
+                    n = 0;
+                }
+                if (n == 0 && !inflater.finished() && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new ZipException("Corrupt gzip member");
+                }
+                length += n;
+            }
+            if (length != out.length) {
+                throw new ZipException("Corrupt gzip member (wrong size)");
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException("Corrupt gzip member: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(out, 0, out.length);
+        if ((int)crc.getValue() != expectedCrc) {
+            throw new ZipException("Corrupt gzip member (bad CRC)");
+        }
+        return out;
+    }
+
+    private static byte[] get(Future<byte[]> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private void readStream(InputStream in) throws IOException, InterruptedException {
+        byte[] buf = new byte[blockSize];
+        boolean endOfInput = false;
+        while (!endOfInput) {
+            int length = 0;
+            while (length < buf.length) {
+                int n = in.read(buf, length, buf.length - length);
+                if (n == -1) {
+                    endOfInput = true;
+                    break;
+                }
+                length += n;
+            }
+            decode(buf, length, endOfInput);
+        }
+    }
+
+    //decodes the leftover and data (keeping a partial character for the next block, unless at the end) and queues the characters
+    private void decode(byte[] data, int length, boolean endOfInput) throws InterruptedException {
+        ByteBuffer bytes;
+        if (leftover.length > 0) {
+            byte[] joined = new byte[leftover.length + length];
+            System.arraycopy(leftover, 0, joined, 0, leftover.length);
+            System.arraycopy(data, 0, joined, leftover.length, length);
+            bytes = ByteBuffer.wrap(joined);
+        } else {
+            bytes = ByteBuffer.wrap(data, 0, length);
+        }
+
+        CoderResult result;
+        do {
+            //one char per byte is enough for single byte charsets and UTF-8, others overflow and loop
+            CharBuffer chars = CharBuffer.allocate(Math.max(bytes.remaining(), 16));
+            result = decoder.decode(bytes, chars, endOfInput);
+            if (!result.isOverflow() && endOfInput) {
+                result = decoder.flush(chars);
+            }
+            if (chars.position() > 0) {
+                char[] block = chars.array();
+                if (chars.position() < block.length) {
+                    char[] exact = new char[chars.position()];
+                    System.arraycopy(block, 0, exact, 0, exact.length);
+                    block = exact;
+                }
+                queue.put(block);
+            }
+        } while (result.isOverflow());
+
+        leftover = new byte[bytes.remaining()];
+        bytes.get(leftover);
+    }
+
+    private static int readShort(byte[] b, int off) {
+        return (b[off] & 0xff) | ((b[off+1] & 0xff) << 8);
+    }
+
+    private static int readInt(byte[] b, int off) {
+        return readShort(b, off) | (readShort(b, off+2) << 16);
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.spark;
+
+/**
+ * Enumeration to specify how a SparkFileReader reads the file when parsing a batch.
+ * @author dmorgan
+ */
+public enum SparkReadMode {
+    /**
+     * The original reader. The file is read through a Reader into a small buffer and each message is cut off
+     * the front of the buffer as its delimiter is found.
+     */
+    STANDARD,
+    /**
+     * Reads the file through a FileChannel into a reusable ByteBuffer, decodes into a reusable CharBuffer and
+     * scans for delimiters from where the last scan stopped. Buffer contents are only moved when the buffer is
+     * full, instead of once per message.
+     */
+    CHANNEL,
+    /**
+     * Reads, decompresses and decodes the file on a dedicated read-ahead thread, which hands blocks of decoded
+     * text to the thread calling parseBatch() through a bounded queue. Multi-member gzip files written by
+     * SparkFileWriter with SparkCompression.PARALLEL_GZIP have their members inflated concurrently.
+     */
+    PIPELINED
+
+}
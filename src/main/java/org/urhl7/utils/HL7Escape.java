@@ -25,42 +25,96 @@
 package org.urhl7.utils;
 
 /**
- * Class with static methods to escape/unescape HL7 messages
+ * Class with static methods to escape/unescape HL7 messages. Both directions work in a single pass and return the
+ * input unchanged when there is nothing to do. <br />
+ * The delimiter escapes (\F\, \S\, \T\, \R\, \E\) and hexadecimal data (\Xhh..\, one character per pair of
+ * digits) are unescaped. Formatting and character set escapes (\H\, \N\, \.br\ and the other \.xx\ commands,
+ * \Zxx\, \Cxxyy\ and \Mxxyyzz\) are instructions for whoever displays the data, so they are kept as they are in
+ * both directions. Carriage returns and line feeds are escaped as \X0D\ and \X0A\, since they would otherwise
+ * end the segment.
  * @author dmorgan
  */
 public class HL7Escape {
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
     private HL7Escape() {}
+
     /**
      * Returns the data, properly unencoded
      * @return unencoded data
      */
     public static String unescape(char[] delimiters, String data) {
-            String tdata = data.toString();
-
-            if(tdata.contains( ""+delimiters[3] )) {
-                char[] escapeEscCharSeq = {delimiters[3], 'E', delimiters[3]};
-                String escEsc = new String(escapeEscCharSeq);
-
-                char[] escapeFieldCharSeq = {delimiters[3], 'F', delimiters[3]};
-                String escField = new String(escapeFieldCharSeq);
-
-                char[] escapeRepCharSeq = {delimiters[3], 'R', delimiters[3]};
-                String escRep = new String(escapeRepCharSeq);
-
-                char[] escapeSubCharSeq = {delimiters[3], 'S', delimiters[3]};
-                String escSub = new String(escapeSubCharSeq);
-
-                char[] escapeSubSubCharSeq = {delimiters[3], 'T', delimiters[3]};
-                String escSubSub = new String(escapeSubSubCharSeq);
+        if (data == null || data.indexOf(delimiters[3]) < 0) {
+            return data;
+        }
+        StringBuilder sb = new StringBuilder(data.length());
+        unescape(delimiters, data, 0, data.length(), sb);
+        return sb.toString();
+    }
 
+    /**
+     * Unescapes part of a String. A part with nothing to unescape is returned as a plain substring.
+     * @param delimiters the delimiters of the message
+     * @param data the escaped data
+     * @param start index of the first char to unescape
+     * @param end index after the last char to unescape
+     * @return unencoded data
+     */
+    public static String unescape(char[] delimiters, String data, int start, int end) {
+        if (indexOf(data, delimiters[3], start, end) < 0) {
+            return data.substring(start, end);
+        }
+        StringBuilder sb = new StringBuilder(end - start);
+        unescape(delimiters, data, start, end, sb);
+        return sb.toString();
+    }
 
-                tdata = tdata.replace(escSubSub, delimiters[4]+"");
-                tdata = tdata.replace(escSub, delimiters[1]+"");
-                tdata = tdata.replace(escRep, delimiters[2]+"");
-                tdata = tdata.replace(escField, delimiters[0]+"");
-                tdata = tdata.replace(escEsc, delimiters[3]+"");
+    /**
+     * Unescapes part of a CharSequence, appending the result to a StringBuilder.
+     * @param delimiters the delimiters of the message
+     * @param data the escaped data
+     * @param start index of the first char to unescape
+     * @param end index after the last char to unescape
+     * @param out the StringBuilder to append to
+     */
+    public static void unescape(char[] delimiters, CharSequence data, int start, int end, StringBuilder out) {
+        char esc = delimiters[3];
+        int i = start;
+        while (i < end) {
+            char c = data.charAt(i);
+            if (c != esc) {
+                out.append(c);
+                i++;
+                continue;
+            }
+            int close = indexOf(data, esc, i+1, end);
+            if (close < 0) {
+                out.append(data, i, end);
+                break;
+            }
+            if (close == i+2) {
+                char code = data.charAt(i+1);
+                int delim = delimiterFor(code);
+                if (delim >= 0) {
+                    out.append(delimiters[delim]);
+                    i = close + 1;
+                    continue;
+                }
             }
-            return tdata;
+            if (data.charAt(i+1) == 'X' && isHex(data, i+2, close)) {
+                for(int h=i+2; h<close; h+=2) {
+                    out.append((char)(Character.digit(data.charAt(h), 16) * 16 + Character.digit(data.charAt(h+1), 16)));
+                }
+                i = close + 1;
+            } else if (isFormatting(data, i+1, close)) {
+                out.append(data, i, close+1);
+                i = close + 1;
+            } else {
+                //not an escape sequence, the escape character stands for itself
+                out.append(esc);
+                i++;
+            }
+        }
     }
 
     /**
@@ -68,32 +122,130 @@ public class HL7Escape {
      * @param data
      */
     public static String escape(char[] delimiters, String data) {
-        if (data != null) {
-            //StringBuffer theData = new StringBuffer(data);
-            String inputData = data.toString();
-            char[] escapeEscCharSeq = {delimiters[3], 'E', delimiters[3]};
-            String escEsc = new String(escapeEscCharSeq);
+        if (data == null) {
+            return data;
+        }
+        int first = firstSpecial(delimiters, data);
+        if (first < 0) {
+            return data;
+        }
+        StringBuilder sb = new StringBuilder(data.length() + 16);
+        sb.append(data, 0, first);
+        escape(delimiters, data, first, data.length(), sb);
+        return sb.toString();
+    }
+
+    /**
+     * Escapes part of a CharSequence, appending the result to a StringBuilder.
+     * @param delimiters the delimiters of the message
+     * @param data the unescaped data
+     * @param start index of the first char to escape
+     * @param end index after the last char to escape
+     * @param out the StringBuilder to append to
+     */
+    public static void escape(char[] delimiters, CharSequence data, int start, int end, StringBuilder out) {
+        char esc = delimiters[3];
+        int i = start;
+        while (i < end) {
+            char c = data.charAt(i);
+            if (c == esc) {
+                int close = indexOf(data, esc, i+1, end);
+                if (close > i+1 && isFormatting(data, i+1, close) && firstSpecial(delimiters, data, i+1, close) < 0) {
+                    out.append(data, i, close+1);
+                    i = close + 1;
+                    continue;
+                }
+                appendEscape(out, esc, 'E');
+            } else if (c == delimiters[0]) {
+                appendEscape(out, esc, 'F');
+            } else if (c == delimiters[1]) {
+                appendEscape(out, esc, 'S');
+            } else if (c == delimiters[2]) {
+                appendEscape(out, esc, 'R');
+            } else if (c == delimiters[4]) {
+                appendEscape(out, esc, 'T');
+            } else if (c == '\r' || c == '\n') {
+                out.append(esc).append('X').append(HEX_DIGITS[c >> 4]).append(HEX_DIGITS[c & 0xf]).append(esc);
+            } else {
+                out.append(c);
+            }
+            i++;
+        }
+    }
 
-            char[] escapeFieldCharSeq = {delimiters[3], 'F', delimiters[3]};
-            String escField = new String(escapeFieldCharSeq);
+    private static void appendEscape(StringBuilder out, char esc, char code) {
+        out.append(esc).append(code).append(esc);
+    }
 
-            char[] escapeRepCharSeq = {delimiters[3], 'R', delimiters[3]};
-            String escRep = new String(escapeRepCharSeq);
+    //the position in the delimiter array that a one letter escape stands for, or -1
+    private static int delimiterFor(char code) {
+        switch (code) {
+            case 'F': return 0;
+            case 'S': return 1;
+            case 'R': return 2;
+            case 'E': return 3;
+            case 'T': return 4;
+            default: return -1;
+        }
+    }
 
-            char[] escapeSubCharSeq = {delimiters[3], 'S', delimiters[3]};
-            String escSub = new String(escapeSubCharSeq);
+    private static int firstSpecial(char[] delimiters, CharSequence data) {
+        return firstSpecial(delimiters, data, 0, data.length());
+    }
 
-            char[] escapeSubSubCharSeq = {delimiters[3], 'T', delimiters[3]};
-            String escSubSub = new String(escapeSubSubCharSeq);
+    private static int firstSpecial(char[] delimiters, CharSequence data, int start, int end) {
+        for(int i=start; i<end; i++) {
+            char c = data.charAt(i);
+            if (c == delimiters[0] || c == delimiters[1] || c == delimiters[2] || c == delimiters[3] || c == delimiters[4]
+                    || c == '\r' || c == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
 
+    private static int indexOf(CharSequence data, char c, int start, int end) {
+        for(int i=start; i<end; i++) {
+            if (data.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
 
-            inputData = inputData.replace(delimiters[3]+"", escEsc);
-            inputData = inputData.replace(delimiters[0]+"", escField);
-            inputData = inputData.replace(delimiters[2]+"", escRep);
-            inputData = inputData.replace(delimiters[1]+"", escSub);
-            inputData = inputData.replace(delimiters[4]+"", escSubSub);
+    //a non-empty, even number of hex digits
+    private static boolean isHex(CharSequence data, int start, int end) {
+        if (end <= start || (end - start) % 2 != 0) {
+            return false;
+        }
+        for(int i=start; i<end; i++) {
+            if (Character.digit(data.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-            return inputData;
-        } else {return data;}
+    //\H\, \N\, \.xx..\, \Zxx..\, \Cxxyy\ and \Mxxyyzz\, given the text between the escape characters
+    private static boolean isFormatting(CharSequence data, int start, int end) {
+        int length = end - start;
+        if (length <= 0) {
+            return false;
+        }
+        char code = data.charAt(start);
+        switch (code) {
+            case 'H':
+            case 'N':
+                return length == 1;
+            case '.':
+            case 'Z':
+                return length > 1;
+            case 'C':
+                return length == 5 && isHex(data, start+1, end);
+            case 'M':
+                return (length == 5 || length == 7) && isHex(data, start+1, end);
+            default:
+                return false;
+        }
     }
 }
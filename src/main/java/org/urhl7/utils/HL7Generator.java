@@ -0,0 +1,609 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.utils;
+
+import java.io.IOException;
+import java.util.Random;
+import org.urhl7.hl7.*;
+import org.urhl7.spark.SparkFileWriter;
+
+/**
+ * Creates synthetic HL7 messages for load and benchmark testing. The messages look like real ADT^A01 and ORU^R01
+ * traffic, but every value is made up, so they can be shared and kept without worrying about patient data. <br />
+ * A generator is seeded: two generators created with the same seed and settings create the same messages, in the
+ * same order, on any machine. The size and shape of the messages are set with setType, setObservations,
+ * setRepetitions, setEscapeRate and setDelimiters. <br />
+ * Messages can be written straight to a SparkFileWriter, by count or by size. Whether the file is plain or gzipped
+ * is up to the writer's SparkCompression. A HL7Generator is not thread safe.
+ * @author dmorgan
+ */
+public class HL7Generator {
+    private static final char[] DEFAULT_DELIMS = {'|', '^', '~', '\\', '&'};
+
+    private static final String[] FAMILY = {"SMITH", "JOHNSON", "WILLIAMS", "BROWN", "JONES", "GARCIA", "MILLER",
+        "DAVIS", "RODRIGUEZ", "MARTINEZ", "HERNANDEZ", "LOPEZ", "WILSON", "ANDERSON", "THOMAS", "TAYLOR", "MOORE",
+        "JACKSON", "MARTIN", "LEE", "O'BRIEN", "NGUYEN", "MORGAN"};
+    private static final String[] GIVEN = {"JAMES", "MARY", "ROBERT", "PATRICIA", "JOHN", "JENNIFER", "MICHAEL",
+        "LINDA", "DAVID", "ELIZABETH", "WILLIAM", "BARBARA", "RICHARD", "SUSAN", "JOSEPH", "JESSICA", "ANN", "LUIS"};
+    private static final String[] STREETS = {"MAIN ST", "ELM ST", "PARK AVE", "LAKE AVE", "CLINTON AVE",
+        "MONROE AVE", "EAST AVE", "UNIVERSITY AVE", "CRITTENDEN BLVD", "MT HOPE AVE"};
+    private static final String[][] CITIES = {{"ROCHESTER", "NY", "146"}, {"BUFFALO", "NY", "142"},
+        {"SYRACUSE", "NY", "132"}, {"ALBANY", "NY", "122"}, {"ERIE", "PA", "165"}, {"BOSTON", "MA", "021"}};
+    private static final String[][] RELATIONSHIPS = {{"SPO", "SPOUSE"}, {"CHD", "CHILD"}, {"PAR", "PARENT"},
+        {"SIB", "SIBLING"}, {"FND", "FRIEND"}};
+    private static final String[][] ALLERGENS = {{"70618", "PENICILLIN"}, {"2670", "CODEINE"},
+        {"10831", "SULFAMETHOXAZOLE"}, {"1191", "ASPIRIN"}, {"5956", "LATEX"}};
+    private static final String[][] DIAGNOSES = {{"I10", "ESSENTIAL HYPERTENSION"}, {"E11.9", "TYPE 2 DIABETES"},
+        {"J18.9", "PNEUMONIA, UNSPECIFIED"}, {"N39.0", "URINARY TRACT INFECTION"}, {"I48.91", "ATRIAL FIBRILLATION"},
+        {"K35.80", "ACUTE APPENDICITIS"}, {"S72.001A", "FRACTURE OF FEMUR"}};
+    private static final String[][] PANELS = {{"24323-8", "COMPREHENSIVE METABOLIC PANEL"},
+        {"58410-2", "COMPLETE BLOOD COUNT"}, {"24331-1", "LIPID PANEL"}, {"24362-6", "RENAL FUNCTION PANEL"},
+        {"24325-3", "HEPATIC FUNCTION PANEL"}};
+    //code, name, units, low, high
+    private static final String[][] TESTS = {{"2345-7", "GLUCOSE", "mg/dL", "70", "99"},
+        {"2951-2", "SODIUM", "mmol/L", "136", "145"}, {"2823-3", "POTASSIUM", "mmol/L", "3.5", "5.1"},
+        {"2075-0", "CHLORIDE", "mmol/L", "98", "107"}, {"2028-9", "CARBON DIOXIDE", "mmol/L", "22", "29"},
+        {"3094-0", "UREA NITROGEN", "mg/dL", "7", "20"}, {"2160-0", "CREATININE", "mg/dL", "0.6", "1.3"},
+        {"17861-6", "CALCIUM", "mg/dL", "8.5", "10.2"}, {"1751-7", "ALBUMIN", "g/dL", "3.5", "5.0"},
+        {"718-7", "HEMOGLOBIN", "g/dL", "12.0", "17.5"}, {"4544-3", "HEMATOCRIT", "%", "36", "50"},
+        {"6690-2", "LEUKOCYTES", "10*3/uL", "4.5", "11.0"}, {"777-3", "PLATELETS", "10*3/uL", "150", "400"},
+        {"2093-3", "CHOLESTEROL", "mg/dL", "125", "200"}, {"1742-6", "ALT", "U/L", "7", "56"}};
+    private static final String[] VITALS = {"8867-4^HEART RATE^LN|/min", "9279-1^RESPIRATORY RATE^LN|/min",
+        "8310-5^BODY TEMPERATURE^LN|Cel", "8480-6^SYSTOLIC BP^LN|mm[Hg]", "29463-7^BODY WEIGHT^LN|kg"};
+    private static final String[] WORDS = {"patient", "reports", "mild", "pain", "after", "procedure", "stable",
+        "follow", "up", "in", "two", "weeks", "specimen", "hemolyzed", "repeat", "requested", "results", "called",
+        "to", "nurse", "on", "floor", "verified", "by", "lab", "no", "acute", "distress", "noted", "and", "with"};
+
+    private final long seed;
+    private final Random random;
+    private long generated = 0;
+
+    private HL7GeneratorType type = HL7GeneratorType.ADT_A01;
+    private int observations = 200;
+    private int repetitions = 3;
+    private double escapeRate = 0.05;
+    private char[] delims = DEFAULT_DELIMS;
+
+    /**
+     * Creates a generator of ADT^A01 messages with standard delimiters.
+     * @param seed the seed of the values in the messages
+     */
+    public HL7Generator(long seed) {
+        this.seed = seed;
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Creates a generator of the specified type with standard delimiters.
+     * @param seed the seed of the values in the messages
+     * @param type the messages to create
+     */
+    public HL7Generator(long seed, HL7GeneratorType type) {
+        this(seed);
+        setType(type);
+    }
+
+    /**
+     * Creates the next message.
+     * @return a newly created HL7Structure
+     */
+    public HL7Structure next() {
+        generated++;
+        HL7GeneratorType messageType = type;
+        if (messageType == HL7GeneratorType.MIXED) {
+            messageType = random.nextInt(4) == 0 ? HL7GeneratorType.ORU_R01 : HL7GeneratorType.ADT_A01;
+        }
+        if (messageType == HL7GeneratorType.ORU_R01) {
+            return oru();
+        }
+        return adt();
+    }
+
+    /**
+     * Writes messages to a SparkFileWriter.
+     * @param writer the writer to write to, left open
+     * @param count the number of messages to write
+     * @throws IOException if the writer fails
+     */
+    public void write(SparkFileWriter writer, int count) throws IOException {
+        for(int i=0; i<count; i++) {
+            writer.write(next());
+        }
+    }
+
+    /**
+     * Writes messages to a SparkFileWriter until at least <i>size</i> characters, counting the delimiters between
+     * messages, were written. The size is before any compression.
+     * @param writer the writer to write to, left open
+     * @param size the number of characters to write
+     * @return the number of messages written
+     * @throws IOException if the writer fails
+     */
+    public int writeSize(SparkFileWriter writer, long size) throws IOException {
+        int count = 0;
+        long written = 0;
+        while (written < size) {
+            HL7Structure message = next();
+            writer.write(message);
+            //the writer marshalled the message, so this is cached
+            written += message.marshal().length() + writer.getDelimiter().length();
+            count++;
+        }
+        return count;
+    }
+
+    private HL7Structure adt() {
+        String timestamp = timestamp();
+        HL7Structure structure = header("ADT^A01", timestamp);
+        HL7Segment seg = segment("EVN");
+        add(seg, "A01");
+        add(seg, timestamp);
+        structure.addSegment(seg);
+        structure.addSegment(pid());
+        structure.addSegment(pv1(timestamp));
+
+        int kin = 1 + random.nextInt(3);
+        for(int i=1; i<=kin; i++) {
+            seg = segment("NK1");
+            add(seg, Integer.toString(i));
+            seg.addRepeatingField(repeat(field(family(), given())));
+            String[] relationship = pick(RELATIONSHIPS);
+            seg.addRepeatingField(repeat(field(relationship[0], relationship[1], "HL70063")));
+            seg.addRepeatingField(repeat(address()));
+            seg.addRepeatingField(phones());
+            structure.addSegment(seg);
+        }
+
+        int allergies = random.nextInt(4);
+        for(int i=1; i<=allergies; i++) {
+            seg = segment("AL1");
+            add(seg, Integer.toString(i));
+            add(seg, "DA");
+            String[] allergen = pick(ALLERGENS);
+            seg.addRepeatingField(repeat(field(allergen[0], allergen[1], "RXNORM")));
+            add(seg, random.nextBoolean() ? "SV" : "MO");
+            add(seg, text(2 + random.nextInt(4)));
+            structure.addSegment(seg);
+        }
+
+        int diagnoses = 1 + random.nextInt(4);
+        for(int i=1; i<=diagnoses; i++) {
+            seg = segment("DG1");
+            add(seg, Integer.toString(i));
+            add(seg, "I10");
+            String[] diagnosis = pick(DIAGNOSES);
+            seg.addRepeatingField(repeat(field(diagnosis[0], diagnosis[1], "I10")));
+            add(seg, diagnosis[1]);
+            add(seg, timestamp);
+            add(seg, i == 1 ? "A" : "W");
+            structure.addSegment(seg);
+        }
+
+        int vitals = 2 + random.nextInt(4);
+        for(int i=1; i<=vitals; i++) {
+            String[] vital = VITALS[(i - 1) % VITALS.length].split("\\|");
+            String[] code = vital[0].split("\\^");
+            seg = segment("OBX");
+            add(seg, Integer.toString(i));
+            add(seg, "NM");
+            seg.addRepeatingField(repeat(field(code[0], code[1], code[2])));
+            add(seg, "");
+            add(seg, Integer.toString(10 + random.nextInt(150)));
+            seg.addRepeatingField(repeat(field(vital[1], vital[1], "UCUM")));
+            add(seg, "");
+            add(seg, "");
+            add(seg, "");
+            add(seg, "");
+            add(seg, "F");
+            structure.addSegment(seg);
+        }
+
+        seg = segment("IN1");
+        add(seg, "1");
+        seg.addRepeatingField(repeat(field("PLAN" + random.nextInt(100), "HEALTH PLAN " + random.nextInt(100))));
+        add(seg, Integer.toString(1000 + random.nextInt(9000)));
+        add(seg, "INSURANCE COMPANY " + (char)('A' + random.nextInt(26)));
+        seg.addRepeatingField(repeat(address()));
+        structure.addSegment(seg);
+        return structure;
+    }
+
+    private HL7Structure oru() {
+        String timestamp = timestamp();
+        HL7Structure structure = header("ORU^R01", timestamp);
+        structure.addSegment(pid());
+        structure.addSegment(pv1(timestamp));
+
+        HL7Segment seg = segment("ORC");
+        add(seg, "RE");
+        seg.addRepeatingField(repeat(field(Integer.toString(random.nextInt(10000000)), "EPIC")));
+        seg.addRepeatingField(repeat(field(Integer.toString(random.nextInt(10000000)), "LAB")));
+        structure.addSegment(seg);
+
+        //half to one and a half times the requested number, so messages differ in size
+        int count = observations / 2 + random.nextInt(observations + 1);
+        int order = 0;
+        for(int i=0; i<count; i++) {
+            if (i % 50 == 0) {
+                order++;
+                String[] panel = pick(PANELS);
+                seg = segment("OBR");
+                add(seg, Integer.toString(order));
+                seg.addRepeatingField(repeat(field(Integer.toString(random.nextInt(10000000)), "EPIC")));
+                seg.addRepeatingField(repeat(field(Integer.toString(random.nextInt(10000000)), "LAB")));
+                seg.addRepeatingField(repeat(field(panel[0], panel[1], "LN")));
+                add(seg, "");
+                add(seg, "");
+                add(seg, timestamp);
+                structure.addSegment(seg);
+            }
+            structure.addSegment(obx(i + 1, timestamp));
+            if (random.nextInt(20) == 0) {
+                seg = segment("NTE");
+                add(seg, "1");
+                add(seg, "L");
+                add(seg, text(5 + random.nextInt(20)));
+                structure.addSegment(seg);
+            }
+        }
+        return structure;
+    }
+
+    private HL7Structure header(String messageType, String timestamp) {
+        HL7Structure structure = HL7.structure(delims);
+        HL7Segment seg = structure.getSegment(0);
+        add(seg, "SENDAPP");
+        seg.addRepeatingField(repeat(field("FAC" + random.nextInt(10), "1.2.840." + random.nextInt(100000), "ISO")));
+        add(seg, "RECVAPP");
+        add(seg, "RECVFAC");
+        add(seg, timestamp);
+        add(seg, "");
+        String[] parts = messageType.split("\\^");
+        seg.addRepeatingField(repeat(field(parts[0], parts[1])));
+        add(seg, "GEN" + seed + "." + generated);
+        add(seg, "P");
+        add(seg, "2.5");
+        return structure;
+    }
+
+    private HL7Segment pid() {
+        HL7Segment seg = segment("PID");
+        add(seg, "1");
+        add(seg, "");
+        HL7RepeatingField ids = new HL7RepeatingField(delims);
+        int count = repetitions();
+        for(int i=0; i<count; i++) {
+            ids.addField(field(Integer.toString(100000 + random.nextInt(900000)), "", "",
+                    i == 0 ? "MRN" : "FAC" + i, i == 0 ? "MR" : "PI"));
+        }
+        seg.addRepeatingField(ids);
+        add(seg, "");
+        seg.addRepeatingField(repeat(field(family(), given(), (char)('A' + random.nextInt(26)) + "")));
+        add(seg, family());
+        add(seg, date(1920, 2010));
+        add(seg, random.nextBoolean() ? "M" : "F");
+        add(seg, "");
+        seg.addRepeatingField(repeat(field("2106-3", "WHITE", "HL70005")));
+        HL7RepeatingField addresses = new HL7RepeatingField(delims);
+        count = repetitions();
+        for(int i=0; i<count; i++) {
+            addresses.addField(address());
+        }
+        seg.addRepeatingField(addresses);
+        add(seg, "");
+        seg.addRepeatingField(phones());
+        add(seg, "");
+        add(seg, "ENG");
+        add(seg, random.nextBoolean() ? "M" : "S");
+        add(seg, "");
+        add(seg, Integer.toString(random.nextInt(100000000)));
+        return seg;
+    }
+
+    private HL7Segment pv1(String timestamp) {
+        HL7Segment seg = segment("PV1");
+        add(seg, "1");
+        add(seg, random.nextBoolean() ? "I" : "O");
+        //ward^room^bed^facility, where the facility is namespace&universal id&type
+        seg.addRepeatingField(repeat(field(component("W" + random.nextInt(10)),
+                component(Integer.toString(100 + random.nextInt(400))), component(Integer.toString(1 + random.nextInt(4))),
+                component("HOSP", "1.2.840." + random.nextInt(1000), "ISO"))));
+        for(int i=4; i<7; i++) {
+            add(seg, "");
+        }
+        HL7RepeatingField doctors = new HL7RepeatingField(delims);
+        int count = repetitions();
+        for(int i=0; i<count; i++) {
+            doctors.addField(field(Integer.toString(1000 + random.nextInt(9000)), family(), given(), "", "", "DR"));
+        }
+        seg.addRepeatingField(doctors);
+        for(int i=8; i<10; i++) {
+            add(seg, "");
+        }
+        add(seg, random.nextBoolean() ? "MED" : "SUR");
+        for(int i=11; i<19; i++) {
+            add(seg, "");
+        }
+        add(seg, "V" + random.nextInt(10000000));
+        for(int i=20; i<44; i++) {
+            add(seg, "");
+        }
+        add(seg, timestamp);
+        return seg;
+    }
+
+    private HL7Segment obx(int setId, String timestamp) {
+        HL7Segment seg = segment("OBX");
+        add(seg, Integer.toString(setId));
+        boolean text = random.nextInt(10) == 0;
+        String[] test = pick(TESTS);
+        add(seg, text ? "TX" : "NM");
+        seg.addRepeatingField(repeat(field(test[0], test[1], "LN")));
+        add(seg, "");
+        if (text) {
+            add(seg, text(5 + random.nextInt(30)));
+            add(seg, "");
+            add(seg, "");
+        } else {
+            double low = Double.parseDouble(test[3]);
+            double high = Double.parseDouble(test[4]);
+            double value = low + (high - low) * (random.nextDouble() * 1.4 - 0.2);
+            add(seg, Double.toString(Math.round(value * 10) / 10.0));
+            seg.addRepeatingField(repeat(field(test[2], test[2], "UCUM")));
+            add(seg, test[3] + "-" + test[4]);
+            add(seg, value < low ? "L" : value > high ? "H" : "N");
+        }
+        add(seg, "");
+        add(seg, "");
+        add(seg, "F");
+        add(seg, "");
+        add(seg, "");
+        add(seg, timestamp);
+        return seg;
+    }
+
+    private HL7Segment segment(String name) {
+        return HL7.segment(delims, name);
+    }
+
+    private void add(HL7Segment seg, String value) {
+        seg.addRepeatingField(HL7.quickField(delims, value));
+    }
+
+    private HL7RepeatingField repeat(HL7Field field) {
+        HL7RepeatingField repField = new HL7RepeatingField(delims);
+        repField.addField(field);
+        return repField;
+    }
+
+    private HL7RepeatingField phones() {
+        HL7RepeatingField phones = new HL7RepeatingField(delims);
+        int count = repetitions();
+        for(int i=0; i<count; i++) {
+            phones.addField(field("(" + (200 + random.nextInt(800)) + ")" + (200 + random.nextInt(800)) + "-"
+                    + (1000 + random.nextInt(9000)), i == 0 ? "PRN" : "WPN", "PH"));
+        }
+        return phones;
+    }
+
+    private HL7Field address() {
+        String[] city = pick(CITIES);
+        return field((1 + random.nextInt(9999)) + " " + pick(STREETS), "", city[0], city[1],
+                city[2] + (10 + random.nextInt(90)), "USA");
+    }
+
+    //a field of simple components
+    private HL7Field field(String... components) {
+        HL7Field field = new HL7Field(delims);
+        if (components.length == 1) {
+            field.setData(components[0]);
+        } else {
+            for(String component : components) {
+                field.addFieldComponent(HL7.component(delims, component));
+            }
+        }
+        return field;
+    }
+
+    private HL7Field field(HL7FieldComponent... components) {
+        HL7Field field = new HL7Field(delims);
+        for(HL7FieldComponent component : components) {
+            field.addFieldComponent(component);
+        }
+        return field;
+    }
+
+    //a component of subcomponents
+    private HL7FieldComponent component(String... subcomponents) {
+        if (subcomponents.length == 1) {
+            return HL7.component(delims, subcomponents[0]);
+        }
+        HL7FieldComponent component = new HL7FieldComponent(delims);
+        for(String subcomponent : subcomponents) {
+            component.addFieldSubcomponent(HL7.subcomponent(delims, subcomponent));
+        }
+        return component;
+    }
+
+    //free text, that may hold delimiters or the escape character, which are escaped when the text is set
+    private String text(int words) {
+        StringBuilder sb = new StringBuilder();
+        for(int i=0; i<words; i++) {
+            if (i > 0) {
+                if (random.nextDouble() < escapeRate) {
+                    sb.append(' ').append(delims[random.nextInt(delims.length)]).append(' ');
+                } else {
+                    sb.append(' ');
+                }
+            }
+            sb.append(pick(WORDS));
+        }
+        return sb.toString();
+    }
+
+    private String family() {
+        return pick(FAMILY);
+    }
+
+    private String given() {
+        return pick(GIVEN);
+    }
+
+    private int repetitions() {
+        return 1 + random.nextInt(repetitions);
+    }
+
+    private String timestamp() {
+        return date(2010, 2020) + pad(random.nextInt(24)) + pad(random.nextInt(60)) + pad(random.nextInt(60));
+    }
+
+    private String date(int fromYear, int toYear) {
+        return (fromYear + random.nextInt(toYear - fromYear)) + pad(1 + random.nextInt(12)) + pad(1 + random.nextInt(28));
+    }
+
+    private static String pad(int value) {
+        return value < 10 ? "0" + value : Integer.toString(value);
+    }
+
+    private <T> T pick(T[] values) {
+        return values[random.nextInt(values.length)];
+    }
+
+    /**
+     * Returns the seed this generator was created with.
+     * @return the seed
+     */
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Returns the number of messages created so far.
+     * @return the number of messages
+     */
+    public long getGenerated() {
+        return generated;
+    }
+
+    /**
+     * Returns the type of messages created.
+     * @return the type
+     */
+    public HL7GeneratorType getType() {
+        return type;
+    }
+
+    /**
+     * Sets the type of messages created.
+     * @param type the type
+     */
+    public void setType(HL7GeneratorType type) {
+        this.type = type;
+    }
+
+    /**
+     * Returns the average number of OBX segments in an ORU^R01.
+     * @return the number of OBX segments
+     */
+    public int getObservations() {
+        return observations;
+    }
+
+    /**
+     * Sets the average number of OBX segments in an ORU^R01. Each message has between half and one and a half
+     * times this many. The default is 200.
+     * @param observations the number of OBX segments, at least 1
+     */
+    public void setObservations(int observations) {
+        if (observations < 1) {
+            throw new IllegalArgumentException("observations must be at least 1");
+        }
+        this.observations = observations;
+    }
+
+    /**
+     * Returns the largest number of repetitions in a repeating field.
+     * @return the number of repetitions
+     */
+    public int getRepetitions() {
+        return repetitions;
+    }
+
+    /**
+     * Sets the largest number of repetitions of the repeating fields: patient identifiers, addresses and phone
+     * numbers, and attending doctors. Each field repeats between 1 and this many times. The default is 3.
+     * @param repetitions the number of repetitions, at least 1
+     */
+    public void setRepetitions(int repetitions) {
+        if (repetitions < 1) {
+            throw new IllegalArgumentException("repetitions must be at least 1");
+        }
+        this.repetitions = repetitions;
+    }
+
+    /**
+     * Returns the chance of a delimiter between two words of free text.
+     * @return the chance, from 0 to 1
+     */
+    public double getEscapeRate() {
+        return escapeRate;
+    }
+
+    /**
+     * Sets the chance of a delimiter or escape character between two words of free text (allergic reactions,
+     * notes and text results), which is written as an escape sequence. The default is 0.05.
+     * @param escapeRate the chance, from 0 to 1
+     */
+    public void setEscapeRate(double escapeRate) {
+        if (escapeRate < 0 || escapeRate > 1) {
+            throw new IllegalArgumentException("escapeRate must be from 0 to 1");
+        }
+        this.escapeRate = escapeRate;
+    }
+
+    /**
+     * Returns the delimiters of the messages created.
+     * @return a copy of the delimiters
+     */
+    public char[] getDelimiters() {
+        return delims.clone();
+    }
+
+    /**
+     * Sets the delimiters of the messages created. The default is |^~\&.
+     * @param delims the field, component, repetition, escape and subcomponent characters, all different
+     */
+    public void setDelimiters(char[] delims) {
+        if (delims.length != 5) {
+            throw new IllegalArgumentException("delimiters must be five different characters");
+        }
+        for(int i=0; i<delims.length; i++) {
+            if (new String(delims).indexOf(delims[i]) != i) {
+                throw new IllegalArgumentException("delimiters must be five different characters");
+            }
+        }
+        this.delims = HL7Delimiters.of(delims).toCharArray();
+    }
+}
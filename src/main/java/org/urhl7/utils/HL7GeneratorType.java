@@ -0,0 +1,47 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.utils;
+
+/**
+ * Enumeration to specify which messages a HL7Generator creates.
+ * @author dmorgan
+ */
+public enum HL7GeneratorType {
+    /**
+     * ADT^A01 admissions of a few dozen segments: patient, visit, next of kin, allergies, diagnoses, a handful of
+     * observations and insurance.
+     */
+    ADT_A01,
+    /**
+     * ORU^R01 results: patient and visit, then orders of up to 50 OBX segments each, with occasional notes. The
+     * number of OBX segments is set by HL7Generator.setObservations.
+     */
+    ORU_R01,
+    /**
+     * A mix of both, with one ORU^R01 for every three ADT^A01 on average.
+     */
+    MIXED
+
+}
@@ -0,0 +1,195 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.igor;
+
+import org.urhl7.hl7.*;
+import org.urhl7.utils.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+/**
+ * Checks that many threads can read one HL7Structure at once, in every parse mode.
+ * @author dmorgan
+ */
+public class ConcurrentReadTest {
+    private static final int THREADS = 8;
+
+    private static final String[] LOCATIONS = {"MSH-9.1", "PID-3", "PID[0]-3[1].4", "PID-11.3", "PV1-3.4.2", "ORC-2",
+        "OBR[1]-4.2", "OBX[0]-5", "OBX[150]-3.2", "OBX[299]-7", "NTE-3", "ZZZ-1"};
+
+    private static String message() {
+        HL7Generator generator = new HL7Generator(11, HL7GeneratorType.ORU_R01);
+        generator.setObservations(300);
+        generator.setRepetitions(5);
+        return generator.next().marshal();
+    }
+
+    //reads every location from every thread at once, and compares with what a single thread read
+    private static void readConcurrently(final HL7Structure shared, final HL7Structure expected) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        final CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<String>> results = new ArrayList<Future<String>>();
+            for(int t=0; t<THREADS; t++) {
+                final int offset = t;
+                results.add(pool.submit(new Callable<String>() {
+                    public String call() throws Exception {
+                        start.await();
+                        for(int round=0; round<20; round++) {
+                            for(int i=0; i<LOCATIONS.length; i++) {
+                                String location = LOCATIONS[(i + offset) % LOCATIONS.length];
+                                String got = shared.get(location).getData();
+                                String want = expected.get(location).getData();
+                                if (!String.valueOf(want).equals(String.valueOf(got))) {
+                                    return location + ": " + got + " != " + want;
+                                }
+                                if (shared.has(location) != expected.has(location)) {
+                                    return location + ": has";
+                                }
+                                if (shared.getAll(location).size() != expected.getAll(location).size()) {
+                                    return location + ": getAll";
+                                }
+                            }
+                            if (!shared.marshal().equals(expected.marshal())) {
+                                return "marshal";
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            start.countDown();
+            for(Future<String> result : results) {
+                assertNull(result.get(60, TimeUnit.SECONDS));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testConcurrentReadsEveryMode() throws Exception {
+        String message = message();
+        HL7Structure expected = HL7.structure(message);
+        for(HL7ParseMode mode : HL7ParseMode.values()) {
+            for(int i=0; i<5; i++) {
+                readConcurrently(HL7.structure(message, mode), expected);
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentReadsAfterChange() throws Exception {
+        String message = message();
+        for(HL7ParseMode mode : HL7ParseMode.values()) {
+            for(int i=0; i<5; i++) {
+                HL7Structure shared = HL7.structure(message, mode);
+                HL7Structure expected = HL7.structure(message);
+                //index the structure, then change it, so the first readers race to re-index the changed segments
+                shared.get("PID-3");
+                expected.get("PID-3");
+                shared.get("PID-3").setData("CHANGED");
+                expected.get("PID-3").setData("CHANGED");
+                shared.get("OBX[150]-3.2").setData("ALSO CHANGED");
+                expected.get("OBX[150]-3.2").setData("ALSO CHANGED");
+                readConcurrently(shared, expected);
+            }
+        }
+    }
+
+    @Test
+    public void testOneHelperPerStructure() throws Exception {
+        final HL7Structure shared = HL7.structure(message(), HL7ParseMode.LAZY);
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<HL7StructureHelper>> helpers = new ArrayList<Future<HL7StructureHelper>>();
+            for(int t=0; t<THREADS; t++) {
+                helpers.add(pool.submit(new Callable<HL7StructureHelper>() {
+                    public HL7StructureHelper call() {
+                        return shared.helper();
+                    }
+                }));
+            }
+            for(Future<HL7StructureHelper> helper : helpers) {
+                assertSame(helper.get(), shared.helper());
+            }
+            assertEquals(shared.helper().getCacheRebuildCount(), 1);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testLazyReadsOfDifferentSegments() throws Exception {
+        //every thread parses its own segments while the others read the index
+        StringBuilder sb = new StringBuilder("MSH|^~\\&|||||||ADT^A01|1|P|2.3\r");
+        for(int i=0; i<200; i++) {
+            sb.append("Z95|").append(i).append("^A|").append(i % 7 == 0 ? "X^Y^Z|1|2~3~4|5^6&7\r" : "\r");
+            sb.append("Z96|").append(i).append("^B|").append(i % 5 == 0 ? "X^Y|1~2|3^4&5&6|7\r" : "\r");
+        }
+        final String message = sb.toString();
+
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            for(int iteration=0; iteration<300; iteration++) {
+                final HL7Structure shared = HL7.structure(message, HL7ParseMode.LAZY);
+                final CountDownLatch start = new CountDownLatch(1);
+                List<Future<String>> results = new ArrayList<Future<String>>();
+                for(int t=0; t<THREADS; t++) {
+                    final int offset = t;
+                    results.add(pool.submit(new Callable<String>() {
+                        public String call() throws Exception {
+                            start.await();
+                            for(int i=offset; i<200; i+=THREADS) {
+                                String name = (i % 2 == 0) ? "Z95" : "Z96";
+                                String got = shared.get(name + "[" + i + "]-1.1").getData();
+                                if (!String.valueOf(i).equals(got)) {
+                                    return name + "[" + i + "]-1.1: " + got;
+                                }
+                                if (!shared.has("Z96[" + (199 - i) + "]-1")) {
+                                    return "Z96[" + (199 - i) + "]-1: has";
+                                }
+                                int size = shared.getAll("Z95[" + (i / 2) + "]-1").size();
+                                if (size != 1) {
+                                    return "Z95[" + (i / 2) + "]-1: " + size;
+                                }
+                            }
+                            int size = shared.getAll("Z95-1").size();
+                            return (size == 200) ? null : "Z95-1: " + size;
+                        }
+                    }));
+                }
+                start.countDown();
+                for(Future<String> result : results) {
+                    assertNull(result.get(60, TimeUnit.SECONDS));
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
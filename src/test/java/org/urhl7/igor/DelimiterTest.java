@@ -24,6 +24,7 @@
 
 package org.urhl7.igor;
 
+import org.urhl7.hl7.HL7Delimiters;
 import org.urhl7.hl7.HL7Structure;
 import org.urhl7.hl7.HL7;
 import org.testng.annotations.Test;
@@ -75,4 +76,41 @@ public class DelimiterTest {
         assertEquals(s2.marshal(), finAdvMsg);
 
     }
+
+    @Test
+    public void testDelimitersAreShared() {
+        HL7Structure a = HL7.structure("MSH|^~\\&|A|B\rPID|1||123^^^MRN\r");
+        HL7Structure b = HL7.structure("MSH|^~\\&|C|D\r");
+        assertSame(a.getDelimiters(), HL7Delimiters.STANDARD);
+        assertSame(b.getDelimiters(), HL7Delimiters.STANDARD);
+        assertSame(a.getSegment(1).getRepeatingField(3).getField(0).getFieldComponent(3).getDelimiters(), HL7Delimiters.STANDARD);
+
+        HL7Structure c = HL7.structure("MSH:*~\\`:A:B\r");
+        HL7Structure d = HL7.structure("MSH:*~\\`:C:D\r");
+        assertSame(c.getDelimiters(), d.getDelimiters());
+        assertEquals(c.getDelimiters().getEncodingCharacters(), "*~\\`");
+        assertSame(HL7Delimiters.of(new char[] {'|', '^', '~', '\\', '&'}), HL7Delimiters.STANDARD);
+    }
+
+    @Test
+    public void testDelimiterCopiesAreIsolated() {
+        HL7Structure struct = HL7.structure("MSH|^~\\&|A|B\rPID|1||123^^^MRN\r");
+        char[] copy = struct.getDelims();
+        copy[1] = '*';
+        assertEquals(struct.getDelimiters().getComponentSeparator(), '^');
+        assertEquals(struct.marshal(), "MSH|^~\\&|A|B\rPID|1||123^^^MRN\r");
+    }
+
+    @Test
+    public void testUnchangedDelimitersAreNotWalked() {
+        HL7Structure struct = HL7.structure("MSH|^~\\&|A|B\rPID|1||123^^^MRN\r");
+        String segment = struct.getSegment(1).marshal();
+        struct.changeDelims(new char[] {'|', '^', '~', '\\', '&'});
+        assertSame(struct.getSegment(1).marshal(), segment);
+        assertEquals(struct.marshal(), "MSH|^~\\&|A|B\rPID|1||123^^^MRN\r");
+
+        struct.changeDelims(new char[] {'|', '*', '~', '\\', '&'});
+        struct.changeDelims(HL7Delimiters.STANDARD, true);
+        assertEquals(struct.marshal(), "MSH|^~\\&|A|B\rPID|1||123^^^MRN\r");
+    }
 }
@@ -0,0 +1,100 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.igor;
+
+import org.urhl7.hl7.*;
+import org.urhl7.utils.HL7Escape;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+/**
+ * Checks HL7Escape in both directions, and that data round trips through the structure.
+ * @author dmorgan
+ */
+public class HL7EscapeTest {
+    private static final char[] DELIMS = "|^~\\&".toCharArray();
+
+    @Test
+    public void testUnchangedDataIsReturned() {
+        String plain = "Smith John 123";
+        assertSame(HL7Escape.escape(DELIMS, plain), plain);
+        assertSame(HL7Escape.unescape(DELIMS, plain), plain);
+        assertNull(HL7Escape.escape(DELIMS, null));
+        assertNull(HL7Escape.unescape(DELIMS, null));
+    }
+
+    @Test
+    public void testDelimiterEscapes() {
+        assertEquals(HL7Escape.escape(DELIMS, "a|b^c~d\\e&f"), "a\\F\\b\\S\\c\\R\\d\\E\\e\\T\\f");
+        assertEquals(HL7Escape.unescape(DELIMS, "a\\F\\b\\S\\c\\R\\d\\E\\e\\T\\f"), "a|b^c~d\\e&f");
+        //an escaped escape character is not the start of another sequence
+        assertEquals(HL7Escape.unescape(DELIMS, "\\E\\T\\"), "\\T\\");
+        assertEquals(HL7Escape.unescape(DELIMS, "2.73x10\\S\\-7"), "2.73x10^-7");
+
+        char[] other = ":*~`#".toCharArray();
+        assertEquals(HL7Escape.escape(other, "a:b|c`"), "a`F`b|c`E`");
+        assertEquals(HL7Escape.unescape(other, "a`F`b|c`E`"), "a:b|c`");
+    }
+
+    @Test
+    public void testHexEscapes() {
+        assertEquals(HL7Escape.unescape(DELIMS, "A\\X0D0A\\B\\X41\\"), "A\r\nBA");
+        assertEquals(HL7Escape.escape(DELIMS, "line 1\r\nline 2"), "line 1\\X0D\\\\X0A\\line 2");
+        assertEquals(HL7Escape.unescape(DELIMS, HL7Escape.escape(DELIMS, "line 1\r\nline 2")), "line 1\r\nline 2");
+        //not hexadecimal, so the escape characters stand for themselves
+        assertEquals(HL7Escape.unescape(DELIMS, "\\XZZ\\"), "\\XZZ\\");
+        assertEquals(HL7Escape.unescape(DELIMS, "\\X4\\"), "\\X4\\");
+    }
+
+    @Test
+    public void testFormattingEscapesKept() {
+        String formatted = "first\\.br\\second \\H\\bold\\N\\ \\Zcustom\\ \\C2842\\ \\M2442\\";
+        assertEquals(HL7Escape.unescape(DELIMS, formatted), formatted);
+        assertEquals(HL7Escape.escape(DELIMS, formatted), formatted);
+        assertEquals(HL7Escape.escape(DELIMS, "a\\b"), "a\\E\\b");
+        assertEquals(HL7Escape.unescape(DELIMS, "a\\b"), "a\\b");
+    }
+
+    @Test
+    public void testStringBuilderVariants() {
+        StringBuilder sb = new StringBuilder(">");
+        HL7Escape.unescape(DELIMS, "xxA\\S\\Bxx", 2, 7, sb);
+        assertEquals(sb.toString(), ">A^B");
+        sb.setLength(0);
+        HL7Escape.escape(DELIMS, "xxA^Bxx", 2, 5, sb);
+        assertEquals(sb.toString(), "A\\S\\B");
+    }
+
+    @Test
+    public void testStructureRoundTrip() {
+        HL7Structure struct = HL7.structure("MSH|^~\\&|A\rNTE|1||line\\X0D\\\\.br\\two\r");
+        assertEquals(struct.get("NTE-3").getData(), "line\r\\.br\\two");
+        struct.get("NTE-3").setData(struct.get("NTE-3").getData());
+        assertEquals(struct.getSegment(1).marshal(), "NTE|1||line\\X0D\\\\.br\\two");
+
+        struct.get("NTE-2").setData("a\rb|c");
+        assertEquals(HL7.structure(struct.marshal()).get("NTE-2").getData(), "a\rb|c");
+    }
+}
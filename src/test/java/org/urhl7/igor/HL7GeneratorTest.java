@@ -0,0 +1,151 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.igor;
+
+import org.urhl7.hl7.*;
+import org.urhl7.spark.*;
+import org.urhl7.utils.*;
+import java.io.*;
+import java.util.*;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+/**
+ * Checks that the HL7Generator creates the same valid messages for the same seed, in the requested shape.
+ * @author dmorgan
+ */
+public class HL7GeneratorTest {
+
+    @Test
+    public void testSameSeedSameMessages() {
+        HL7Generator a = new HL7Generator(42, HL7GeneratorType.MIXED);
+        HL7Generator b = new HL7Generator(42, HL7GeneratorType.MIXED);
+        HL7Generator c = new HL7Generator(43, HL7GeneratorType.MIXED);
+        for(int i=0; i<20; i++) {
+            String message = a.next().marshal();
+            assertEquals(b.next().marshal(), message);
+            assertFalse(c.next().marshal().equals(message));
+        }
+        assertEquals(a.getGenerated(), 20);
+    }
+
+    @Test
+    public void testMessagesParseBack() {
+        HL7Generator generator = new HL7Generator(1, HL7GeneratorType.MIXED);
+        generator.setEscapeRate(0.5);
+        for(int i=0; i<20; i++) {
+            String message = generator.next().marshal();
+            HL7Structure parsed = HL7.structure(message);
+            assertEquals(parsed.marshal(), message);
+            assertEquals(parsed.get("PID-1").getData(), "1");
+            assertTrue(parsed.get("MSH-10").getData().length() > 0);
+        }
+    }
+
+    @Test
+    public void testShape() {
+        HL7Generator generator = new HL7Generator(7, HL7GeneratorType.ADT_A01);
+        HL7Structure adt = generator.next();
+        assertEquals(adt.get("MSH-9.1").getData(), "ADT");
+        assertEquals(adt.get("MSH-9.2").getData(), "A01");
+        assertTrue(adt.getSegments().size() >= 10);
+        assertEquals(adt.get("PV1-3.4.1").getData(), "HOSP");
+
+        generator.setType(HL7GeneratorType.ORU_R01);
+        generator.setObservations(2000);
+        HL7Structure oru = generator.next();
+        assertEquals(oru.get("MSH-9.1").getData(), "ORU");
+        int obx = oru.getSegments("OBX").size();
+        assertTrue(obx >= 1000 && obx <= 3000, "OBX count " + obx);
+
+        generator.setType(HL7GeneratorType.ADT_A01);
+        generator.setRepetitions(500);
+        int most = 0;
+        for(int i=0; i<5; i++) {
+            most = Math.max(most, generator.next().getAll("PID-3").size());
+        }
+        assertTrue(most > 100, "repetitions " + most);
+    }
+
+    @Test
+    public void testEscapesAndCustomDelimiters() {
+        HL7Generator generator = new HL7Generator(3, HL7GeneratorType.ORU_R01);
+        generator.setDelimiters(new char[] {'#', '$', '*', '/', '%'});
+        generator.setEscapeRate(1);
+        String message = generator.next().marshal();
+        assertTrue(message.startsWith("MSH#$*/%#"));
+        assertTrue(message.contains("/F/") || message.contains("/S/") || message.contains("/E/"));
+        HL7Structure parsed = HL7.structure(message);
+        assertEquals(parsed.marshal(), message);
+        String text = null;
+        for(DataField value : parsed.getAll("OBX-5")) {
+            if (value.getData().contains(" ")) {
+                text = value.getData();
+                break;
+            }
+        }
+        assertNotNull(text);
+        boolean unescaped = false;
+        for(char delim : "#$*/%".toCharArray()) {
+            unescaped |= text.indexOf(delim) >= 0;
+        }
+        assertTrue(unescaped, text);
+
+        try {
+            generator.setDelimiters(new char[] {'|', '^', '~', '\\', '|'});
+            fail("accepted duplicate delimiters");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testWriteFiles() throws IOException {
+        File f = File.createTempFile("generated", ".hl7.gz");
+        f.deleteOnExit();
+        SparkFileWriter writer = new SparkFileWriter(f, false);
+        writer.setCompression(SparkCompression.GZIP);
+        int count = new HL7Generator(5, HL7GeneratorType.MIXED).writeSize(writer, 200000);
+        writer.close();
+        assertTrue(count > 10);
+        assertTrue(f.length() < 200000);
+
+        HL7MessageListenerListAdapter list = new HL7MessageListenerListAdapter();
+        new SparkFileReader(f, list).parseBatch();
+        assertEquals(list.getList().size(), count);
+        HL7Generator again = new HL7Generator(5, HL7GeneratorType.MIXED);
+        for(HL7Structure message : list.getList()) {
+            assertEquals(message.marshal(), again.next().marshal());
+        }
+
+        f = File.createTempFile("generated", ".hl7");
+        f.deleteOnExit();
+        writer = new SparkFileWriter(f, false);
+        new HL7Generator(5).write(writer, 25);
+        writer.close();
+        list = new HL7MessageListenerListAdapter();
+        new SparkFileReader(f, list).parseBatch();
+        assertEquals(list.getList().size(), 25);
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.igor;
+
+import java.util.*;
+import org.urhl7.hl7.*;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+/**
+ * Checks that the single pass parser builds the same structure as the standard parser.
+ * @author dmorgan
+ */
+public class HL7ParserTest {
+    private static final String[] MESSAGES = {
+        "MSH|^~\\&|||||||ORU^R01|HP128978937126197|P|2.3||||||8859/1\r" +
+        "PID|||E12345^^^^EPI~858585^^^^SMHMRN~222444^^^^HHHMRN||Smith^John||\"\"|U\r" +
+        "PV1||I|8-3600^^8-3604&4&1\r" +
+        "OBX||NM|0002-5000^SML^MDIL|0|2.73x10\\S\\-7|0004-0ae0^rpm^MDIL|||||F\r",
+
+        "MSH|^~\\&|FLOWCAST|IDX|URMC|ENGINE|201001111101||ADT^A13|61234_22333_DC|P|2.3||||||ASCII|\r"+
+        "NK1|1|MORGAN^BILL^^^^|SP||(315)555-5555||NK&&KID||||\r"+
+        "ZZZ|||^^10&15^SAMPLE\r" +
+        "ZRP|||ONE~TWO~THREE||~\r",
+
+        "MSH:*~\\`:A:B\rPID:1::x*y`z~~*:\r\rZZZ\r\r\r",
+
+        "MSH|^~\\&\r",
+
+        "MSH|^~\\&|&|^|~|&^&|\rPID|\r|||\r",
+    };
+
+    @Test
+    public void testSameStructure() {
+        for(String msg : MESSAGES) {
+            HL7Structure standard = HL7.structure(msg);
+            HL7Structure singlePass = HL7.structure(msg, HL7ParseMode.SINGLE_PASS);
+
+            assertEquals(describe(singlePass), describe(standard));
+            assertEquals(singlePass.marshal(), standard.marshal());
+        }
+    }
+
+    @Test
+    public void testLookupAndModify() {
+        HL7Structure struct = HL7.structure(MESSAGES[0], HL7ParseMode.SINGLE_PASS);
+        assertEquals(struct.get("PID-3[1].1").getData(), "858585");
+        assertEquals(struct.get("OBX-5").getData(), "2.73x10^-7");
+        assertEquals(struct.get("PV1-3.3.2").getData(), "4");
+
+        struct.get("PID-5.2").setData("Jane");
+        assertEquals(struct.get("PID-5.2").getData(), "Jane");
+        assertEquals(struct.getSegment(1).marshal(), "PID|||E12345^^^^EPI~858585^^^^SMHMRN~222444^^^^HHHMRN||Smith^Jane||\"\"|U");
+    }
+
+    @Test
+    public void testLazySameStructure() {
+        for(String msg : MESSAGES) {
+            HL7Structure standard = HL7.structure(msg);
+            HL7Structure lazy = HL7.structure(msg, HL7ParseMode.LAZY);
+
+            assertEquals(lazy.marshal(), standard.marshal());
+            assertEquals(describe(lazy), describe(standard));
+        }
+    }
+
+    @Test
+    public void testLazyOnlyParsesReachedSegments() {
+        HL7Structure struct = HL7.structure(MESSAGES[0], HL7ParseMode.LAZY);
+        for(HL7Segment seg : struct.getSegments()) {
+            assertFalse(seg.isParsed());
+        }
+        assertEquals(struct.getSegment(3).getSegmentName(), "OBX");
+
+        assertEquals(struct.get("PID-3[1].1").getData(), "858585");
+        assertTrue(struct.getSegment(1).isParsed());
+        assertFalse(struct.getSegment(0).isParsed());
+        assertFalse(struct.getSegment(2).isParsed());
+        assertFalse(struct.getSegment(3).isParsed());
+
+        struct.get("PID-5.2").setData("Jane");
+        assertEquals(struct.marshal(), MESSAGES[0].replace("Smith^John", "Smith^Jane"));
+        assertFalse(struct.getSegment(3).isParsed());
+
+        assertEquals(struct.helper().getSegment("PV1").getRepeatingField(3).getField(0).getFieldComponent(2).getFieldSubcomponent(1).getData(), "4");
+        assertTrue(struct.getSegment(2).isParsed());
+        assertEquals(struct.get("OBX-5").getData(), "2.73x10^-7");
+    }
+
+    @Test
+    public void testCompactSameStructure() {
+        for(String msg : MESSAGES) {
+            HL7Structure standard = HL7.structure(msg);
+            HL7Structure compact = HL7.structure(msg, HL7ParseMode.COMPACT);
+
+            //marshalled from the ranges first, then again once describe() has made the Strings
+            assertEquals(compact.marshal(), standard.marshal());
+            assertEquals(describe(compact), describe(standard));
+            assertEquals(compact.copy().marshal(), standard.marshal());
+        }
+    }
+
+    @Test
+    public void testCompactLookupAndModify() {
+        HL7Structure struct = HL7.structure(MESSAGES[0], HL7ParseMode.COMPACT);
+        assertEquals(struct.get("PID-3[1].1").getData(), "858585");
+        assertEquals(struct.get("OBX-5").getData(), "2.73x10^-7");
+        assertEquals(struct.get("PV1-3.3.2").getData(), "4");
+
+        struct.get("PID-5.2").setData("Jane");
+        struct.get("OBX-5").setData("1|2");
+        assertEquals(struct.get("PID-5.2").getData(), "Jane");
+        assertEquals(struct.get("OBX-5").getData(), "1|2");
+        assertEquals(struct.marshal(), MESSAGES[0].replace("Smith^John", "Smith^Jane").replace("2.73x10\\S\\-7", "1\\F\\2"));
+
+        struct.changeDelims("|*~\\&");
+        assertEquals(struct.getSegment(2).marshal(), "PV1||I|8-3600**8-3604&4&1");
+        assertEquals(struct.get("PV1-3.3.2").getData(), "4");
+    }
+
+    @Test
+    public void testReloadSameStructure() {
+        HL7Structure reused = new HL7Structure(HL7Delimiters.STANDARD);
+        for(int pass=0; pass<2; pass++) {
+            for(String msg : MESSAGES) {
+                reused.reload(msg);
+                HL7Structure standard = HL7.structure(msg);
+
+                assertEquals(reused.marshal(), standard.marshal());
+                assertEquals(describe(reused), describe(standard));
+                assertSame(reused.getDelimiters(), standard.getDelimiters());
+            }
+        }
+    }
+
+    @Test
+    public void testReloadReusesNodes() {
+        HL7Structure struct = HL7.structure(MESSAGES[0], HL7ParseMode.LAZY);
+        assertEquals(struct.get("PID-3[1].1").getData(), "858585");
+        struct.get("PID-5.2").setData("Jane");
+
+        Set<HL7Field> old = Collections.newSetFromMap(new IdentityHashMap<HL7Field, Boolean>());
+        struct.reload(MESSAGES[0]);
+        for(HL7RepeatingField rf : struct.getSegment(1).getRepeatingFields()) {
+            old.addAll(rf.getFields());
+        }
+        assertEquals(struct.get("PID-5.2").getData(), "John");
+
+        struct.reload(MESSAGES[1]);
+        assertEquals(struct.marshal(), HL7.structure(MESSAGES[1]).marshal());
+        assertEquals(struct.get("NK1-2.2").getData(), "BILL");
+        assertEquals(struct.get("MSH-10").getData(), "61234_22333_DC");
+        int reused = 0;
+        for(HL7Segment seg : struct.getSegments()) {
+            for(HL7RepeatingField rf : seg.getRepeatingFields()) {
+                for(HL7Field field : rf.getFields()) {
+                    if (old.contains(field)) {
+                        reused++;
+                    }
+                    assertSame(field.getParent(), rf);
+                }
+            }
+        }
+        assertEquals(reused, old.size());
+
+        struct.get("NK1-2.1").setData("SMITH");
+        assertTrue(struct.marshal().contains("NK1|1|SMITH^BILL^^^^|"));
+        assertEquals(struct.helper().getSegment("ZRP").getRepeatingField(3).getFields().size(), 3);
+    }
+
+    private static String describe(HL7Structure struct) {
+        StringBuilder sb = new StringBuilder();
+        for(HL7Segment seg : struct.getSegments()) {
+            sb.append("S:").append(seg.getSegmentName()).append('\n');
+            for(HL7RepeatingField rf : seg.getRepeatingFields()) {
+                sb.append(" R\n");
+                for(HL7Field f : rf.getFields()) {
+                    sb.append("  F:").append(f.isBaseField()).append(':').append(f.marshal()).append('\n');
+                    for(HL7FieldComponent c : f.getFieldComponents()) {
+                        sb.append("   C:").append(c.isBaseField()).append(':').append(c.marshal()).append('\n');
+                        for(HL7FieldSubcomponent sc : c.getFieldSubcomponents()) {
+                            sb.append("    SC:").append(sc.marshal()).append('\n');
+                        }
+                    }
+                }
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.igor;
+
+import org.urhl7.hl7.*;
+import java.util.*;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+/**
+ * Checks that HL7Scanner and HL7MessageView find the same values as HL7StructureHelper.
+ * @author dmorgan
+ */
+public class HL7ScannerTest {
+    private static final String[] MESSAGES = {
+        "MSH|^~\\&|||||||ORU^R01|HP128978937126197|P|2.3||||||8859/1\r" +
+        "PID|||E12345^^^^EPI~858585^^^^SMHMRN~222444^^^^HHHMRN||Smith^John||\"\"|U\r" +
+        "PV1||I|8-3600^^8-3604&4&1\r" +
+        "OBX|1|NM|0002-5000^SML^MDIL|0|2.73x10\\S\\-7|0004-0ae0^rpm^MDIL|||||F\r" +
+        "OBX|2|ST|CODE&SUB^X||a\\F\\b~&c&~^d||\r",
+
+        "MSH|^~\\&|FLOWCAST|IDX|URMC|ENGINE|201001111101||ADT^A13|61234_22333_DC|P|2.3||||||ASCII|\r"+
+        "NK1|1|MORGAN^BILL^^^^|SP||(315)555-5555||NK&&KID||||\r"+
+        "NK1|2|MORGAN^ANN|SP||(315)555-5555~(315)555-4444\r"+
+        "ZZZ|||^^10&15^SAMPLE\r" +
+        "ZRP|||ONE~TWO~THREE||~\r",
+
+        "MSH:*~\\`:A:B\rPID:1::x*y`z~~*:\r\rZZZ\r\r\r",
+
+        "MSH|^~\\&|&|^|~|&^&|\rPID|\r|||\r",
+
+        "MSH|^~\\&|||||||ADT^A01|1|P|2.3\rzpd|1|low^er\rZPD|2|UP^PER\rZpd|3|Mixed\r",
+    };
+
+    private static List<String> locations(HL7Structure struct) {
+        Set<String> names = new LinkedHashSet<String>();
+        for(HL7Segment segment : struct.getSegments()) {
+            names.add(segment.getSegmentName());
+            names.add(segment.getSegmentName().toLowerCase());
+        }
+        names.add("XYZ");
+
+        List<String> locations = new ArrayList<String>();
+        String[] segIdx = {"", "[0]", "[1]", "[2]"};
+        String[] fieldIdx = {"", "[0]", "[1]", "[2]"};
+        String[] sub = {"", ".1", ".2", ".3", ".1.1", ".1.2", ".2.1", ".3.2", ".4.2"};
+        for(String name : names) {
+            if (name.length() == 0) {
+                continue;
+            }
+            for(String s : segIdx) {
+                for(int rf=0; rf<=12; rf++) {
+                    for(String f : fieldIdx) {
+                        for(String c : sub) {
+                            locations.add(name + s + "-" + rf + f + c);
+                        }
+                    }
+                }
+            }
+        }
+        return locations;
+    }
+
+    @Test
+    public void testSameAsHelper() {
+        for(String msg : MESSAGES) {
+            HL7Structure struct = HL7.structure(msg);
+            for(String location : locations(struct)) {
+                List<String> expected = new ArrayList<String>();
+                for(DataField df : struct.getAll(location)) {
+                    expected.add(df.getData());
+                }
+                assertEquals(HL7Scanner.scanAll(msg, location), expected, location);
+                assertEquals(HL7Scanner.scan(msg, location), expected.isEmpty() ? null : expected.get(0), location);
+                assertEquals(HL7Scanner.scan(msg, location), struct.has(location) ? struct.get(location).getData() : null, location);
+            }
+        }
+    }
+
+    @Test
+    public void testSeveralLocationsAtOnce() {
+        HL7Location[] locations = {
+            HL7Location.parse("MSH-9.1"), HL7Location.parse("MSH-10"), HL7Location.parse("NK1[1]-5[1]"),
+            HL7Location.parse("ZRP-3[2]"), HL7Location.parse("PID-3"), HL7Location.parse("NK1")
+        };
+        String[] values = HL7Scanner.scan(MESSAGES[1], locations);
+        assertEquals(values, new String[] {"ADT", "61234_22333_DC", "(315)555-4444", "THREE", null, null});
+    }
+
+    @Test
+    public void testViewSameAsHelper() {
+        for(String msg : MESSAGES) {
+            HL7Structure struct = HL7.structure(msg);
+            HL7MessageView view = HL7.view(new StringBuilder(msg));
+            for(String location : locations(struct)) {
+                List<String> expected = new ArrayList<String>();
+                List<String> expectedRaw = new ArrayList<String>();
+                for(DataField df : struct.getAll(location)) {
+                    expected.add(df.getData());
+                    expectedRaw.add(df.marshal());
+                }
+                List<String> values = new ArrayList<String>();
+                List<String> raw = new ArrayList<String>();
+                for(DataField df : view.getAll(location)) {
+                    values.add(df.getData());
+                    raw.add(df.marshal());
+                    assertSame(df.getParent(), view);
+                }
+                assertEquals(values, expected, location);
+                assertEquals(raw, expectedRaw, location);
+
+                DataField first = view.get(HL7Path.compile(location));
+                assertEquals(first.getData(), struct.get(location).getData(), location);
+                assertEquals(first instanceof NullField, struct.get(location) instanceof NullField, location);
+            }
+        }
+    }
+
+    @Test
+    public void testViewSegmentsAndPromotion() {
+        HL7MessageView view = HL7.view(MESSAGES[1]);
+        assertEquals(view.getSegmentCount(), 5);
+        assertEquals(view.getSegmentName(2), "NK1");
+        assertSame(view.getDelimiters(), HL7Delimiters.STANDARD);
+        assertEquals(view.get("NK1[1]-5[1]").getData(), "(315)555-4444");
+
+        try {
+            view.get("NK1-2.1").setData("SMITH");
+            fail("a view is read-only");
+        } catch (UnsupportedOperationException e) { }
+
+        HL7Structure struct = view.toStructure();
+        struct.get("NK1-2.1").setData("SMITH");
+        assertEquals(struct.get("NK1-2.1").getData(), "SMITH");
+        assertEquals(view.get("NK1-2.1").getData(), "MORGAN");
+        assertEquals(view.toStructure(HL7ParseMode.SINGLE_PASS).marshal(), HL7.structure(MESSAGES[1]).marshal());
+
+        HL7MessageView custom = HL7.view(MESSAGES[2]);
+        assertEquals(custom.get("PID-3[1]").getData(), "");
+        assertEquals(custom.get("PID-3.2.2").getData(), "z");
+        assertEquals(custom.toStructure().getDelims(), new char[] {':', '*', '~', '\\', '`'});
+    }
+}
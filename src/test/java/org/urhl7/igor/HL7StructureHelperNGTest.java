@@ -7,10 +7,15 @@ package org.urhl7.igor;
 
 import org.urhl7.hl7.DataField;
 import org.urhl7.hl7.HL7;
+import org.urhl7.hl7.HL7Field;
+import org.urhl7.hl7.HL7ParseMode;
+import org.urhl7.hl7.HL7Path;
 import org.urhl7.hl7.HL7StructureHelper;
 import org.urhl7.hl7.HL7Structure;
 import org.urhl7.hl7.HL7Segment;
+import org.urhl7.hl7.NullField;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import static org.testng.Assert.*;
 import org.testng.annotations.BeforeMethod;
@@ -521,5 +526,214 @@ public class HL7StructureHelperNGTest {
         }
     }
 
-    
+    /**
+     * Test that changes inside a segment re-index that segment only.
+     */
+    @Test
+    public void testChangeReindexesSegment() {
+        HL7StructureHelper instance = message.helper();
+        assertEquals(instance.get("PID-5.2").getData(), "John");
+        int rebuilds = instance.getCacheRebuildCount();
+
+        instance.get("PID-5.2").setData("Jane");
+        assertEquals(instance.get("PID-5.2").getData(), "Jane");
+
+        HL7Field field = (HL7Field) instance.get("PV1-2");
+        field.addFieldComponent("A");
+        field.addFieldComponent("B");
+        assertEquals(instance.get("PV1-2.2").getData(), "B");
+
+        assertEquals(instance.getCacheRebuildCount(), rebuilds);
+        assertTrue(instance.getSegmentReindexCount() >= 2);
+    }
+
+    /**
+     * Test that renaming a segment re-indexes its siblings.
+     */
+    @Test
+    public void testRenameReindexesSiblings() {
+        HL7StructureHelper instance = message.helper();
+        assertEquals(instance.get("OBX[0]-5").getData(), "98");
+        int rebuilds = instance.getCacheRebuildCount();
+
+        instance.get("PV1-0").setData("OBX");
+        assertFalse(instance.has("PV1-2"));
+        assertEquals(instance.get("OBX[0]-2").getData(), "I");
+        assertEquals(instance.get("OBX[1]-5").getData(), "98");
+        assertEquals(instance.getAll("OBX-0").size(), 8);
+
+        assertEquals(instance.getCacheRebuildCount(), rebuilds);
+    }
+
+    /**
+     * Test that adding and removing segments rebuilds the index.
+     */
+    @Test
+    public void testAddRemoveSegmentRebuilds() {
+        HL7StructureHelper instance = message.helper();
+        int rebuilds = instance.getCacheRebuildCount();
+
+        HL7Segment seg = HL7.segment("ZZZ", 3);
+        message.addSegment(seg);
+        seg.getRepeatingField(1).getField(0).setData("added");
+        assertEquals(instance.get("ZZZ-1").getData(), "added");
+
+        message.removeSegment(seg);
+        assertFalse(instance.has("ZZZ-1"));
+        assertEquals(instance.getCacheRebuildCount(), rebuilds + 2);
+    }
+
+    /**
+     * Test that unmarshalling again drops changes that were waiting to be re-indexed, for every parse mode.
+     */
+    @Test
+    public void testUnmarshalDropsPendingChanges() {
+        for(HL7ParseMode mode : HL7ParseMode.values()) {
+            HL7Structure struct = HL7.structure("MSH|^~\\&|||||||ADT^A01|1|P|2.3\rPID|1||111\r");
+            HL7StructureHelper instance = struct.helper();
+            assertEquals(instance.get("PID-3").getData(), "111");
+            instance.get("PID-3").setData("changed");
+
+            struct.unmarshal("MSH|^~\\&|||||||ADT^A01|2|P|2.3\rPID|1||222\rPID|2||333\r", mode);
+            int rebuilds = instance.getCacheRebuildCount();
+            int reindexes = instance.getSegmentReindexCount();
+            assertEquals(data(instance.getAll("PID-3")), Arrays.asList("222", "333"), mode.toString());
+            assertEquals(instance.getCacheRebuildCount(), rebuilds + 1, mode.toString());
+            assertEquals(instance.getSegmentReindexCount(), reindexes, mode.toString());
+
+            //changes after the unmarshal are re-indexed as usual
+            instance.get("PID[1]-3").setData("444");
+            assertEquals(data(instance.getAll("PID-3")), Arrays.asList("222", "444"), mode.toString());
+            assertEquals(instance.getCacheRebuildCount(), rebuilds + 1, mode.toString());
+        }
+    }
+
+    /**
+     * Test that a removed segment is detached, so changing it leaves the structure and its index alone.
+     */
+    @Test
+    public void testEditRemovedSegment() {
+        HL7StructureHelper instance = message.helper();
+        HL7Segment byReference = instance.getSegment("PV1");
+        HL7Segment byPosition = instance.getSegment("OBR");
+        HL7Segment byList = instance.getSegment("OBX[6]");
+        message.removeSegment(byReference);
+        message.removeSegment(message.getSegmentPosition(byPosition));
+        message.getSegments().remove(byList);
+        assertNull(byReference.getParent());
+        assertNull(byPosition.getParent());
+        assertNull(byList.getParent());
+
+        assertEquals(instance.getAll("OBX-5").size(), 6);
+        String marshalled = message.marshal();
+        int rebuilds = instance.getCacheRebuildCount();
+        int reindexes = instance.getSegmentReindexCount();
+
+        byReference.getRepeatingField(2).getField(0).setData("moved");
+        byPosition.getRepeatingField(14).getField(0).setData("20120101");
+        byList.getRepeatingField(5).getField(0).setData("0");
+        assertEquals(byReference.marshal(), "PV1||moved|8-3600^^8-3604&4&1");
+
+        assertEquals(instance.getAll("OBX-5").size(), 6);
+        assertFalse(instance.has("PV1-2"));
+        assertEquals(instance.getCacheRebuildCount(), rebuilds);
+        assertEquals(instance.getSegmentReindexCount(), reindexes);
+        assertSame(message.marshal(), marshalled);
+    }
+
+    private static List<String> data(List<DataField> fields) {
+        List<String> data = new ArrayList<String>();
+        for(DataField df : fields) {
+            data.add(df.getData());
+        }
+        return data;
+    }
+
+    /**
+     * Test that implied and explicit segment and field indexes find the same data fields in the index.
+     */
+    @Test
+    public void testImpliedAndExplicitIndexes() {
+        HL7StructureHelper instance = message.helper();
+
+        //implied segment index is the first segment that has the data field, explicit is that segment only
+        assertEquals(instance.get("OBX-5").getData(), "98");
+        assertSame(instance.get("OBX-5"), instance.get("OBX[0]-5"));
+        assertEquals(instance.get("OBX[3]-5").getData(), "87");
+        assertFalse(instance.has("OBX[7]-5"));
+        assertTrue(instance.get("OBX[7]-5") instanceof NullField);
+        assertEquals(instance.getAll("OBX[3]-5").size(), 1);
+
+        //implied field index is the first repetition, explicit is that repetition only
+        assertEquals(instance.get("PID-3.1").getData(), "E12345");
+        assertSame(instance.get("PID-3.1"), instance.get("PID-3[0].1"));
+        assertEquals(instance.get("PID-3[2].1").getData(), "222444");
+        assertFalse(instance.has("PID-3[3].1"));
+        assertEquals(data(instance.getAll("PID-3.5")), Arrays.asList("EPI", "SMHMRN", "HHHMRN"));
+        assertEquals(data(instance.getAll("PID[0]-3[1].5")), Arrays.asList("SMHMRN"));
+
+        //both explicit, and compiled
+        assertEquals(instance.get("PV1[0]-3[0].3.2").getData(), "4");
+        assertEquals(instance.get(HL7Path.compile("PV1[0]-3[0].3.2")).getData(), "4");
+        assertEquals(instance.get(HL7Path.compile("PID-3[2].1")).getData(), "222444");
+
+        //a repetition missing from one segment does not hide it in the next
+        HL7Structure struct = HL7.structure("MSH|^~\\&|||||||ADT^A01|1|P|2.3\rZRP|a\rZRP|b~c\r");
+        assertEquals(struct.get("ZRP-1[1]").getData(), "c");
+        assertEquals(data(struct.getAll("ZRP-1[1]")), Arrays.asList("c"));
+        assertFalse(struct.has("ZRP[0]-1[1]"));
+    }
+
+    /**
+     * Test that getAll returns data fields top to bottom across repeated segments, then left to right across
+     * repetitions, also after the index was updated in place.
+     */
+    @Test
+    public void testGetAllOrderAcrossRepeatedSegments() {
+        HL7StructureHelper instance = message.helper();
+        assertEquals(data(instance.getAll("OBX-3.2")), Arrays.asList("SpO2", "SML", "pNN50", "HR", "PVC", "Pulse", "SD NN"));
+        assertEquals(data(instance.getAll("OBX-5")), Arrays.asList("98", "2.73x10^-7", "0.00", "87", "0", "87", "3.00"));
+
+        instance.get("OBX[2]-5").setData("1.00");
+        assertEquals(data(instance.getAll("OBX-5")), Arrays.asList("98", "2.73x10^-7", "1.00", "87", "0", "87", "3.00"));
+
+        HL7Segment seg = HL7.segment("OBX", 6);
+        seg.getRepeatingField(5).getField(0).setData("last");
+        message.addSegment(seg);
+        List<String> all = data(instance.getAll("OBX-5"));
+        assertEquals(all.size(), 8);
+        assertEquals(all.get(7), "last");
+
+        HL7Structure struct = HL7.structure("MSH|^~\\&|||||||ADT^A01|1|P|2.3\rZRP|a~b\rPID|x\rZRP|c\rZRP|d~e~f\r");
+        assertEquals(data(struct.getAll("ZRP-1")), Arrays.asList("a", "b", "c", "d", "e", "f"));
+        assertEquals(data(struct.getAll("ZRP-1[1]")), Arrays.asList("b", "e"));
+        assertEquals(data(struct.getAll("ZRP[2]-1")), Arrays.asList("d", "e", "f"));
+    }
+
+    /**
+     * Test that segment names are matched regardless of case, in the locations and in the message.
+     */
+    @Test
+    public void testCaseInsensitiveSegmentNames() {
+        HL7StructureHelper instance = message.helper();
+        assertEquals(instance.get("pid-5.2").getData(), "John");
+        assertSame(instance.get("Pid-5.2"), instance.get("PID-5.2"));
+        assertEquals(instance.get("obx[1]-3.2").getData(), "SML");
+        assertEquals(instance.getAll("obx-2").size(), 7);
+        assertTrue(instance.has("pv1-3"));
+        assertEquals(instance.get("msh-9.1").getData(), "ORU");
+        assertEquals(instance.get(HL7Path.compile("obx[3]-5")).getData(), "87");
+
+        //segments named in another case are numbered together, as getSegment does
+        HL7Structure struct = HL7.structure("MSH|^~\\&|||||||ADT^A01|1|P|2.3\rzpd|1|low\rZPD|2|UP\rZpd|3|Mixed\r");
+        assertEquals(data(struct.getAll("ZPD-2")), Arrays.asList("low", "UP", "Mixed"));
+        assertEquals(struct.get("ZPD[1]-2").getData(), "UP");
+        assertEquals(struct.get("zpd[2]-2").getData(), "Mixed");
+        assertSame(struct.get("ZPD[2]-2"), struct.helper().getSegment("zpd[2]").getRepeatingField(2).getField(0));
+
+        //renaming only changes the case, so the positions stay the same
+        struct.get("zpd[0]-0").setData("ZPD");
+        assertEquals(struct.get("Zpd[0]-2").getData(), "low");
+        assertEquals(data(struct.getAll("zpd-1")), Arrays.asList("1", "2", "3"));
+    }
 }
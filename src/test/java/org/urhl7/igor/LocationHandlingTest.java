@@ -27,6 +27,8 @@ package org.urhl7.igor;
 import org.urhl7.hl7.DataField;
 import org.urhl7.hl7.HL7Structure;
 import org.urhl7.hl7.HL7;
+import org.urhl7.hl7.HL7Location;
+import org.urhl7.hl7.HL7Path;
 import java.util.*;
 import org.testng.annotations.Test;
 import static org.testng.Assert.*;
@@ -88,4 +90,73 @@ public class LocationHandlingTest {
 
         assertEquals(struct.marshal(), finMsg);
     }
+
+    @Test
+    public void testParseIsInterned() {
+        assertSame(HL7Location.parse("PID3.1"), HL7Location.parse("PID3.1"));
+        assertEquals(HL7Location.parse("PID3.1").getFullyQualifiedHL7Location(), "PID[0]-3[0].1");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testParseNull() {
+        HL7Location.parse(null);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testParseInvalid() {
+        HL7Location.parse("PID-x");
+    }
+
+    @Test
+    public void testCompiledPath() {
+        HL7Path mrn = HL7Path.compile("PID-3.1");
+        HL7Path nk1Phone = HL7Path.compile("NK1[1]-5[1]");
+        HL7Path zrp = HL7Path.compile("ZRP-3");
+
+        for(String id : new String[] {"111", "222"}) {
+            HL7Structure struct = HL7.structure("MSH|^~\\&|A\r" +
+                "PID|1||" + id + "^^^IDX^MRN\r" +
+                "NK1|1||||(315)555-5555\r" +
+                "NK1|2||||(315)555-5555~(315)555-4444\r" +
+                "ZRP|||ONE~TWO~THREE\r");
+            assertEquals(mrn.get(struct).getData(), id);
+            assertEquals(struct.get(nk1Phone).getData(), "(315)555-4444");
+            assertEquals(zrp.getAll(struct).size(), 3);
+            assertTrue(HL7Path.compile("ZRP").has(struct));
+            assertFalse(HL7Path.compile("ZRP-4").has(struct));
+        }
+    }
+
+    @Test
+    public void testLocationEquality() {
+        HL7Location a = HL7Location.parse("OBX[3]-5[1].2.1");
+        HL7Location b = new HL7Location("OBX", 3, 5, 1, 1, 0);
+        assertEquals(a, b);
+        assertEquals(a.hashCode(), b.hashCode());
+
+        assertFalse(a.equals("OBX[3]-5[1].2.1"));
+        assertFalse(a.equals(null));
+        assertFalse(HL7Location.parse("OBX-5").equals(HL7Location.parse("OBX[0]-5[0]")));
+        assertFalse(HL7Location.parse("OBX[0]-5").equals(HL7Location.parse("OBX[0]-5[0]")));
+        assertFalse(HL7Location.parse("OBX[0]-5[0]").equals(HL7Location.parse("OBX[0]-5[0].1")));
+        assertFalse(HL7Location.parse("OBX[0]-5[0].1").equals(HL7Location.parse("OBX[0]-5[0].1.1")));
+        assertFalse(HL7Location.parse("OBX-5").equals(HL7Location.parse("OBR-5")));
+    }
+
+    @Test
+    public void testLocationHashSpread() {
+        Set<HL7Location> locations = new HashSet<HL7Location>();
+        Set<Integer> hashes = new HashSet<Integer>();
+        for(int seg=0; seg<500; seg++) {
+            for(int rf=0; rf<10; rf++) {
+                for(int comp=-1; comp<5; comp++) {
+                    HL7Location loc = new HL7Location("OBX", seg, rf, 0, comp, -1);
+                    locations.add(loc);
+                    hashes.add(loc.hashCode());
+                }
+            }
+        }
+        assertEquals(locations.size(), 500*10*6);
+        assertEquals(hashes.size(), 500*10*6);
+    }
 }
@@ -0,0 +1,262 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.igor;
+
+import org.urhl7.hl7.*;
+import org.urhl7.utils.StringHelper;
+import java.io.*;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.*;
+import java.util.*;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+/**
+ * Checks that marshalTo() writes exactly what the joined marshal() of every node did.
+ * @author dmorgan
+ */
+public class MarshalTest {
+    private static final String[] MESSAGES = {
+        "MSH|^~\\&|||||||ORU^R01|HP128978937126197|P|2.3||||||8859/1\r" +
+        "PID|||E12345^^^^EPI~858585^^^^SMHMRN~222444^^^^HHHMRN||Smith^John||\"\"|U\r" +
+        "PV1||I|8-3600^^8-3604&4&1\r" +
+        "OBX||NM|0002-5000^SML^MDIL|0|2.73x10\\S\\-7|0004-0ae0^rpm^MDIL|||||F\r",
+
+        "MSH|^~\\&|FLOWCAST|IDX|URMC|ENGINE|201001111101||ADT^A13|61234_22333_DC|P|2.3||||||ASCII|\r"+
+        "NK1|1|MORGAN^BILL^^^^|SP||(315)555-5555||NK&&KID||||\r"+
+        "ZZZ|||^^10&15^SAMPLE\r" +
+        "ZRP|||ONE~TWO~THREE||~\r",
+
+        "MSH:*~\\`:A:B\rPID:1::x*y`z~~*:\r\rZZZ\r\r\r",
+
+        "MSH|^~\\&\r",
+
+        "MSH|^~\\&|&|^|~|&^&|\rPID|\r|||\r",
+
+        "MSH|^~\\&|José|日本|😀\r",
+    };
+
+    //the joined marshal every node used before marshalTo()
+    private static String joined(HL7Structure struct) {
+        List<String> segs = new ArrayList<String>();
+        for(HL7Segment seg : struct.getSegments()) {
+            segs.add(joined(seg));
+        }
+        String value = StringHelper.implode(segs.toArray(new String[segs.size()]), "\r");
+        return value.endsWith("\r") ? value : value + "\r";
+    }
+
+    private static String joined(HL7Segment seg) {
+        List<String> parts = new ArrayList<String>();
+        for(HL7RepeatingField rf : seg.getRepeatingFields()) {
+            List<String> fields = new ArrayList<String>();
+            for(HL7Field f : rf.getFields()) {
+                fields.add(f.marshal());
+            }
+            parts.add(StringHelper.implode(fields.toArray(new String[fields.size()]), seg.getDelims()[2]+""));
+        }
+        return StringHelper.implode(parts.toArray(new String[parts.size()]), seg.getDelims()[0]+"");
+    }
+
+    private static String appended(GenericStructure structure) throws IOException {
+        StringWriter w = new StringWriter();
+        structure.marshalTo(w);
+        return w.toString();
+    }
+
+    @Test
+    public void testMarshalToMatchesMarshal() throws IOException {
+        for(String msg : MESSAGES) {
+            for(HL7ParseMode mode : HL7ParseMode.values()) {
+                HL7Structure struct = HL7.structure(msg, mode);
+                assertEquals(appended(struct), struct.marshal());
+                assertEquals(struct.toString(), struct.marshal());
+                for(HL7Segment seg : struct.getSegments()) {
+                    assertEquals(appended(seg), seg.marshal());
+                    for(HL7RepeatingField rf : seg.getRepeatingFields()) {
+                        assertEquals(appended(rf), rf.marshal());
+                        for(HL7Field f : rf.getFields()) {
+                            assertEquals(appended(f), f.marshal());
+                            for(HL7FieldComponent c : f.getFieldComponents()) {
+                                assertEquals(appended(c), c.marshal());
+                            }
+                        }
+                    }
+                }
+                assertEquals(struct.marshal(), joined(struct));
+            }
+        }
+    }
+
+    @Test
+    public void testMarshalAfterEdits() throws IOException {
+        HL7Structure struct = HL7.structure(MESSAGES[0]);
+        struct.get("PID-5.2").setData("Jane");
+        struct.get("OBX-3.2").setData("a^b");
+        struct.addSegment(HL7.segment("ZZZ", 3));
+        assertEquals(struct.marshal(), joined(struct));
+        assertEquals(appended(struct), joined(struct));
+    }
+
+    @Test
+    public void testMarshalToByteBuffer() {
+        for(String msg : MESSAGES) {
+            HL7Structure struct = HL7.structure(msg);
+            for(Charset charset : new Charset[] {StandardCharsets.UTF_8, StandardCharsets.ISO_8859_1, StandardCharsets.UTF_16LE}) {
+                ByteBuffer out = ByteBuffer.allocate(4096);
+                out.put((byte)'#');
+                struct.marshalTo(out, charset);
+                out.flip();
+                assertEquals(out.get(), (byte)'#');
+                byte[] bytes = new byte[out.remaining()];
+                out.get(bytes);
+                assertEquals(bytes, struct.marshal().getBytes(charset), charset.toString());
+            }
+        }
+    }
+
+    @Test(expectedExceptions = BufferOverflowException.class)
+    public void testMarshalToByteBufferOverflow() {
+        HL7.structure(MESSAGES[0]).marshalTo(ByteBuffer.allocate(20), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testMarshalIsCached() {
+        for(HL7ParseMode mode : HL7ParseMode.values()) {
+            HL7Structure struct = HL7.structure(MESSAGES[0], mode);
+            String first = struct.marshal();
+            assertSame(struct.marshal(), first);
+
+            HL7Segment msh = struct.getSegment(0);
+            HL7Segment pid = struct.getSegment(1);
+            String mshBefore = msh.marshal();
+            String pidBefore = pid.marshal();
+            String pid3 = pid.getRepeatingField(3).marshal();
+
+            struct.get("PID-5.2").setData("Jane");
+            String edited = struct.marshal();
+            assertNotSame(edited, first);
+            assertEquals(edited, joined(struct));
+            assertTrue(edited.contains("Smith^Jane"));
+            assertSame(msh.marshal(), mshBefore);
+            assertSame(pid.getRepeatingField(3).marshal(), pid3);
+            assertNotSame(pid.marshal(), pidBefore);
+            assertSame(struct.marshal(), edited);
+        }
+    }
+
+    @Test
+    public void testCompactKeepsNoCopies() {
+        HL7Structure struct = HL7.structure(MESSAGES[0], HL7ParseMode.COMPACT);
+        //an unchanged message is its own marshalled form
+        assertSame(struct.marshal(), MESSAGES[0]);
+
+        //values are copied out of the message when they are read, not kept
+        HL7Field name = (HL7Field) struct.get("PID-5");
+        DataField given = struct.get("PID-5.2");
+        assertEquals(name.marshal(), "Smith^John");
+        assertNotSame(name.marshal(), name.marshal());
+        assertEquals(given.getData(), "John");
+        assertNotSame(((HL7FieldComponent) given).marshal(), ((HL7FieldComponent) given).marshal());
+
+        given.setData("Jane");
+        assertEquals(name.marshal(), "Smith^Jane");
+        assertEquals(struct.marshal(), MESSAGES[0].replace("Smith^John", "Smith^Jane"));
+        assertSame(struct.marshal(), struct.marshal());
+    }
+
+    @Test
+    public void testCacheDroppedOnEveryChange() {
+        HL7Structure struct = HL7.structure(MESSAGES[1]);
+        struct.marshal();
+
+        struct.get("ZZZ-3.3.2").setData("20");
+        assertEquals(struct.marshal(), joined(struct));
+        assertTrue(struct.marshal().contains("10&20"));
+
+        HL7FieldComponent comp = struct.getSegment(1).getRepeatingField(2).getField(0).getFieldComponent(1);
+        comp.setData("WILLIAM");
+        assertEquals(struct.marshal(), joined(struct));
+
+        struct.getSegment(2).getRepeatingField(3).getField(0).addFieldComponent("EXTRA");
+        assertEquals(struct.marshal(), joined(struct));
+        assertTrue(struct.marshal().contains("SAMPLE^EXTRA"));
+
+        struct.getSegment(3).getRepeatingField(3).removeField(0);
+        assertEquals(struct.marshal(), joined(struct));
+
+        struct.getSegment(1).compress();
+        assertEquals(struct.marshal(), joined(struct));
+
+        struct.changeDelims("|^~\\#");
+        assertEquals(struct.marshal(), joined(struct));
+        assertTrue(struct.marshal().startsWith("MSH|^~\\#|"));
+
+        //a change made straight to an underlying list
+        struct.getSegments().remove(3);
+        assertEquals(struct.marshal(), joined(struct));
+    }
+
+    @Test
+    public void testInPlaceListChanges() throws IOException {
+        for(HL7ParseMode mode : HL7ParseMode.values()) {
+            HL7Structure struct = HL7.structure(MESSAGES[0], mode);
+            struct.marshal();
+            struct.get("PID-5");
+
+            HL7FieldComponent location = struct.getSegment(2).getRepeatingField(3).getField(0).getFieldComponent(2);
+            location.getFieldSubcomponents().set(1, HL7.subcomponent("9"));
+            assertTrue(struct.marshal().contains("|8-3600^^8-3604&9&1\r"), mode.toString());
+
+            HL7Field name = struct.getSegment(1).getRepeatingField(5).getField(0);
+            name.getFieldComponents().set(0, HL7.component("Jones"));
+            assertTrue(struct.marshal().contains("||Jones^John||"), mode.toString());
+            assertEquals(struct.get("PID-5.1").getData(), "Jones");
+
+            struct.getSegment(1).getRepeatingField(3).getFields().set(0, HL7.field("X1"));
+            assertTrue(struct.marshal().contains("|X1~858585^^^^SMHMRN~"), mode.toString());
+
+            struct.getSegment(1).getRepeatingFields().set(2, HL7.quickField("NEW"));
+            assertTrue(struct.marshal().contains("PID||NEW|X1~"), mode.toString());
+            assertEquals(struct.get("PID-2").getData(), "NEW");
+
+            HL7Segment zzz = HL7.segment("ZZZ");
+            zzz.addRepeatingField(HL7.quickField("x"));
+            zzz.addRepeatingField(HL7.quickField("y"));
+            struct.getSegments().set(2, zzz);
+            String marshalled = struct.marshal();
+            assertTrue(marshalled.contains("\rZZZ|x|y\r"), mode.toString());
+            assertFalse(marshalled.contains("PV1"), mode.toString());
+            assertEquals(marshalled, joined(struct));
+            assertEquals(struct.get("ZZZ-2").getData(), "y");
+            assertFalse(struct.has("PV1-3"));
+
+            StringBuilder sb = new StringBuilder();
+            struct.marshalTo(sb);
+            assertEquals(sb.toString(), marshalled);
+        }
+    }
+}
@@ -0,0 +1,529 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.igor;
+
+import org.urhl7.hl7.*;
+import org.urhl7.spark.*;
+import java.io.*;
+import java.util.*;
+import java.nio.charset.*;
+import java.util.concurrent.*;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+/**
+ * Checks that every SparkFileReader read mode hands the listener the same messages.
+ * @author dmorgan
+ */
+public class SparkFileReaderTest {
+
+    private static String batch(String delimiter, int count, boolean trailingDelimiter) {
+        StringBuilder sb = new StringBuilder();
+        for(int i=0; i<count; i++) {
+            sb.append("MSH|^~\\&|SEND|FAC|||20120101||ORU^R01|CTRL").append(i).append("|P|2.3\r");
+            sb.append("PID|1||").append(1000+i).append("^^^MRN||Doe^Jané\r");
+            for(int j=0; j<i%7; j++) {
+                sb.append("OBX|").append(j).append("|ST|CODE^").append(j).append("||value ").append(i*j).append("\r");
+            }
+            if (i < count-1 || trailingDelimiter) {
+                sb.append(delimiter);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static File write(String content, boolean gzip) throws IOException {
+        File f = File.createTempFile("spark", gzip ? ".hl7.gz" : ".hl7");
+        f.deleteOnExit();
+        OutputStream out = new FileOutputStream(f);
+        if (gzip) {
+            out = new GZIPOutputStream(out);
+        }
+        Writer w = new OutputStreamWriter(out);
+        w.write(content);
+        w.close();
+        return f;
+    }
+
+    private static List<String> read(File f, String delimiter, SparkReadMode mode, int bufferSize) throws IOException {
+        HL7MessageListenerListAdapter adapter = new HL7MessageListenerListAdapter();
+        SparkFileReader reader = new SparkFileReader(f, adapter, delimiter);
+        reader.setReadMode(mode);
+        reader.setChannelBufferSize(bufferSize);
+        assertTrue(reader.parseBatch());
+
+        List<String> messages = new ArrayList<String>();
+        for(HL7Structure struct : adapter.getList()) {
+            messages.add(struct.marshal());
+        }
+        return messages;
+    }
+
+    @Test
+    public void testChannelModeMatchesStandard() throws IOException {
+        String[] delimiters = { SparkFileReader.DELIMITER_DEFAULT, "\n", "\r\n##END##\r\n" };
+        int[] bufferSizes = { 1, 17, 100, 64 * 1024 };
+        for(String delimiter : delimiters) {
+            for(boolean trailing : new boolean[] {true, false}) {
+                for(boolean gzip : new boolean[] {false, true}) {
+                    File f = write(batch(delimiter, 40, trailing), gzip);
+                    List<String> expected = read(f, delimiter, SparkReadMode.STANDARD, 0);
+                    assertEquals(expected.size(), 40);
+                    for(int size : bufferSizes) {
+                        assertEquals(read(f, delimiter, SparkReadMode.CHANNEL, size), expected);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testChannelModeBlankRemainder() throws IOException {
+        File f = write("MSH|^~\\&|A\r\nMSH|^~\\&|B\r\n  \n ", false);
+        List<String> messages = read(f, "\r\n", SparkReadMode.CHANNEL, 16);
+        assertEquals(messages.size(), 2);
+        assertEquals(messages, read(f, "\r\n", SparkReadMode.STANDARD, 0));
+    }
+
+    @Test
+    public void testChannelModeSuccessAggregation() throws IOException {
+        File f = write(batch("\r\n", 5, true), false);
+        final int[] received = new int[1];
+        SparkFileReader reader = new SparkFileReader(f, new HL7MessageListener() {
+            public boolean messageReceived(HL7Structure message) {
+                received[0]++;
+                return received[0] != 2;
+            }
+        }, "\r\n");
+        reader.setReadMode(SparkReadMode.CHANNEL);
+        assertFalse(reader.parseBatch());
+        assertEquals(received[0], 2);
+    }
+
+    private static List<String> readMapped(File f, String delimiter, int windowSize, HL7MessageSelector selector) throws IOException {
+        HL7MessageListenerListAdapter adapter = new HL7MessageListenerListAdapter();
+        SparkMappedFileReader reader = new SparkMappedFileReader(f, adapter, delimiter);
+        reader.setWindowSize(windowSize);
+        reader.setSelector(selector);
+        assertTrue(reader.parseBatch());
+
+        List<String> messages = new ArrayList<String>();
+        for(HL7Structure struct : adapter.getList()) {
+            messages.add(struct.marshal());
+        }
+        return messages;
+    }
+
+    @Test
+    public void testMappedMatchesStandard() throws IOException {
+        String[] delimiters = { SparkFileReader.DELIMITER_DEFAULT, "\n", "\r\n##END##\r\n" };
+        int[] windowSizes = { 1, 61, 1000, SparkMappedFileReader.WINDOW_SIZE_DEFAULT };
+        for(String delimiter : delimiters) {
+            for(boolean trailing : new boolean[] {true, false}) {
+                File f = write(batch(delimiter, 40, trailing), false);
+                List<String> expected = read(f, delimiter, SparkReadMode.STANDARD, 0);
+                for(int size : windowSizes) {
+                    assertEquals(readMapped(f, delimiter, size, null), expected);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testMappedSelector() throws IOException {
+        File f = write(batch("\r\n", 40, true), false);
+        final List<String> offered = new ArrayList<String>();
+        List<String> messages = readMapped(f, "\r\n", 200, new HL7MessageSelector() {
+            public boolean accept(CharSequence message) {
+                offered.add(message.subSequence(0, 3).toString());
+                return message.toString().contains("|CTRL1");
+            }
+        });
+        assertEquals(offered.size(), 40);
+        assertEquals(offered.get(39), "MSH");
+        //CTRL1, CTRL10 ... CTRL19
+        assertEquals(messages.size(), 11);
+        assertTrue(messages.get(0).contains("|CTRL1|"));
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testMappedRejectsGzip() throws IOException {
+        readMapped(write(batch("\r\n", 2, true), true), "\r\n", 1000, null);
+    }
+
+    @Test
+    public void testParallelDelivery() throws IOException {
+        File f = write(batch("\r\n", 300, true), false);
+        List<String> expected = read(f, "\r\n", SparkReadMode.STANDARD, 0);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for(SparkReadMode mode : SparkReadMode.values()) {
+                for(SparkDelivery delivery : SparkDelivery.values()) {
+                    HL7MessageListenerListAdapter adapter = new HL7MessageListenerListAdapter();
+                    SparkFileReader reader = new SparkFileReader(f, adapter, "\r\n");
+                    reader.setReadMode(mode);
+                    reader.setExecutor(executor);
+                    reader.setDelivery(delivery);
+                    reader.setMaxMessagesInFlight(5);
+                    assertTrue(reader.parseBatch());
+
+                    List<String> messages = new ArrayList<String>();
+                    for(HL7Structure struct : adapter.getList()) {
+                        messages.add(struct.marshal());
+                    }
+                    if (delivery == SparkDelivery.AS_COMPLETED) {
+                        Collections.sort(messages);
+                        List<String> sorted = new ArrayList<String>(expected);
+                        Collections.sort(sorted);
+                        assertEquals(messages, sorted);
+                    } else {
+                        assertEquals(messages, expected);
+                    }
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testReuseStructures() throws IOException {
+        File f = write(batch("\r\n", 120, true), false);
+        List<String> expected = read(f, "\r\n", SparkReadMode.STANDARD, 0);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for(SparkReadMode mode : SparkReadMode.values()) {
+                for(Executor e : new Executor[] {null, executor}) {
+                    final List<String> messages = new ArrayList<String>();
+                    final Set<HL7Structure> distinct = Collections.newSetFromMap(new IdentityHashMap<HL7Structure, Boolean>());
+                    SparkFileReader reader = new SparkFileReader(f, new HL7MessageListener() {
+                        public boolean messageReceived(HL7Structure message) {
+                            distinct.add(message);
+                            messages.add(message.marshal());
+                            return message.get("PID-3.1").getData().startsWith("1");
+                        }
+                    }, "\r\n");
+                    reader.setReadMode(mode);
+                    reader.setExecutor(e);
+                    reader.setMaxMessagesInFlight(5);
+                    reader.setReuseStructures(true);
+                    assertTrue(reader.isReuseStructures());
+                    assertTrue(reader.parseBatch());
+
+                    assertEquals(messages, expected);
+                    //one structure on the reader thread, at most one per message in flight (and the one delivered) otherwise
+                    assertTrue(distinct.size() <= (e == null ? 1 : 6), distinct.size() + " structures");
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testParallelSuccessAggregation() throws IOException {
+        File f = write(batch("\r\n", 50, true), false);
+        final Thread readerThread = Thread.currentThread();
+        final int[] received = new int[1];
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for(SparkDelivery delivery : SparkDelivery.values()) {
+                received[0] = 0;
+                SparkFileReader reader = new SparkFileReader(f, new HL7MessageListener() {
+                    public boolean messageReceived(HL7Structure message) {
+                        assertSame(Thread.currentThread(), readerThread);
+                        received[0]++;
+                        return received[0] != 10;
+                    }
+                }, "\r\n");
+                reader.setExecutor(executor);
+                reader.setDelivery(delivery);
+                assertFalse(reader.parseBatch());
+                assertEquals(received[0], 10);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testPipelinedMatchesStandard() throws IOException {
+        String[] delimiters = { SparkFileReader.DELIMITER_DEFAULT, "\r\n##END##\r\n" };
+        for(String delimiter : delimiters) {
+            for(boolean gzip : new boolean[] {false, true}) {
+                File f = write(batch(delimiter, 40, false), gzip);
+                List<String> expected = read(f, delimiter, SparkReadMode.STANDARD, 0);
+                for(int size : new int[] {1, 100, 64 * 1024}) {
+                    assertEquals(read(f, delimiter, SparkReadMode.PIPELINED, size), expected);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testPipelinedMultiMemberGzip() throws IOException {
+        List<HL7Structure> messages = new ArrayList<HL7Structure>();
+        String content = batch("\r\n", 200, true);
+        File plain = write(content, false);
+        HL7MessageListenerListAdapter adapter = new HL7MessageListenerListAdapter();
+        new SparkFileReader(plain, adapter).parseBatch();
+        messages.addAll(adapter.getList());
+
+        //small blocks split the two byte character in some messages across members
+        File f = File.createTempFile("spark", ".hl7.gz");
+        f.deleteOnExit();
+        SparkFileWriter writer = new SparkFileWriter(f, false);
+        writer.setCompression(SparkCompression.PARALLEL_GZIP);
+        writer.setCompressionBlockSize(7);
+        writer.setFlushPolicy(SparkFlushPolicy.ON_CLOSE);
+        writer.writeAll(messages.subList(0, 150));
+        writer.close();
+        //followed by members without lengths
+        writer = new SparkFileWriter(f, true);
+        writer.setCompression(SparkCompression.GZIP);
+        writer.writeAll(messages.subList(150, 200));
+        writer.close();
+
+        List<String> expected = read(plain, "\r\n", SparkReadMode.STANDARD, 0);
+        assertEquals(read(f, "\r\n", SparkReadMode.PIPELINED, 64), expected);
+        assertEquals(read(f, "\r\n", SparkReadMode.STANDARD, 0), expected);
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testPipelinedCorruptMember() throws IOException {
+        File f = File.createTempFile("spark", ".hl7.gz");
+        f.deleteOnExit();
+        SparkFileWriter writer = new SparkFileWriter(f, false);
+        writer.setCompression(SparkCompression.PARALLEL_GZIP);
+        writer.setCompressionBlockSize(100);
+        writer.writeAll(Arrays.asList(HL7.structure(batch("\r\n", 20, false).split("\r\n")[3])));
+        writer.close();
+
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        raf.seek(30);
+        raf.write(raf.read() ^ 0x55);
+        raf.close();
+
+        read(f, "\r\n", SparkReadMode.PIPELINED, 64);
+    }
+
+    private static File oneMember() throws IOException {
+        File f = File.createTempFile("spark", ".hl7.gz");
+        f.deleteOnExit();
+        SparkFileWriter writer = new SparkFileWriter(f, false);
+        writer.setCompression(SparkCompression.PARALLEL_GZIP);
+        writer.writeAll(Arrays.asList(HL7.structure(batch("\r\n", 20, false).split("\r\n")[3])));
+        writer.close();
+        return f;
+    }
+
+    //a one member file, with the ISIZE in the trailer of the member replaced
+    private static File withMemberSize(long isize) throws IOException {
+        File f = oneMember();
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        raf.seek(16);
+        long memberLength = raf.read() | (raf.read() << 8) | (raf.read() << 16) | ((long)raf.read() << 24);
+        raf.seek(memberLength - 4);
+        for(int i=0; i<4; i++) {
+            raf.write((int)(isize >>> (8 * i)));
+        }
+        raf.close();
+        return f;
+    }
+
+    @Test(expectedExceptions = ZipException.class)
+    public void testPipelinedNegativeMemberSize() throws IOException {
+        read(withMemberSize(0xffffffffL), "\r\n", SparkReadMode.PIPELINED, 64);
+    }
+
+    @Test(expectedExceptions = ZipException.class)
+    public void testPipelinedHugeMemberSize() throws IOException {
+        read(withMemberSize(Integer.MAX_VALUE - 8), "\r\n", SparkReadMode.PIPELINED, 64);
+    }
+
+    @Test(expectedExceptions = EOFException.class)
+    public void testPipelinedTruncatedMember() throws IOException {
+        File f = oneMember();
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        raf.setLength(raf.length() - 10);
+        raf.close();
+        read(f, "\r\n", SparkReadMode.PIPELINED, 64);
+    }
+
+    @Test
+    public void testExplicitCharset() throws IOException {
+        Charset[] charsets = { StandardCharsets.ISO_8859_1, StandardCharsets.UTF_8, StandardCharsets.UTF_16LE };
+        for(Charset charset : charsets) {
+            List<HL7Structure> messages = new ArrayList<HL7Structure>();
+            messages.add(HL7.structure("MSH|^~\\&|A||||||ADT^A01|1|P|2.3\rPID|1||1||M\u00fcller^J\u00fcrgen\r"));
+            messages.add(HL7.structure("MSH|^~\\&|A||||||ADT^A08|2|P|2.3\rPID|1||2||Fran\u00e7ois^\u00c9lise\r"));
+
+            File f = File.createTempFile("spark", ".hl7");
+            f.deleteOnExit();
+            SparkFileWriter writer = new SparkFileWriter(f, false);
+            writer.setCharset(charset);
+            writer.writeAll(messages);
+            writer.close();
+
+            for(SparkReadMode mode : SparkReadMode.values()) {
+                HL7MessageListenerListAdapter adapter = new HL7MessageListenerListAdapter();
+                SparkFileReader reader = new SparkFileReader(f, adapter);
+                reader.setCharset(charset);
+                reader.setReadMode(mode);
+                reader.setChannelBufferSize(16);
+                assertTrue(reader.parseBatch());
+                assertEquals(adapter.getList().size(), 2, charset + " " + mode);
+                assertEquals(adapter.getList().get(0).get("PID-5.1").getData(), "M\u00fcller");
+                assertEquals(adapter.getList().get(1).get("PID-5.2").getData(), "\u00c9lise");
+            }
+
+            if (charset != StandardCharsets.UTF_16LE) {
+                HL7MessageListenerListAdapter adapter = new HL7MessageListenerListAdapter();
+                SparkMappedFileReader mapped = new SparkMappedFileReader(f, adapter);
+                mapped.setCharset(charset);
+                assertTrue(mapped.parseBatch());
+                assertEquals(adapter.getList().get(1).get("PID-5.1").getData(), "Fran\u00e7ois");
+            }
+        }
+    }
+
+    @Test
+    public void testSelectorInEveryMode() throws IOException {
+        File f = write(batch("\r\n", 40, false), false);
+        for(Charset charset : new Charset[] {StandardCharsets.ISO_8859_1, StandardCharsets.UTF_8, Charset.defaultCharset()}) {
+            for(SparkReadMode mode : SparkReadMode.values()) {
+                final int[] offered = new int[1];
+                HL7MessageListenerListAdapter adapter = new HL7MessageListenerListAdapter();
+                SparkFileReader reader = new SparkFileReader(f, adapter);
+                reader.setCharset(charset);
+                reader.setReadMode(mode);
+                reader.setSelector(new HL7MessageSelector() {
+                    public boolean accept(CharSequence message) {
+                        offered[0]++;
+                        return message.toString().contains("|CTRL7|");
+                    }
+                });
+                assertTrue(reader.parseBatch());
+                assertEquals(offered[0], 40);
+                assertEquals(adapter.getList().size(), 1);
+                assertEquals(adapter.getList().get(0).get("MSH-10").getData(), "CTRL7");
+            }
+        }
+    }
+
+    @Test
+    public void testMessageFilter() throws IOException {
+        File f = write(batch("\r\n", 40, false), false);
+        HL7MessageFilter byControlId = HL7MessageFilter.anyOf("MSH-10", "CTRL3", "CTRL5");
+        HL7MessageFilter byMrnAndObx = new HL7MessageFilter("PID-3.1", "OBX[5]-5") {
+            protected boolean matches(String[] values) {
+                return Integer.parseInt(values[0]) >= 1030 && values[1] != null;
+            }
+        };
+
+        for(SparkReadMode mode : SparkReadMode.values()) {
+            HL7MessageListenerListAdapter adapter = new HL7MessageListenerListAdapter();
+            SparkFileReader reader = new SparkFileReader(f, adapter);
+            reader.setReadMode(mode);
+            reader.setSelector(byControlId);
+            assertTrue(reader.parseBatch());
+            assertEquals(adapter.getList().size(), 2);
+            assertEquals(adapter.getList().get(1).get("MSH-10").getData(), "CTRL5");
+
+            adapter.clearList();
+            reader.setSelector(byMrnAndObx);
+            assertTrue(reader.parseBatch());
+            //only messages 6, 13, 20, 27 and 34 have an OBX[5]
+            assertEquals(adapter.getList().size(), 1);
+            assertEquals(adapter.getList().get(0).get("PID-3.1").getData(), "1034");
+        }
+
+        HL7MessageListenerListAdapter adapter = new HL7MessageListenerListAdapter();
+        SparkMappedFileReader mapped = new SparkMappedFileReader(f, adapter);
+        mapped.setSelector(byControlId);
+        assertTrue(mapped.parseBatch());
+        assertEquals(adapter.getList().size(), 2);
+    }
+
+    @Test
+    public void testIndexedReads() throws IOException {
+        for(boolean gzip : new boolean[] {false, true}) {
+            File f = write(batch("\r\n", 60, false), gzip);
+            SparkIndex.sidecarFor(f).deleteOnExit();
+            List<String> expected = read(f, "\r\n", SparkReadMode.STANDARD, 0);
+
+            SparkFileReader reader = new SparkFileReader(f, "\r\n");
+            reader.setChannelBufferSize(100);
+            SparkIndex index = reader.buildIndex();
+            assertEquals(index.size(), 60);
+            assertTrue(SparkIndex.sidecarFor(f).exists());
+            assertEquals(index.getKey(7, "MSH-10"), "CTRL7");
+            assertEquals(index.getKey(7, "PID-3"), "1007^^^MRN");
+            assertEquals(index.getKey(7, "MSH-7"), "20120101");
+            assertEquals(index.find("MSH-10", "CTRL42"), Arrays.asList(42));
+            assertTrue(index.find("MSH-10", "CTRL99").isEmpty());
+
+            SparkIndex loaded = reader.loadIndex();
+            assertEquals(loaded.size(), index.size());
+            for(int i=0; i<index.size(); i++) {
+                assertEquals(loaded.getOffset(i), index.getOffset(i));
+                assertEquals(loaded.getLength(i), index.getLength(i));
+                assertEquals(loaded.getKey(i, "PID-3"), index.getKey(i, "PID-3"));
+            }
+
+            for(int i : new int[] {59, 0, 31}) {
+                assertEquals(reader.read(loaded, i).marshal(), expected.get(i));
+            }
+
+            HL7MessageListenerListAdapter adapter = new HL7MessageListenerListAdapter();
+            reader.setListener(adapter);
+            assertTrue(reader.read(loaded, 20, 25));
+            assertEquals(adapter.getList().size(), 5);
+            for(int i=0; i<5; i++) {
+                assertEquals(adapter.getList().get(i).marshal(), expected.get(20+i));
+            }
+        }
+    }
+
+    @Test
+    public void testParseBatchBuildsIndex() throws IOException {
+        File f = write(batch("\n", 12, true), false);
+        SparkIndex.sidecarFor(f).deleteOnExit();
+        HL7MessageListenerListAdapter adapter = new HL7MessageListenerListAdapter();
+        SparkFileReader reader = new SparkFileReader(f, adapter, "\n");
+        reader.setBuildIndex(true);
+        reader.setIndexKeys("MSH-10", "OBX[2]-3.2");
+        assertTrue(reader.parseBatch());
+        assertEquals(adapter.getList().size(), 12);
+
+        SparkIndex index = reader.loadIndex();
+        assertEquals(index.getKeyLocations(), Arrays.asList("MSH-10", "OBX[2]-3.2"));
+        assertEquals(index.getKey(3, "OBX[2]-3.2"), "2");
+        assertNull(index.getKey(2, "OBX[2]-3.2"));
+        assertEquals(reader.read(index, 11).marshal(), adapter.getList().get(11).marshal());
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.igor;
+
+import org.urhl7.hl7.*;
+import org.urhl7.spark.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.GZIPInputStream;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+/**
+ * Checks the SparkFileWriter flush policies and that written files read back the same.
+ * @author dmorgan
+ */
+public class SparkFileWriterTest {
+
+    private static HL7Structure message(int i) {
+        return HL7.structure("MSH|^~\\&|SEND|FAC|||20120101||ADT^A01|CTRL" + i + "|P|2.3\rPID|1||" + (1000+i) + "^^^MRN||Doe^Jane\r");
+    }
+
+    private static File tempFile() throws IOException {
+        File f = File.createTempFile("spark", ".hl7");
+        f.deleteOnExit();
+        return f;
+    }
+
+    @Test
+    public void testEveryMessageFlushes() throws IOException {
+        File f = tempFile();
+        SparkFileWriter writer = new SparkFileWriter(f, false);
+        writer.write(message(1));
+        long expected = message(1).marshal().length() + SparkFileWriter.DELIMITER_DEFAULT.length();
+        assertEquals(f.length(), expected);
+        writer.close();
+    }
+
+    @Test
+    public void testFlushPolicies() throws IOException {
+        File f = tempFile();
+        SparkFileWriter writer = new SparkFileWriter(f, false);
+        writer.setFlushPolicy(SparkFlushPolicy.everyMessages(3));
+        writer.write(message(1));
+        writer.write(message(2));
+        assertEquals(f.length(), 0);
+        writer.write(message(3));
+        long afterThree = f.length();
+        assertTrue(afterThree > 0);
+        writer.write(message(4));
+        assertEquals(f.length(), afterThree);
+        writer.close();
+        assertTrue(f.length() > afterThree);
+
+        f = tempFile();
+        writer = new SparkFileWriter(f, false);
+        writer.setFlushPolicy(SparkFlushPolicy.everyBytes(message(1).marshal().length() * 2));
+        writer.write(message(1));
+        assertEquals(f.length(), 0);
+        writer.write(message(2));
+        assertTrue(f.length() > 0);
+        writer.close();
+
+        f = tempFile();
+        writer = new SparkFileWriter(f, false);
+        writer.setFlushPolicy(SparkFlushPolicy.ON_CLOSE);
+        for(int i=0; i<100; i++) {
+            writer.write(message(i));
+        }
+        assertEquals(f.length(), 0);
+        writer.flush();
+        assertTrue(f.length() > 0);
+        writer.close();
+
+        f = tempFile();
+        writer = new SparkFileWriter(f, false);
+        writer.setFlushPolicy(SparkFlushPolicy.everyInterval(0));
+        writer.write(message(1));
+        assertTrue(f.length() > 0);
+        writer.close();
+    }
+
+    @Test
+    public void testWriteAllRoundTrip() throws IOException {
+        List<HL7Structure> messages = new ArrayList<HL7Structure>();
+        for(int i=0; i<500; i++) {
+            messages.add(message(i));
+        }
+
+        for(SparkFlushPolicy policy : new SparkFlushPolicy[] {SparkFlushPolicy.EVERY_MESSAGE, SparkFlushPolicy.everyMessages(7), SparkFlushPolicy.ON_CLOSE}) {
+            File f = tempFile();
+            try (SparkFileWriter writer = new SparkFileWriter(f, false)) {
+                writer.setFlushPolicy(policy);
+                writer.setBufferSize(100);
+                writer.writeAll(messages.subList(0, 250));
+                for(HL7Structure message : messages.subList(250, 500)) {
+                    writer.write(message);
+                }
+            }
+
+            HL7MessageListenerListAdapter adapter = new HL7MessageListenerListAdapter();
+            assertTrue(new SparkFileReader(f, adapter).parseBatch());
+            assertEquals(adapter.getList().size(), 500);
+            for(int i=0; i<500; i++) {
+                assertEquals(adapter.getList().get(i).marshal(), messages.get(i).marshal());
+            }
+        }
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testWriteAfterClose() throws IOException {
+        SparkFileWriter writer = new SparkFileWriter(tempFile(), false);
+        writer.write(message(1));
+        writer.close();
+        writer.write(message(2));
+    }
+
+    @Test
+    public void testCompressedRoundTrip() throws IOException {
+        List<HL7Structure> messages = new ArrayList<HL7Structure>();
+        for(int i=0; i<2000; i++) {
+            messages.add(message(i));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            for(SparkCompression compression : SparkCompression.values()) {
+                File f = tempFile();
+                try (SparkFileWriter writer = new SparkFileWriter(f, false)) {
+                    writer.setCompression(compression);
+                    writer.setCompressionExecutor(executor);
+                    writer.setCompressionBlockSize(4096);
+                    writer.setFlushPolicy(SparkFlushPolicy.everyMessages(500));
+                    writer.writeAll(messages);
+                }
+
+                for(SparkReadMode mode : SparkReadMode.values()) {
+                    HL7MessageListenerListAdapter adapter = new HL7MessageListenerListAdapter();
+                    SparkFileReader reader = new SparkFileReader(f, adapter);
+                    reader.setReadMode(mode);
+                    assertTrue(reader.parseBatch());
+                    assertEquals(adapter.getList().size(), messages.size(), compression + " " + mode);
+                    for(int i=0; i<messages.size(); i++) {
+                        assertEquals(adapter.getList().get(i).marshal(), messages.get(i).marshal());
+                    }
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testCompressedDefaultFlushPolicy() throws IOException {
+        assertTrue(new SparkFileWriter(tempFile(), false).getFlushPolicy().isEveryMessage());
+
+        for(SparkCompression compression : new SparkCompression[] {SparkCompression.GZIP, SparkCompression.PARALLEL_GZIP}) {
+            File f = tempFile();
+            SparkFileWriter writer = new SparkFileWriter(f, false);
+            writer.setCompression(compression);
+            assertFalse(writer.getFlushPolicy().isEveryMessage(), compression.toString());
+            writer.write(message(0));
+            long afterOne = f.length();
+            for(int i=1; i<100; i++) {
+                writer.write(message(i));
+            }
+            //the messages are still buffered, rather than flushed as one tiny block each
+            assertEquals(f.length(), afterOne, compression.toString());
+            writer.close();
+
+            HL7MessageListenerListAdapter adapter = new HL7MessageListenerListAdapter();
+            assertTrue(new SparkFileReader(f, adapter).parseBatch());
+            assertEquals(adapter.getList().size(), 100, compression.toString());
+            assertEquals(adapter.getList().get(99).marshal(), message(99).marshal());
+        }
+
+        SparkFileWriter writer = new SparkFileWriter(tempFile(), false);
+        writer.setCompression(SparkCompression.PARALLEL_GZIP);
+        writer.setFlushPolicy(SparkFlushPolicy.EVERY_MESSAGE);
+        assertTrue(writer.getFlushPolicy().isEveryMessage());
+        writer.setFlushPolicy(null);
+        assertFalse(writer.getFlushPolicy().isEveryMessage());
+    }
+
+    @Test
+    public void testParallelGzipEmptyFile() throws IOException {
+        File f = tempFile();
+        SparkFileWriter writer = new SparkFileWriter(f, false);
+        writer.setCompression(SparkCompression.PARALLEL_GZIP);
+        writer.writeAll(new ArrayList<HL7Structure>());
+        writer.close();
+
+        InputStream in = new GZIPInputStream(new FileInputStream(f));
+        assertEquals(in.read(), -1);
+        in.close();
+    }
+
+    @Test
+    public void testWriterBuildsIndex() throws IOException {
+        List<HL7Structure> messages = new ArrayList<HL7Structure>();
+        for(int i=0; i<2000; i++) {
+            messages.add(message(i));
+        }
+
+        for(SparkCompression compression : SparkCompression.values()) {
+            File f = tempFile();
+            SparkIndex.sidecarFor(f).deleteOnExit();
+            try (SparkFileWriter writer = new SparkFileWriter(f, false)) {
+                writer.setCompression(compression);
+                writer.setCompressionBlockSize(4096);
+                writer.setBuildIndex(true);
+                writer.writeAll(messages);
+            }
+
+            SparkFileReader reader = new SparkFileReader(f);
+            SparkIndex index = reader.loadIndex();
+            assertEquals(index.size(), messages.size(), compression.toString());
+            if (compression == SparkCompression.PARALLEL_GZIP) {
+                assertTrue(index.getRestartPointCount() > 1);
+            } else {
+                assertEquals(index.getRestartPointCount(), 1);
+            }
+            assertEquals(index.find("MSH-10", "CTRL1500"), Arrays.asList(1500));
+            for(int i : new int[] {1999, 0, 1500, 777}) {
+                assertEquals(reader.read(index, i).marshal(), messages.get(i).marshal(), compression + " " + i);
+            }
+
+            //the reader builds the same index
+            SparkIndex rebuilt = reader.buildIndex();
+            assertEquals(rebuilt.size(), index.size());
+            for(int i=0; i<index.size(); i++) {
+                assertEquals(rebuilt.getOffset(i), index.getOffset(i));
+                assertEquals(rebuilt.getLength(i), index.getLength(i));
+                assertEquals(rebuilt.getKey(i, "MSH-10"), index.getKey(i, "MSH-10"));
+            }
+            assertEquals(rebuilt.getRestartPointCount(), index.getRestartPointCount());
+        }
+    }
+
+    @Test
+    public void testIndexContinuesOnAppend() throws IOException {
+        File f = tempFile();
+        SparkIndex.sidecarFor(f).deleteOnExit();
+        try (SparkFileWriter writer = new SparkFileWriter(f, false)) {
+            writer.setBuildIndex(true);
+            writer.write(message(0));
+            writer.write(message(1));
+        }
+        try (SparkFileWriter writer = new SparkFileWriter(f, true)) {
+            writer.setBuildIndex(true);
+            writer.write(message(2));
+        }
+
+        SparkFileReader reader = new SparkFileReader(f);
+        SparkIndex index = reader.loadIndex();
+        assertEquals(index.size(), 3);
+        for(int i=0; i<3; i++) {
+            assertEquals(reader.read(index, i).marshal(), message(i).marshal());
+        }
+    }
+}